@@ -1,5 +1,12 @@
 package com.levien.synthesizer.android;
 
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import android.os.Process;
+
 import com.levien.synthesizer.core.midi.MessageOutputProcessor;
 
 /**
@@ -8,16 +15,75 @@ import com.levien.synthesizer.core.midi.MessageOutputProcessor;
  * 
  * This class implements the MessageOutputProcessor interface, so you can use those methods to
  * actually send MIDI data.
+ *
+ * Each AndroidGlue owns an independent engine, so several can run at once.
  */
 public class AndroidGlue extends MessageOutputProcessor {
 
+  public AndroidGlue() {
+    engine_ = create();
+  }
+
   /**
-   * Create and initialize the engine. This should be done once per process.
+   * Create and initialize the engine's audio output. This should be done once per object.
    */
   public native void start(int sample_rate, int buf_size);
 
   /**
-   *  Shut down the OpenSL ES engine and audio synthesizer.
+   * Choose the DSP kernels by timing each candidate on this device when the engine starts, rather
+   * than going by cpu features alone. The choice is reported on the stats channel as a
+   * "kernels ..." line. The kernels are shared by all engines, so this only takes effect when the
+   * first engine in the process is started.
+   *
+   * @param autotune Whether to time the kernels.
+   */
+  public native void setAutotuneKernels(boolean autotune);
+
+  /**
+   * Let the engine adjust its output buffering as it goes. It starts with the buffer size passed
+   * to start() and one buffer queued, the lowest latency. When the output glitches it steps up,
+   * to bigger buffers if rendering was too slow or to more of them if the callback came late,
+   * and after a stable period it steps back down. Takes effect at the next start().
+   *
+   * @param adaptive Whether to adjust the buffering.
+   */
+  public native void setAdaptiveBuffering(boolean adaptive);
+
+  /** @return The current output buffer size in frames. */
+  public native int getBufferSize();
+
+  /**
+   * @return The number of output buffers currently kept queued. The engine's own output latency
+   *     is this times getBufferSize() frames.
+   */
+  public native int getBufferCount();
+
+  /** Cheapest rendering: coarse sine table, half-rate envelopes, open filter skipped. */
+  public static final int QUALITY_ECONOMY = 0;
+  /** The default rendering. */
+  public static final int QUALITY_STANDARD = 1;
+  /** Polynomial sine and an always-nonlinear filter, at a higher cost per voice. */
+  public static final int QUALITY_HIGH = 2;
+
+  /**
+   * Set the trade-off between CPU use and fidelity. Can be called at any time; notes already
+   * sounding keep the quality they started with.
+   *
+   * @param tier One of the QUALITY_ constants
+   */
+  public native void setQuality(int tier);
+
+  /**
+   * Stop feeding the audio output after this long with no sound and no input. The output starts
+   * again by itself on the next sendMidi() or loadBank(). Meanwhile the engine costs nothing.
+   *
+   * @param millis Silence before stopping, or 0 to never stop (the default).
+   */
+  public native void setIdleTimeout(int millis);
+
+  /**
+   *  Shut down the audio output and free the engine. Waits for calls in progress on other threads;
+   *  calls made after this do nothing, and those that return a value return false or 0.
    */
   public native void shutdown();
   
@@ -36,18 +102,391 @@ public class AndroidGlue extends MessageOutputProcessor {
    */
   public native void sendMidi(byte[] midiData);
 
+  /**
+   * Load a bank of 32 patches from a DX7 bulk dump sysex. The bank is parsed and compiled on the
+   * calling thread and then handed over to the audio thread, so this should be called from a
+   * background thread rather than the UI thread.
+   *
+   * @param sysex The complete 4104 byte sysex message, including F0 and F7.
+   * @return Whether the sysex was a valid bank (including checksum).
+   */
+  public native boolean loadBank(byte[] sysex);
+
+  /**
+   * Play a MIDI file with a render thread working ahead of the audio output, rather than
+   * rendering each buffer just in time. This makes playback robust on a loaded device, at the cost
+   * of latency for anything that affects the file. The file plays on its own engine, with the last
+   * bank passed to loadBank() and this engine's quality setting. Live input still plays with low
+   * latency, mixed on top. Any file already playing is stopped first.
+   *
+   * @param midiFile A standard MIDI file, format 0 or 1.
+   * @param aheadMillis How far ahead to render; at most about 700 ms at 44.1 kHz.
+   * @return Whether the file is valid and the engine has been started.
+   */
+  public native boolean playFileAhead(byte[] midiFile, int aheadMillis);
+
+  /**
+   * Stop a file started by playFileAhead(). What was rendered ahead is faded out over one buffer
+   * and dropped, so the output goes straight back to just the live engine.
+   */
+  public native void stopFileAhead();
+
+  /**
+   * Load a sequence for the engine's own sequencer, which plays each event at its exact sample
+   * position within the audio buffers. The sequence is handed over to the audio thread, replacing
+   * any sequence there, and the transport is stopped at the start. Like loadBank(), this should be
+   * called from a background thread.
+   *
+   * <p>The buffer holds 32-bit ints in native byte order: ticks per beat, the number of tempo
+   * changes, and the number of events; then each tempo change as a tick and microseconds per beat;
+   * then each event as a tick and an int whose first byte in memory is the message size (1 to 3)
+   * and the other three the message. Only channel messages are allowed. Tempo changes and events
+   * are sorted by tick. The tempo is 120 bpm until the first tempo change.
+   *
+   * @param sequence A direct buffer with the sequence, from its start.
+   * @param size The size of the sequence in bytes.
+   * @return Whether the sequence was valid.
+   */
+  public native boolean loadSequence(ByteBuffer sequence, int size);
+
+  /**
+   * Start the sequencer from its current position. The transport methods don't wait for the audio
+   * thread; they take effect from the next buffer, in the order they were called.
+   */
+  public native void playSequence();
+
+  /** Stop the sequencer, releasing the notes it's holding. The position is kept. */
+  public native void stopSequence();
+
+  /** Move the sequencer to a tick, releasing the notes it's holding. */
+  public native void seekSequence(long tick);
+
+  /**
+   * Loop the sequencer between two ticks once it reaches the end one. Notes held at the end are
+   * released. An end at or before the start turns looping off; without it, the sequencer stops
+   * after the last event.
+   */
+  public native void setSequenceLoop(long startTick, long endTick);
+
+  /** @return The sequencer's position in ticks, as of the last buffer. */
+  public native long getSequenceTick();
+
+  /** MIDI input lane for channel voice messages (notes, controllers, pitch bend). */
+  public static final int LANE_NOTE = 0;
+  /** MIDI input lane for sysex and other system messages. */
+  public static final int LANE_BULK = 1;
+
+  /** On overflow, discard the message. */
+  public static final int OVERFLOW_DROP = 0;
+  /** On overflow, keep only the latest controller, pitch bend, pressure or program value. */
+  public static final int OVERFLOW_COALESCE = 1;
+  /** On overflow, block the sender until there is room. */
+  public static final int OVERFLOW_BLOCK = 2;
+
+  /**
+   * Set what happens to a MIDI message when its input lane is full. By default the note lane
+   * coalesces and the bulk lane blocks.
+   *
+   * @param lane LANE_NOTE or LANE_BULK
+   * @param policy One of the OVERFLOW_ constants
+   */
+  public native void setMidiOverflowPolicy(int lane, int policy);
+
+  /**
+   * Read the counters for a MIDI input lane.
+   *
+   * @param lane LANE_NOTE or LANE_BULK
+   * @param stats Array of at least 4 elements, filled with the number of messages written,
+   *     dropped, coalesced and blocked.
+   * @return Whether the lane and array were valid.
+   */
+  public native boolean getMidiLaneStats(int lane, int[] stats);
+
+  /**
+   * Get the number of operator kernel calls skipped so far because every carrier they feed was
+   * silent. The count wraps around.
+   */
+  public native int getPrunedKernels();
+
+  /**
+   * Receives the progress of an offline render. Both methods are called on the render thread.
+   */
+  public interface RenderListener {
+    /**
+     * Called after each chunk.
+     *
+     * @param samplesRendered Samples rendered so far.
+     * @param songLength Samples up to the last event in the file. The notes still sounding then
+     *     are rendered to the end, so samplesRendered goes on past this.
+     */
+    void onProgress(long samplesRendered, long songLength);
+
+    /**
+     * Called once, when the render is over.
+     *
+     * @param samplesRendered Samples written to the output.
+     * @param cancelled Whether cancel() stopped the render.
+     * @param error The exception that stopped the render, or null.
+     */
+    void onFinished(long samplesRendered, boolean cancelled, Exception error);
+  }
+
+  /**
+   * An offline render in progress, as returned by renderOffline().
+   */
+  public static class OfflineRender {
+    private OfflineRender(long handle, Output output, RenderListener listener) {
+      handle_ = handle;
+      output_ = output;
+      listener_ = listener;
+      thread_ = new Thread(new Runnable() {
+        public void run() {
+          // Stay out of the way of the live audio.
+          Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+          render();
+        }
+      }, "OfflineRender");
+      thread_.start();
+    }
+
+    /**
+     * Stop the render after the current chunk. The listener's onFinished() is still called.
+     */
+    public void cancel() {
+      cancelled_ = true;
+    }
+
+    /**
+     * Wait for the render to finish.
+     */
+    public void join() throws InterruptedException {
+      thread_.join();
+    }
+
+    private void render() {
+      long samples = 0;
+      long length = offlineRenderLength(handle_);
+      Exception error = null;
+      try {
+        while (!cancelled_) {
+          int space = output_.space();
+          if (space == 0) {
+            // A render that exactly fills the output still fits.
+            if (offlineRenderFinished(handle_)) {
+              break;
+            }
+            throw new BufferOverflowException();
+          }
+          int n = output_.render(handle_, space);
+          samples += n;
+          listener_.onProgress(samples, length);
+          if (n < space) {
+            break;
+          }
+        }
+      } catch (Exception e) {
+        error = e;
+      } finally {
+        destroyOfflineRender(handle_);
+      }
+      listener_.onFinished(samples, cancelled_, error);
+    }
+
+    private final long handle_;
+    private final Output output_;
+    private final RenderListener listener_;
+    private final Thread thread_;
+    private volatile boolean cancelled_;
+  }
+
+  // Where an offline render's samples go, one chunk at a time.
+  private interface Output {
+    // The number of samples in the next chunk, or 0 if the output is full.
+    int space();
+    // Renders a chunk of n samples, returning how many there were; fewer than n only at the end.
+    int render(long handle, int n) throws IOException;
+  }
+
+  // Samples per chunk of an offline render.
+  private static final int RENDER_CHUNK = 65536;
+
+  /**
+   * Render a MIDI file without playing it, into a direct ByteBuffer. The render has its own
+   * engine, using this one's quality setting, and runs on a background thread, so the live engine
+   * carries on undisturbed. Samples are 16-bit mono PCM in native byte order, written from the
+   * buffer's position, which is advanced. If the buffer fills up before the end, the render stops
+   * with a BufferOverflowException.
+   *
+   * @param midiFile A standard MIDI file, format 0 or 1.
+   * @param bank A DX7 32-voice bank sysex for the file's program changes, or null for the
+   *     built-in sound.
+   * @param sampleRate The sample rate to render at.
+   * @param out A direct buffer to render into.
+   * @param listener Receives the progress.
+   * @return The render, which can be cancelled.
+   * @throws IllegalArgumentException If the file or bank is invalid, or the buffer isn't direct.
+   */
+  public OfflineRender renderOffline(byte[] midiFile, byte[] bank, int sampleRate,
+      final ByteBuffer out, RenderListener listener) {
+    if (!out.isDirect()) {
+      throw new IllegalArgumentException("renderOffline needs a direct buffer");
+    }
+    return new OfflineRender(createHandle(midiFile, bank, sampleRate), new Output() {
+      public int space() {
+        return Math.min(out.remaining() / 2, RENDER_CHUNK);
+      }
+
+      public int render(long handle, int n) {
+        int rendered = renderOfflineChunk(handle, out, out.position(), n);
+        out.position(out.position() + 2 * rendered);
+        return rendered;
+      }
+    }, listener);
+  }
+
+  /**
+   * Render a MIDI file without playing it, writing the samples to a channel such as a
+   * FileChannel. Otherwise as the ByteBuffer version; the channel isn't closed at the end.
+   *
+   * @param midiFile A standard MIDI file, format 0 or 1.
+   * @param bank A DX7 32-voice bank sysex, or null for the built-in sound.
+   * @param sampleRate The sample rate to render at.
+   * @param out The channel to write to.
+   * @param listener Receives the progress.
+   * @return The render, which can be cancelled.
+   * @throws IllegalArgumentException If the file or bank is invalid.
+   */
+  public OfflineRender renderOffline(byte[] midiFile, byte[] bank, int sampleRate,
+      final WritableByteChannel out, RenderListener listener) {
+    final ByteBuffer chunk = ByteBuffer.allocateDirect(2 * RENDER_CHUNK);
+    return new OfflineRender(createHandle(midiFile, bank, sampleRate), new Output() {
+      public int space() {
+        return RENDER_CHUNK;
+      }
+
+      public int render(long handle, int n) throws IOException {
+        int rendered = renderOfflineChunk(handle, chunk, 0, n);
+        chunk.clear();
+        chunk.limit(2 * rendered);
+        while (chunk.hasRemaining()) {
+          out.write(chunk);
+        }
+        return rendered;
+      }
+    }, listener);
+  }
+
+  private long createHandle(byte[] midiFile, byte[] bank, int sampleRate) {
+    long handle = createOfflineRender(midiFile, bank, sampleRate);
+    if (handle == 0) {
+      throw new IllegalArgumentException("invalid MIDI file or bank");
+    }
+    return handle;
+  }
+
   public void onMessage(byte[] midiData) {
     sendMidi(midiData);
   }
 
   /**
-   * @return Number of stats bytes available from synth core
+   * @return Number of bytes of text stats available from synth core, such as the kernels chosen.
    */
   public native int statsBytesAvailable();
 
   public native int readStatsBytes(byte[] buf, int off, int len);
 
+  /** Size in bytes of a record read by readStatsRecords(). */
+  public static final int STATS_RECORD_SIZE = 56;
+  // Offsets of the fields within a record, which are in native byte order.
+  /** long: System.nanoTime() when the callback started rendering the buffer. */
+  public static final int STATS_START_NANOS = 0;
+  /** long: System.nanoTime() when it had enqueued it. */
+  public static final int STATS_END_NANOS = 8;
+  /** int: Running count of buffers, wrapping around. */
+  public static final int STATS_BLOCK = 16;
+  /** int: The most voices rendered at once in the buffer. */
+  public static final int STATS_VOICES = 20;
+  /** int: MIDI bytes applied in the buffer. */
+  public static final int STATS_MIDI_BYTES = 24;
+  /** int: STATS_FLAG_ bits. */
+  public static final int STATS_FLAGS = 28;
+  /** int: The number of voices the load governor allows. */
+  public static final int STATS_VOICE_LIMIT = 32;
+  /** int: Running count of voices stopped by the load governor, wrapping around. */
+  public static final int STATS_SHED_VOICES = 36;
+  /** int: The output buffer size in frames. */
+  public static final int STATS_BUFFER_SIZE = 40;
+  /** int: The number of output buffers kept queued. */
+  public static final int STATS_BUFFER_COUNT = 44;
+  /** int: How long the buffer that finished before the callback lasted, or 0 if not a callback. */
+  public static final int STATS_EXPECTED_GAP_NANOS = 48;
+  /** int: Buffers still queued when the callback came. */
+  public static final int STATS_QUEUED = 52;
+
+  /** Rendering took longer than the buffer lasts. */
+  public static final int STATS_FLAG_LATE = 1;
+  /**
+   * The callback came over 1.5 times STATS_EXPECTED_GAP_NANOS late with nothing left queued; the
+   * output likely ran dry.
+   */
+  public static final int STATS_FLAG_UNDERRUN = 2;
+  /** Render-ahead playback was on, but not enough had been rendered. */
+  public static final int STATS_FLAG_AHEAD_UNDERRUN = 4;
+  /** The engine was idle and silence was output. */
+  public static final int STATS_FLAG_SILENT = 8;
+  /** Not from a callback, as when the player starts or wakes up, so not timed against the last. */
+  public static final int STATS_FLAG_RESTART = 16;
+  /** Records before this one were lost because they weren't read in time. */
+  public static final int STATS_FLAG_DROPPED = 32;
+  /** The callback came as late as for STATS_FLAG_UNDERRUN, but buffers were still queued. */
+  public static final int STATS_FLAG_LATE_CALLBACK = 64;
+
+  /**
+   * Read per-buffer stats records, as many as are available and fit, into a direct buffer from its
+   * start. The buffer's position and limit are left alone; use absolute gets with the STATS_
+   * offsets, and a native byte order. Records are kept for about 1100 buffers.
+   *
+   * @param buf A direct buffer, ideally reused from call to call.
+   * @return The number of records read.
+   */
+  public native int readStatsRecords(ByteBuffer buf);
+
+  /** Number of stages in getProfile(): MIDI, note-on, voices, filter and output. */
+  public static final int PROFILE_STAGES = 5;
+
+  /**
+   * Get the time the audio callback spent in each stage of the engine: applying MIDI (which
+   * includes starting notes), starting notes, computing voices, filtering, and converting the
+   * output. Only available when the native code is built with SYNTH_PROFILE defined.
+   *
+   * @param stats Array of at least 1 + 3 * PROFILE_STAGES elements, filled with the number of
+   *     buffers rendered since the last reset, then nanoseconds per stage in the last buffer, in
+   *     total since the last reset, and the most in any one buffer since the last reset.
+   * @param reset Whether to start a new window of totals and maximums from the next buffer.
+   * @return Whether profiling is compiled in and the array was valid.
+   */
+  public native boolean getProfile(long[] stats, boolean reset);
+
+  private native long create();
+
+  private native long createOfflineRender(byte[] midiFile, byte[] bank, int sampleRate);
+
+  private static native long offlineRenderLength(long handle);
+
+  private static native boolean offlineRenderFinished(long handle);
+
+  private static native int renderOfflineChunk(long handle, ByteBuffer buf, int offset,
+      int maxSamples);
+
+  private static native void destroyOfflineRender(long handle);
+
+  private static native void initClass();
+
+  // Pointer to the native engine, or 0 after shutdown().
+  private long engine_;
+
   static {
     System.loadLibrary("synth");
+    initClass();
   }
 }
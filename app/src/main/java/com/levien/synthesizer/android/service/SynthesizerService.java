@@ -42,6 +42,7 @@ import com.levien.synthesizer.R;
 import com.levien.synthesizer.android.AndroidGlue;
 import com.levien.synthesizer.android.usb.UsbMidiDevice;
 import com.levien.synthesizer.core.midi.MessageTee;
+import com.levien.synthesizer.core.midi.MidiAdapter;
 import com.levien.synthesizer.core.midi.MidiListener;
 
 /**
@@ -64,31 +65,40 @@ public class SynthesizerService extends Service {
   @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR1)
   public void onCreate() {
     Log.d("synth", "service onCreate");
-    if (androidGlue_ == null) {
-      AudioParams params = new AudioParams(44100, 64);
-      // TODO: for pre-JB-MR1 devices, do some matching against known devices to
-      // get best audio parameters.
-      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
-        getJbMr1Params(params);
-      }
-      // Empirical testing shows better performance with small buffer size
-      // than actually matching the media server's reported buffer size.
-      params.bufferSize = 64;
+    AudioParams params = new AudioParams(44100, 64);
+    // TODO: for pre-JB-MR1 devices, do some matching against known devices to
+    // get best audio parameters.
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+      getJbMr1Params(params);
+    }
+    // Empirical testing shows better performance with small buffer size
+    // than actually matching the media server's reported buffer size.
+    // Adaptive buffering starts there and backs off on devices that glitch.
+    params.bufferSize = 64;
 
-      androidGlue_ = new AndroidGlue();
-      androidGlue_.start(params.sampleRate, params.bufferSize);
-      InputStream patchIs = getResources().openRawResource(R.raw.rom1a);
-      byte[] patchData = new byte[4104];
-      try {
-        patchIs.read(patchData);
-        androidGlue_.sendMidi(patchData);
-        patchNames_ = new ArrayList<String>();
-        for (int i = 0; i < 32; i++) {
-          patchNames_.add(new String(patchData, 124 + 128 * i, 10, "ISO-8859-1"));
+    final AndroidGlue androidGlue = new AndroidGlue();
+    androidGlue.setAdaptiveBuffering(true);
+    androidGlue.start(params.sampleRate, params.bufferSize);
+    sampleRate_ = params.sampleRate;
+    androidGlue_ = androidGlue;
+    InputStream patchIs = getResources().openRawResource(R.raw.rom1a);
+    final byte[] patchData = new byte[4104];
+    try {
+      patchIs.read(patchData);
+      bankLoader_ = new Thread(new Runnable() {
+        public void run() {
+          if (!androidGlue.loadBank(patchData)) {
+            Log.e("synth", "invalid patch bank");
+          }
         }
-      } catch (IOException e) {
-        Log.e(getClass().getName(), "loading patches failed");
+      });
+      bankLoader_.start();
+      patchNames_ = new ArrayList<String>();
+      for (int i = 0; i < 32; i++) {
+        patchNames_.add(new String(patchData, 124 + 128 * i, 10, "ISO-8859-1"));
       }
+    } catch (IOException e) {
+      Log.e(getClass().getName(), "loading patches failed");
     }
     midiListener_ = new MessageTee(androidGlue_);
     androidGlue_.setPlayState(true);
@@ -107,6 +117,19 @@ public class SynthesizerService extends Service {
     Log.d("synth", "service onDestroy");
     androidGlue_.setPlayState(false);
     setMidiInterface(null, null);
+    // Bound activities may keep sending to the listener after this.
+    midiListener_.setFirstTarget(new MidiAdapter());
+    // The loader calls into the engine, so it has to be done before the engine is freed.
+    if (bankLoader_ != null) {
+      try {
+        bankLoader_.join();
+      } catch (InterruptedException e) {
+        throw new RuntimeException("Interrupted waiting for the bank loader.");
+      }
+      bankLoader_ = null;
+    }
+    // Calls still reaching the glue, such as sendRawMidi, do nothing from here on.
+    androidGlue_.shutdown();
     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
       unregisterReceiver(usbReceiver_);
     }
@@ -137,6 +160,16 @@ public class SynthesizerService extends Service {
     return patchNames_;
   }
 
+  /**
+   * Gets the latency of the synthesizer's own output buffering, which adapts to how well the
+   * device keeps up. The audio system adds its own on top.
+   *
+   * @return Latency in milliseconds
+   */
+  public double getOutputLatencyMillis() {
+    return androidGlue_.getBufferSize() * androidGlue_.getBufferCount() * 1000.0 / sampleRate_;
+  }
+
   public boolean connectUsbMidi(UsbDevice device) {
     usbDeviceNeedsPermission_ = null;
     if (usbDevice_ == device) {
@@ -269,9 +302,11 @@ public class SynthesizerService extends Service {
   // Binder to use for Activities in this process.
   private final IBinder binder_ = new LocalBinder();
 
-  private static AndroidGlue androidGlue_;
+  private AndroidGlue androidGlue_;
+  private Thread bankLoader_;
+  private int sampleRate_;
 
-  private static List<String> patchNames_;
+  private List<String> patchNames_;
 
   // State for USB MIDI keyboard connection
   private UsbDevice usbDevice_;
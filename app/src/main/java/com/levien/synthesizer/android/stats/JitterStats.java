@@ -1,61 +1,200 @@
 package com.levien.synthesizer.android.stats;
 
-import android.util.Log;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.levien.synthesizer.android.AndroidGlue;
 
 public class JitterStats {
   public JitterStats() {
-    startTime_ = new double[N_STATS];
-    endTime_ = new double[N_STATS];
+    records_ = ByteBuffer.allocateDirect(N_RECORDS * AndroidGlue.STATS_RECORD_SIZE)
+        .order(ByteOrder.nativeOrder());
+  }
+
+  // The stats over some span of callbacks: since the JitterStats was created, or for one interval
+  // (see snapshotAndReset). Fixed size, so one can be kept and refilled.
+  public static class Snapshot {
+    // How long each callback took to render and enqueue its buffer.
+    public final LatencyHistogram callbackTime = new LatencyHistogram();
+    // How far the time between the starts of consecutive callbacks was from the length of the
+    // buffer that had just played, either way.
+    public final LatencyHistogram jitter = new LatencyHistogram();
+    // Callbacks that took longer than their buffer lasts.
+    public long deadlineMisses;
+    // Callbacks for which the output, or render-ahead playback, ran dry.
+    public long underruns;
+    // Records lost because they weren't read in time; the stats don't include those callbacks.
+    public long droppedRecords;
+
+    public void copyFrom(Snapshot other) {
+      callbackTime.copyFrom(other.callbackTime);
+      jitter.copyFrom(other.jitter);
+      deadlineMisses = other.deadlineMisses;
+      underruns = other.underruns;
+      droppedRecords = other.droppedRecords;
+    }
+
+    public void reset() {
+      callbackTime.reset();
+      jitter.reset();
+      deadlineMisses = 0;
+      underruns = 0;
+      droppedRecords = 0;
+    }
+
+    public String report() {
+      return "cb p50 " + millis(callbackTime.getPercentileNanos(50))
+          + " p99 " + millis(callbackTime.getPercentileNanos(99))
+          + " p99.9 " + millis(callbackTime.getPercentileNanos(99.9))
+          + " max " + millis(callbackTime.getMaxNanos())
+          + ", jitter p99 " + millis(jitter.getPercentileNanos(99))
+          + " max " + millis(jitter.getMaxNanos())
+          + ", " + deadlineMisses + " late, " + underruns + " underruns of "
+          + callbackTime.getCount();
+    }
+  }
 
+  // Reads all the stats the engine has ready. Nothing is allocated per record, or per call once
+  // the engine has reported its kernels.
+  public void update(AndroidGlue glue) {
+    int n;
+    do {
+      n = glue.readStatsRecords(records_);
+      aggregate(records_, n);
+    } while (n == N_RECORDS);
+    int nBytes = glue.statsBytesAvailable();
+    if (nBytes > 0) {
+      byte[] buf = new byte[nBytes];
+      glue.readStatsBytes(buf, 0, nBytes);
+      aggregate(buf);
+    }
+  }
+
+  // Takes count binary records, in the format from AndroidGlue.readStatsRecords.
+  public void aggregate(ByteBuffer records, int count) {
+    for (int i = 0; i < count; i++) {
+      int base = i * AndroidGlue.STATS_RECORD_SIZE;
+      long startNanos = records.getLong(base + AndroidGlue.STATS_START_NANOS);
+      long endNanos = records.getLong(base + AndroidGlue.STATS_END_NANOS);
+      int flags = records.getInt(base + AndroidGlue.STATS_FLAGS);
+      int block = records.getInt(base + AndroidGlue.STATS_BLOCK);
+      long cbNanos = endNanos - startNanos;
+      meanCbTime_ += (cbNanos * 1e-9 - meanCbTime_) * .01;
+      total_.callbackTime.record(cbNanos);
+      interval_.callbackTime.record(cbNanos);
+      // Jitter is timed from the previous callback, which a restart or lost records break the
+      // link to.
+      int unlinked = AndroidGlue.STATS_FLAG_RESTART | AndroidGlue.STATS_FLAG_DROPPED;
+      long expectedNanos = records.getInt(base + AndroidGlue.STATS_EXPECTED_GAP_NANOS);
+      if (expectedNanos == 0) {
+        expectedNanos = (long) (nominalCbPeriod_ * 1e9);
+      }
+      if (lastStartNanos_ != 0 && (flags & unlinked) == 0 && expectedNanos > 0) {
+        long jitterNanos = Math.abs(startNanos - lastStartNanos_ - expectedNanos);
+        total_.jitter.record(jitterNanos);
+        interval_.jitter.record(jitterNanos);
+      }
+      lastStartNanos_ = startNanos;
+      if ((flags & AndroidGlue.STATS_FLAG_LATE) != 0) {
+        total_.deadlineMisses++;
+        interval_.deadlineMisses++;
+      }
+      int underrunFlags = AndroidGlue.STATS_FLAG_UNDERRUN | AndroidGlue.STATS_FLAG_AHEAD_UNDERRUN;
+      if ((flags & underrunFlags) != 0) {
+        total_.underruns++;
+        interval_.underruns++;
+      }
+      if ((flags & AndroidGlue.STATS_FLAG_DROPPED) != 0) {
+        long dropped = Math.max(0, block - lastBlock_ - 1);
+        total_.droppedRecords += dropped;
+        interval_.droppedRecords += dropped;
+      }
+      lastBlock_ = block;
+      voiceLimit_ = records.getInt(base + AndroidGlue.STATS_VOICE_LIMIT);
+      shedVoices_ = records.getInt(base + AndroidGlue.STATS_SHED_VOICES) & 0xffffffffL;
+    }
   }
 
-  // Takes stats buf in format from android_glue
+  // Takes text stats, in the format from AndroidGlue.readStatsBytes.
   public void aggregate(byte[] statsBuf) {
     String[] lines = new String(statsBuf).split("\n");
     for (int i = 0; i < lines.length; i++) {
-      String[] toks = lines[i].split(" ");
-      if (toks.length == 3 && "ts".equals(toks[0])) {
-        double startTime = Double.parseDouble(toks[1]);
-        double endTime = Double.parseDouble(toks[2]);
-        startTime_[bufIx_] = startTime;
-        endTime_[bufIx_] = endTime;
-        bufIx_ = (bufIx_ + 1) % N_STATS;
-        double cbTime = endTime - startTime;
-        meanCbTime_ += (cbTime - meanCbTime_) * .01;
+      if (lines[i].startsWith("kernels ")) {
+        kernels_ = lines[i].substring("kernels ".length());
       }
     }
   }
 
+  // The DSP kernels the engine chose, for example "fm=neon ladder=neon ...", or null if the
+  // engine hasn't reported them yet.
+  public String getKernels() {
+    return kernels_;
+  }
+
+  // The number of voices the load governor currently allows. 16 until it has
+  // intervened.
+  public int getVoiceLimit() {
+    return voiceLimit_;
+  }
+
+  // Total number of voices the load governor has stopped.
+  public long getShedVoices() {
+    return shedVoices_;
+  }
+
+  // Everything since the JitterStats was created. Don't modify it.
+  public Snapshot getTotal() {
+    return total_;
+  }
+
+  // Copies the stats since the last call (or since creation) into out, and starts a new interval.
+  public void snapshotAndReset(Snapshot out) {
+    out.copyFrom(interval_);
+    interval_.reset();
+  }
+
+  public long getDeadlineMisses() {
+    return total_.deadlineMisses;
+  }
+
+  public long getUnderruns() {
+    return total_.underruns;
+  }
+
+  // The time in seconds that the given percentage of callbacks took no longer than.
+  public double getCbTimePercentile(double percentile) {
+    return total_.callbackTime.getPercentileNanos(percentile) * 1e-9;
+  }
+
   public String report() {
-    double maxCbTime = 0.0;
-    for (int i = 0; i < N_STATS; i++) {
-      double cbTime = endTime_[i] - startTime_[i];
-      maxCbTime = Math.max(maxCbTime, cbTime);
-    }
-    return "max cb = " + Double.toString(maxCbTime * 1000) + "ms";
+    return "max cb = " + millis(total_.callbackTime.getMaxNanos()) + "ms";
   }
 
+  // Sets the nominal time between callbacks in seconds, which jitter is measured against when
+  // the records don't give it.
   public void setNominalCb(double nominalCb) {
     nominalCbPeriod_ = nominalCb;
   }
 
   public String reportLong() {
-    StringBuilder sb = new StringBuilder();
-    double startTime = startTime_[bufIx_];
-    for (int i = 0; i < N_STATS; i++) {
-      double nominalStart = startTime + nominalCbPeriod_ * i;
-      double thisStart = startTime_[(bufIx_ + i) % N_STATS] - nominalStart;
-      double thisEnd = endTime_[(bufIx_ + i) % N_STATS] - nominalStart;
-      sb.append(thisStart + " " + thisEnd + "\n");
-    }
-    return sb.toString();
+    return "total: " + total_.report() + "\ninterval: " + interval_.report() + "\n";
+  }
+
+  private static String millis(long nanos) {
+    return Double.toString(nanos * 1e-6);
   }
 
-  static final int N_STATS = 2000;
+  // Records read at a time.
+  static final int N_RECORDS = 256;
   double meanCbTime_;
-  double startTime_[];
-  double endTime_[];
   double nominalCbPeriod_;
-  int bufIx_ = 0;
+  long lastStartNanos_;
+  int lastBlock_;
+  ByteBuffer records_;
+  final Snapshot total_ = new Snapshot();
+  final Snapshot interval_ = new Snapshot();
+  String kernels_;
+  int voiceLimit_ = 16;
+  long shedVoices_;
 
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.levien.synthesizer.android.stats;
+
+/**
+ * A histogram of durations with logarithmic buckets, in the manner of HdrHistogram: each power of
+ * two is split into 16 linear buckets, so any value is known to within about 6%, from 1
+ * microsecond up to 16 seconds, in a fixed 336 counters. Larger values are counted in the top
+ * bucket. Nothing is allocated after construction.
+ */
+public class LatencyHistogram {
+  public LatencyHistogram() {
+    counts_ = new long[N_BUCKETS];
+  }
+
+  // Counts a duration. Negative values count as 0.
+  public void record(long nanos) {
+    long micros = Math.max(0, nanos) / 1000;
+    counts_[bucket(micros)]++;
+    count_++;
+    sumMicros_ += micros;
+    maxNanos_ = Math.max(maxNanos_, nanos);
+  }
+
+  public long getCount() {
+    return count_;
+  }
+
+  // The largest duration recorded, exactly, or 0 if there are none.
+  public long getMaxNanos() {
+    return maxNanos_;
+  }
+
+  public double getMeanNanos() {
+    return count_ == 0 ? 0 : sumMicros_ * 1000.0 / count_;
+  }
+
+  // The duration that the given percentage of the values are at or below, rounded up to the top
+  // of its bucket (but no more than the maximum), or 0 if there are none.
+  public long getPercentileNanos(double percentile) {
+    long target = (long) Math.ceil(count_ * Math.min(100, Math.max(0, percentile)) / 100);
+    target = Math.max(1, target);
+    long seen = 0;
+    for (int i = 0; i < N_BUCKETS; i++) {
+      seen += counts_[i];
+      if (seen >= target) {
+        return Math.min(maxNanos_, (bucketStart(i + 1) - 1) * 1000 + 999);
+      }
+    }
+    return maxNanos_;
+  }
+
+  // The number of values at or above a duration, to within a bucket.
+  public long getCountAbove(long nanos) {
+    long total = 0;
+    for (int i = bucket(Math.max(0, nanos) / 1000); i < N_BUCKETS; i++) {
+      total += counts_[i];
+    }
+    return total;
+  }
+
+  public void reset() {
+    for (int i = 0; i < N_BUCKETS; i++) {
+      counts_[i] = 0;
+    }
+    count_ = 0;
+    sumMicros_ = 0;
+    maxNanos_ = 0;
+  }
+
+  public void copyFrom(LatencyHistogram other) {
+    System.arraycopy(other.counts_, 0, counts_, 0, N_BUCKETS);
+    count_ = other.count_;
+    sumMicros_ = other.sumMicros_;
+    maxNanos_ = other.maxNanos_;
+  }
+
+  // Index of the bucket for a value in microseconds. Values below SUB_COUNT have a bucket each;
+  // above that, each power of two has HALF_COUNT.
+  static int bucket(long micros) {
+    if (micros < SUB_COUNT) {
+      return (int) micros;
+    }
+    if (micros >= MAX_MICROS) {
+      return N_BUCKETS - 1;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(micros) - (SUB_BITS - 1);
+    return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) (micros >> shift) - HALF_COUNT;
+  }
+
+  // The lowest value in microseconds that falls in a bucket.
+  static long bucketStart(int index) {
+    if (index < SUB_COUNT) {
+      return index;
+    }
+    int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+    return (long) ((index - SUB_COUNT) % HALF_COUNT + HALF_COUNT) << shift;
+  }
+
+  static final int SUB_BITS = 5;
+  static final int SUB_COUNT = 1 << SUB_BITS;
+  static final int HALF_COUNT = SUB_COUNT / 2;
+  static final long MAX_MICROS = 1L << 24;
+  static final int N_BUCKETS = SUB_COUNT + (24 - SUB_BITS) * HALF_COUNT;
+
+  long counts_[];
+  long count_;
+  long sumMicros_;
+  long maxNanos_;
+}
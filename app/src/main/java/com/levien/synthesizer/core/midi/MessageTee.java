@@ -24,6 +24,10 @@ public class MessageTee implements MidiListener {
     target_ = target;
   }
 
+  public void setFirstTarget(MidiListener target) {
+    target_ = target;
+  }
+
   public void setSecondTarget(MidiListener target) {
     target2_ = target;
   }
@@ -219,6 +223,6 @@ public class MessageTee implements MidiListener {
     }
   }
 
-  private final MidiListener target_;
+  private MidiListener target_;
   private MidiListener target2_;
 }
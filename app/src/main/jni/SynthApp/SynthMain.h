@@ -34,7 +34,7 @@ class SynthMain {
   OSStatus stopplayback();
   AudioUnit audioUnit_;
   MidiInMac midi_in_mac_;
-  RingBuffer ring_buffer_;
+  MidiInput midi_input_;
   SynthUnit *synth_unit_;
 };
 
@@ -136,7 +136,10 @@ int SynthMain::Load(const char *filename) {
     std::cerr << "error reading file" << std::endl;
     return 1;
   }
-  ring_buffer_.Write(syx_data, 4104);
+  if (!synth_unit_->LoadBank(syx_data, 4104)) {
+    std::cerr << "invalid bank" << std::endl;
+    return 1;
+  }
 #if 0
   const uint8_t *data = syx_data + 6 + 128 * patch_num;
   for (int i = 0; i < 6; i++) {
@@ -156,7 +159,7 @@ int SynthMain::Load(const char *filename) {
 
 int SynthMain::SynthInit() {
   double sample_rate = 44100.0;
-  synth_unit_ = new SynthUnit(&ring_buffer_);
+  synth_unit_ = new SynthUnit(&midi_input_);
   SynthUnit::Init(sample_rate);
   if (true) {
     const char *fn = "/Users/raph/dx7/ROM1A.SYX";
@@ -170,7 +173,7 @@ int SynthMain::SynthInit() {
   }
   CFStringRef usbname = CFSTR("MPK mini");
   // CFStringRef usbname = CFST("KeyRig 49");
-  midi_in_mac_.Init(usbname, &ring_buffer_);
+  midi_in_mac_.Init(usbname, &midi_input_);
   startplayback();
   return 0;
 }
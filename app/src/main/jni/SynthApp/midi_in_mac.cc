@@ -36,7 +36,7 @@ void MidiInMac::OnRead(const MIDIPacketList *pktlist) {
     }
     cout << endl;
 #endif
-    ring_buffer_->Write(packet->data, packet->length);
+    midi_input_->Write(packet->data, packet->length);
     packet = MIDIPacketNext(packet);
   }
 }
@@ -47,8 +47,8 @@ extern "C" void ReadProc(const MIDIPacketList *pktlist, void *readProcRefCon,
   self->OnRead(pktlist);
 }
 
-bool MidiInMac::Init(CFStringRef name, RingBuffer *ring_buffer) {
-  ring_buffer_ = ring_buffer;
+bool MidiInMac::Init(CFStringRef name, MidiInput *midi_input) {
+  midi_input_ = midi_input;
   OSStatus s = MIDIClientCreate(CFSTR("synth"), NULL, NULL, &client_);
   if (s != noErr) return false;
   s = MIDIInputPortCreate(client_, CFSTR("synthin"), ReadProc, (void *)this,
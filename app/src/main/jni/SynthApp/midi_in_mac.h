@@ -18,7 +18,7 @@
 
 #include <CoreMIDI/CoreMIDI.h>
 
-#include "ringbuffer.h"
+#include "midi_input.h"
 
 // At some point, we may want to have a generic MidiIn interface that gets
 // implemented differently on different platforms, but for now we keep it
@@ -29,8 +29,8 @@ class MidiInMac {
   //MidiInMac();
 
   // Return true on success. While running (ie until Done() is called,
-  // MIDI bytes from the device are written to the ring buffer.
-  bool Init(CFStringRef name, RingBuffer *ring_buffer);
+  // MIDI bytes from the device are written to the engine input.
+  bool Init(CFStringRef name, MidiInput *midi_input);
 
   void Done();
 
@@ -38,7 +38,7 @@ class MidiInMac {
   void OnRead(const MIDIPacketList *pktlist);
  private:
 
-  RingBuffer *ring_buffer_;
+  MidiInput *midi_input_;
   MIDIClientRef client_;
   MIDIPortRef port_;
   MIDIEndpointRef endpoint_;
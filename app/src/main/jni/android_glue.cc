@@ -15,8 +15,10 @@
 */
 
 #include <assert.h>
+#include <pthread.h>
 #include <stddef.h>
 #include <stdio.h>
+#include <string.h>
 #include <time.h>
 #include <jni.h>
 #include <SLES/OpenSLES.h>
@@ -26,18 +28,236 @@
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO, "synth", __VA_ARGS__)
 
 #include "synth.h"
+#include "buffer_controller.h"
+#include "ringbuffer.h"
+#include "kernels.h"
+#include "midi_file.h"
+#include "offline_renderer.h"
+#include "patch.h"
 #include "synth_unit.h"
 
-RingBuffer *ring_buffer;
-RingBuffer *stats_ring_buffer;
-SynthUnit *synth_unit;
-
-const int N_BUFFERS = 2;
+// The player's queue holds up to N_BUFFERS, of which buffer_count are kept
+// queued; one slot is left for rendering the next.
+const int N_BUFFERS = 4;
 const int MAX_BUFFER_SIZE = 1024;
-int buffer_size;
 
-int16_t buffer[MAX_BUFFER_SIZE * N_BUFFERS];
-int cur_buffer = 0;
+// Enqueued instead of a rendered buffer while an engine is idle.
+const int16_t silence[MAX_BUFFER_SIZE] = {0};
+
+// After idle_timeout seconds of silence (never if 0), the callback stops
+// enqueueing buffers. Once the last one has played the player is stopped:
+// it stays in the playing state but runs dry, so there are no callbacks.
+// WakePlayer starts it again.
+enum PlayerState {
+  kPlayerRunning,
+  kPlayerDraining,
+  kPlayerStopped
+};
+
+// Render-ahead playback of a MIDI file. While it's on, a thread renders
+// the file on its own engine into a FIFO, ahead_bytes ahead of the output,
+// and the callback just copies from the FIFO, adding in the live engine if
+// it's playing. Flushing fades out what's left in the FIFO over one buffer
+// and drops the rest, which turns it off.
+enum AheadState {
+  kAheadOff,
+  kAheadPlaying,
+  kAheadFlushing
+};
+
+// One record per buffer on the stats channel, read by
+// AndroidGlue.readStatsRecords. The layout is mirrored by the STATS_
+// constants there.
+struct StatsRecord {
+  // CLOCK_MONOTONIC, around rendering the buffer.
+  int64_t start_nanos;
+  int64_t end_nanos;
+  // Running count of buffers, wrapping around.
+  uint32_t block;
+  int32_t voices_rendered;
+  int32_t midi_bytes;
+  uint32_t flags;
+  int32_t voice_limit;
+  uint32_t shed_voices;
+  // The output setting for this buffer.
+  int32_t buffer_size;
+  int32_t buffer_count;
+  // How long the buffer that had just played lasted, which is the expected
+  // time since the last callback; 0 if not from a callback.
+  int32_t expected_gap_nanos;
+  // Buffers still queued when the callback came.
+  int32_t queued;
+};
+
+enum StatsFlags {
+  // Rendering took longer than the buffer lasts.
+  kStatsLate = 1,
+  // The callback came more than 1.5 buffer periods after the last one with
+  // nothing left queued, so the output most likely ran dry.
+  kStatsUnderrun = 2,
+  // Render-ahead playback was on, but the FIFO was short.
+  kStatsAheadUnderrun = 4,
+  // The engine was idle and silence was enqueued.
+  kStatsSilent = 8,
+  // Not from a callback, so not timed against the last one: the first
+  // buffers after starting or waking the player, or an extra buffer queued
+  // because buffer_count went up.
+  kStatsRestart = 16,
+  // Records before this one were lost because the channel was full.
+  kStatsDropped = 32,
+  // The callback came as late as for kStatsUnderrun, but buffers were still
+  // queued, so the output kept going.
+  kStatsLateCallback = 64
+};
+
+// Everything belonging to one AndroidGlue object, which holds a pointer to
+// it. The audio callback gets it as its context.
+struct Engine {
+  Engine();
+
+  MidiInput *midi_input;
+  // Text lines, such as the kernels chosen, and the binary StatsRecords.
+  RingBuffer *stats_ring_buffer;
+  RingBuffer *stats_records;
+  uint32_t stats_block;
+  bool stats_dropped;
+  SynthUnit *synth_unit;
+  bool autotune_kernels;
+  Quality quality;
+
+  double sample_rate;
+  int buffer_size;
+  double buffer_period;
+  // Buffers kept queued.
+  int buffer_count;
+  // Set from Java before start. Once started, the controller owns
+  // buffer_size and buffer_count, adjusting them from the audio thread.
+  bool adaptive_buffering;
+  BufferController *buffer_controller;
+  int16_t buffer[MAX_BUFFER_SIZE * N_BUFFERS];
+  int cur_buffer;
+  // The sizes of the buffers in the player's queue, oldest first, so the
+  // callback knows how long the one that just finished lasted.
+  int queued_sizes[N_BUFFERS];
+  int queued_rd;
+  int queued_wr;
+  int64_t last_callback_nanos;
+  // Set by WakePlayer, so the first callback after it isn't timed against
+  // the one before the stop.
+  volatile bool restarted;
+
+  double idle_timeout;
+  double idle_time;
+  volatile uint32_t player_state;
+  volatile uint32_t buffers_queued;
+
+  // The last bank loaded, for render-ahead playback, or NULL.
+  uint8_t *bank_sysex;
+
+  RingBuffer *ahead_fifo;
+  MidiFile *ahead_file;
+  OfflineRenderer *ahead_renderer;
+  pthread_t ahead_thread;
+  bool ahead_thread_running;
+  int ahead_bytes;
+  volatile bool ahead_stop;
+  // Set by the thread once the FIFO has filled up, and once it's rendered
+  // the end of the file.
+  volatile bool ahead_primed;
+  volatile bool ahead_finished;
+  volatile uint32_t ahead_state;
+  // The live engine's output, to be mixed in.
+  int16_t live_buffer[MAX_BUFFER_SIZE];
+
+  // buffer queue player interfaces
+  SLObjectItf player_object;
+  SLPlayItf player_play;
+  SLAndroidSimpleBufferQueueItf player_buffer_queue;
+};
+
+Engine::Engine() {
+  midi_input = NULL;
+  stats_ring_buffer = NULL;
+  stats_records = NULL;
+  stats_block = 0;
+  stats_dropped = false;
+  synth_unit = NULL;
+  autotune_kernels = false;
+  quality = kQualityStandard;
+  sample_rate = 0;
+  buffer_size = 0;
+  buffer_period = 0;
+  buffer_count = 1;
+  adaptive_buffering = false;
+  buffer_controller = NULL;
+  queued_rd = 0;
+  queued_wr = 0;
+  last_callback_nanos = 0;
+  restarted = false;
+  cur_buffer = 0;
+  idle_timeout = 0;
+  idle_time = 0;
+  player_state = kPlayerRunning;
+  buffers_queued = 0;
+  bank_sysex = NULL;
+  ahead_fifo = NULL;
+  ahead_file = NULL;
+  ahead_renderer = NULL;
+  ahead_thread_running = false;
+  ahead_bytes = 0;
+  ahead_stop = false;
+  ahead_primed = false;
+  ahead_finished = false;
+  ahead_state = kAheadOff;
+  player_object = NULL;
+  player_play = NULL;
+  player_buffer_queue = NULL;
+}
+
+// An offline render started by AndroidGlue.renderOffline. It has its own
+// engine, so the live one carries on undisturbed.
+struct OfflineJob {
+  explicit OfflineJob(double sample_rate)
+      : renderer(&file, sample_rate) {
+  }
+
+  // renderer keeps a pointer to file, so file must come first.
+  MidiFile file;
+  OfflineRenderer renderer;
+  // Staging for writes to a direct buffer, which may not be aligned.
+  int16_t chunk[4096];
+};
+
+// AndroidGlue.engine_
+static jfieldID engine_field;
+
+static Engine *GetEngine(JNIEnv *env, jobject thiz) {
+  return (Engine *)(intptr_t)env->GetLongField(thiz, engine_field);
+}
+
+// Taken shared by every call that uses an engine, and exclusively by
+// shutdown while it frees one.
+static pthread_rwlock_t engine_lock = PTHREAD_RWLOCK_INITIALIZER;
+
+// Holds an AndroidGlue's engine for the length of a JNI call, so that
+// shutdown on another thread can't free it underneath. get() returns NULL
+// once the engine has been shut down, and the call then does nothing.
+class EngineRef {
+ public:
+  EngineRef(JNIEnv *env, jobject thiz) {
+    pthread_rwlock_rdlock(&engine_lock);
+    engine_ = GetEngine(env, thiz);
+  }
+  ~EngineRef() { pthread_rwlock_unlock(&engine_lock); }
+  Engine *get() const { return engine_; }
+ private:
+  Engine *engine_;
+};
+
+// The OpenSL ES engine and output mix are shared by all the players, and
+// exist while at least one is started.
+static pthread_mutex_t sl_lock = PTHREAD_MUTEX_INITIALIZER;
+static int sl_users = 0;
 
 // engine interfaces
 static SLObjectItf engineObject = NULL;
@@ -46,70 +266,268 @@ static SLEngineItf engineEngine;
 // output mix interfaces
 static SLObjectItf outputMixObject = NULL;
 
-// buffer queue player interfaces
-static SLObjectItf bqPlayerObject = NULL;
-static SLPlayItf bq_player_play;
-static SLAndroidSimpleBufferQueueItf bq_player_buffer_queue;
-static SLBufferQueueItf buffer_queue_itf;
+static int64_t ts_to_nanos(const struct timespec *tp) {
+  return tp->tv_sec * (int64_t)1000000000 + tp->tv_nsec;
+}
+
+// Whether there's nothing to play: the live engine is Idle and no file is
+// playing ahead.
+static bool EngineIdle(Engine *engine) {
+  return engine->ahead_state == kAheadOff && engine->synth_unit->Idle();
+}
 
-static double ts_to_double(const struct timespec *tp) {
-  return tp->tv_sec + 1e-9 * tp->tv_nsec;
+// Audio thread: copies a buffer of render-ahead audio to out, returning
+// false if there isn't any. Sets *underrun if there should have been.
+static bool ReadAhead(Engine *engine, int16_t *out, bool *underrun) {
+  *underrun = false;
+  uint32_t state = engine->ahead_state;
+  if (state == kAheadOff || (state == kAheadPlaying && !engine->ahead_primed)) {
+    return false;
+  }
+  RingBuffer *fifo = engine->ahead_fifo;
+  int buffer_size = engine->buffer_size;
+  bool finished = engine->ahead_finished;
+  SynthMemoryBarrier();
+  int bytes_available = fifo->BytesAvailable();
+  if (state == kAheadPlaying && !finished &&
+      bytes_available < buffer_size * 2) {
+    // Underrun; the render thread should catch up.
+    *underrun = true;
+    return false;
+  }
+  int n = min(bytes_available / 2, buffer_size);
+  fifo->Read(n * 2, (uint8_t *)out);
+  memset(out + n, 0, (buffer_size - n) * sizeof(out[0]));
+  if (state == kAheadFlushing) {
+    for (int i = 0; i < n; i++) {
+      out[i] = out[i] * (n - i) / n;
+    }
+    const uint8_t *buf1, *buf2;
+    int size1, size2;
+    fifo->Consume(fifo->Peek(&buf1, &size1, &buf2, &size2));
+    engine->ahead_state = kAheadOff;
+  } else if (finished && fifo->BytesAvailable() == 0) {
+    SynthAtomicCompareAndSwap(&engine->ahead_state, kAheadPlaying, kAheadOff);
+  }
+  return true;
 }
 
-// Roll our own decimal printing to guarantee no allocs
-static size_t simple_ftoa(char *buf, double f) {
-  size_t i = 0;
-  uint32_t intpart = (uint32_t)f;
-  uint32_t fracpart = (int)((f - intpart) * 1000000);
-  do {
-    buf[i++] = '0' + intpart % 10;
-    intpart /= 10;
-  } while (intpart > 0);
-  for (size_t j = 0; j < i >> 1; j++) {
-    char tmp = buf[j];
-    buf[j] = buf[i - j - 1];
-    buf[i - j - 1] = tmp;
+// Renders a buffer, or picks the silent one if the engine is idle, and
+// enqueues it. The record comes with the flags, expected gap and queued
+// count filled in by the caller.
+static void EnqueueBuffer(Engine *engine, StatsRecord *record_in) {
+  SynthUnit *synth_unit = engine->synth_unit;
+  int buffer_size = engine->buffer_size;
+  struct timespec tp;
+  clock_gettime(CLOCK_MONOTONIC, &tp);
+  int64_t start_nanos = ts_to_nanos(&tp);
+  StatsRecord &record = *record_in;
+  record.voices_rendered = 0;
+  record.midi_bytes = 0;
+  record.buffer_size = buffer_size;
+  record.buffer_count = engine->buffer_count;
+  int16_t *out = engine->buffer + MAX_BUFFER_SIZE * engine->cur_buffer;
+  bool ahead_underrun;
+  bool ahead = ReadAhead(engine, out, &ahead_underrun);
+  if (ahead_underrun) {
+    record.flags |= kStatsAheadUnderrun;
+  }
+  const int16_t *buf_ptr = out;
+  if (synth_unit->Idle()) {
+    synth_unit->SkipSamples(buffer_size);
+    if (!ahead) {
+      buf_ptr = silence;
+    }
+  } else if (ahead) {
+    int16_t *live = engine->live_buffer;
+    synth_unit->GetSamples(buffer_size, live);
+    for (int i = 0; i < buffer_size; i++) {
+      out[i] = max(-32768, min(32767, out[i] + live[i]));
+    }
+  } else {
+    synth_unit->GetSamples(buffer_size, out);
+  }
+  if (buf_ptr != silence) {
+    record.voices_rendered = synth_unit->voices_rendered();
+    record.midi_bytes = synth_unit->midi_bytes();
+  }
+  if (buf_ptr == silence) {
+    record.flags |= kStatsSilent;
+    engine->idle_time += engine->buffer_period;
+  } else {
+    engine->cur_buffer = (engine->cur_buffer + 1) % N_BUFFERS;
+    engine->idle_time = 0;
+  }
+  clock_gettime(CLOCK_MONOTONIC, &tp);
+  int64_t end_nanos = ts_to_nanos(&tp);
+  engine->queued_sizes[engine->queued_wr] = buffer_size;
+  engine->queued_wr = (engine->queued_wr + 1) % N_BUFFERS;
+  SynthAtomicIncrement(&engine->buffers_queued);
+  SLAndroidSimpleBufferQueueItf queue = engine->player_buffer_queue;
+  SLresult result = (*queue)->Enqueue(queue, buf_ptr, buffer_size * 2);
+  assert(SL_RESULT_SUCCESS == result);
+  double elapsed = (end_nanos - start_nanos) * 1e-9;
+  if (elapsed > engine->buffer_period) {
+    record.flags |= kStatsLate;
+  }
+  synth_unit->ReportLoad(elapsed, engine->buffer_period);
+  BufferController *controller = engine->buffer_controller;
+  if (controller != NULL && controller->Update(engine->buffer_period,
+      (record.flags & kStatsLate) != 0,
+      (record.flags & kStatsUnderrun) != 0)) {
+    engine->buffer_size = controller->buffer_size();
+    engine->buffer_period = engine->buffer_size / engine->sample_rate;
+    engine->buffer_count = controller->buffer_count();
+  }
+
+  record.start_nanos = start_nanos;
+  record.end_nanos = end_nanos;
+  record.block = engine->stats_block++;
+  record.voice_limit = synth_unit->voice_limit();
+  record.shed_voices = synth_unit->shed_voices();
+  if (engine->stats_dropped) {
+    record.flags |= kStatsDropped;
   }
-  buf[i++] = '.';
-  const size_t nfrac = 6;
-  for (size_t j = 0; j < nfrac; j++) {
-    buf[i + nfrac - 1 - j] = '0' + fracpart % 10;
-    fracpart /= 10;
+  RingBuffer *stats_records = engine->stats_records;
+  engine->stats_dropped =
+    stats_records->WriteBytesAvailable() < (int)sizeof(record);
+  if (!engine->stats_dropped) {
+    stats_records->Write((const uint8_t *)&record, sizeof(record));
+  }
+}
+
+// Tops the player's queue up to buffer_count buffers.
+static void PrimeQueue(Engine *engine) {
+  while ((int)engine->buffers_queued < engine->buffer_count) {
+    StatsRecord record;
+    record.flags = kStatsRestart;
+    record.expected_gap_nanos = 0;
+    record.queued = engine->buffers_queued;
+    EnqueueBuffer(engine, &record);
+    struct timespec tp;
+    clock_gettime(CLOCK_MONOTONIC, &tp);
+    engine->last_callback_nanos = ts_to_nanos(&tp);
   }
-  return i + nfrac;
 }
 
 extern "C" void BqPlayerCallback(SLAndroidSimpleBufferQueueItf queueItf,
   void *data) {
+  Engine *engine = (Engine *)data;
+  uint32_t queued = SynthAtomicDecrement(&engine->buffers_queued);
+  StatsRecord record;
+  record.flags = 0;
+  record.queued = queued;
+  // The gap since the last callback should match the buffer that finished.
+  int played_size = engine->queued_sizes[engine->queued_rd];
+  engine->queued_rd = (engine->queued_rd + 1) % N_BUFFERS;
+  record.expected_gap_nanos = (int32_t)(played_size * 1e9 /
+    engine->sample_rate);
   struct timespec tp;
   clock_gettime(CLOCK_MONOTONIC, &tp);
-  double start_time = ts_to_double(&tp);
-  int16_t *buf_ptr = buffer + buffer_size * cur_buffer;
-  synth_unit->GetSamples(buffer_size, buf_ptr);
-  char buf[64];
-  //uint8_t *mem = new uint8_t[1024];
-  //delete[] mem;
-  //sprintf(buf, "%.6f", start_time);
-  clock_gettime(CLOCK_MONOTONIC, &tp);
-  double end_time = ts_to_double(&tp);
-  SLresult result = (*queueItf)->Enqueue(bq_player_buffer_queue,
-    buf_ptr, buffer_size * 2);
-  assert(SL_RESULT_SUCCESS == result);
-  cur_buffer = (cur_buffer + 1) % N_BUFFERS;
-  size_t i = 0;
-  buf[i++] = 't';
-  buf[i++] = 's';
-  buf[i++] = ' ';
-  i += simple_ftoa(buf + i, start_time);
-  buf[i++] = ' ';
-  i += simple_ftoa(buf + i, end_time);
-  buf[i++] = '\n';
-  buf[i] = 0;
-  if (i <= stats_ring_buffer->WriteBytesAvailable()) {
-    stats_ring_buffer->Write((const uint8_t *)buf, i);
-  }
-  // Could potentially defer writing indication of overrun, but probably
-  // not worth it.
+  int64_t now = ts_to_nanos(&tp);
+  if (engine->restarted) {
+    engine->restarted = false;
+    record.flags |= kStatsRestart;
+  } else if (now - engine->last_callback_nanos >
+      (int64_t)record.expected_gap_nanos * 3 / 2) {
+    record.flags |= queued == 0 ? kStatsUnderrun : kStatsLateCallback;
+  }
+  engine->last_callback_nanos = now;
+  if (engine->idle_timeout > 0 && engine->idle_time >= engine->idle_timeout &&
+      EngineIdle(engine) &&
+      SynthAtomicCompareAndSwap(&engine->player_state, kPlayerRunning,
+        kPlayerDraining)) {
+    // Input written since the check above found the player running, so its
+    // WakePlayer left it to us; from here on WakePlayer sees Draining.
+    if (!EngineIdle(engine)) {
+      SynthAtomicCompareAndSwap(&engine->player_state, kPlayerDraining,
+        kPlayerRunning);
+    }
+  }
+  if (engine->player_state == kPlayerDraining) {
+    // The last buffer out stops the player, unless WakePlayer got in first.
+    if (queued > 0 || SynthAtomicCompareAndSwap(&engine->player_state,
+        kPlayerDraining, kPlayerStopped)) {
+      return;
+    }
+  }
+  // After buffer_count has gone down, some callbacks just let the queue
+  // shrink; after it has gone up, extra buffers are queued right away.
+  if ((int)queued < engine->buffer_count) {
+    EnqueueBuffer(engine, &record);
+  }
+  PrimeQueue(engine);
+}
+
+// Undoes an idle stop, if there was one. Safe to call from any thread.
+static void WakePlayer(Engine *engine) {
+  while (true) {
+    if (SynthAtomicCompareAndSwap(&engine->player_state, kPlayerStopped,
+        kPlayerRunning)) {
+      // No callbacks are coming, so one is set off with a silent buffer.
+      // Rendering is left to it: once this is enqueued, callbacks may run
+      // at any time, and only they may touch the engine.
+      engine->queued_sizes[engine->queued_wr] = engine->buffer_size;
+      engine->queued_wr = (engine->queued_wr + 1) % N_BUFFERS;
+      engine->restarted = true;
+      SynthAtomicIncrement(&engine->buffers_queued);
+      SLAndroidSimpleBufferQueueItf queue = engine->player_buffer_queue;
+      SLresult result = (*queue)->Enqueue(queue, silence,
+        engine->buffer_size * 2);
+      assert(SL_RESULT_SUCCESS == result);
+      return;
+    }
+    if (engine->player_state == kPlayerRunning ||
+        SynthAtomicCompareAndSwap(&engine->player_state, kPlayerDraining,
+          kPlayerRunning)) {
+      return;
+    }
+  }
+}
+
+// Keeps the FIFO filled to ahead_bytes until the file ends or ahead_stop is
+// set.
+static void *AheadThread(void *arg) {
+  Engine *engine = (Engine *)arg;
+  RingBuffer *fifo = engine->ahead_fifo;
+  int chunk = engine->buffer_size;
+  int16_t buf[MAX_BUFFER_SIZE];
+  while (!engine->ahead_stop) {
+    if (fifo->BytesAvailable() + chunk * 2 > engine->ahead_bytes) {
+      engine->ahead_primed = true;
+      struct timespec sleepTime;
+      sleepTime.tv_sec = 0;
+      sleepTime.tv_nsec = 1000000;
+      nanosleep(&sleepTime, NULL);
+      continue;
+    }
+    int n = engine->ahead_renderer->Render(buf, chunk);
+    fifo->Write((const uint8_t *)buf, n * 2);
+    if (n < chunk) {
+      SynthMemoryBarrier();
+      engine->ahead_finished = true;
+      engine->ahead_primed = true;
+      break;
+    }
+  }
+  return NULL;
+}
+
+// Stops the render-ahead thread, if any, and has the callback flush what
+// it left in the FIFO.
+static void StopAhead(Engine *engine) {
+  if (!engine->ahead_thread_running) {
+    return;
+  }
+  engine->ahead_stop = true;
+  pthread_join(engine->ahead_thread, NULL);
+  engine->ahead_thread_running = false;
+  delete engine->ahead_renderer;
+  engine->ahead_renderer = NULL;
+  delete engine->ahead_file;
+  engine->ahead_file = NULL;
+  SynthAtomicCompareAndSwap(&engine->ahead_state, kAheadPlaying,
+    kAheadFlushing);
 }
 
 void CreateEngine() {
@@ -132,10 +550,53 @@ SLresult result;
   LOGI("engine started");
   }
 
+// Creates the shared OpenSL ES objects for the first user.
+static void AcquireSl() {
+  pthread_mutex_lock(&sl_lock);
+  if (sl_users++ == 0) {
+    CreateEngine();
+  }
+  pthread_mutex_unlock(&sl_lock);
+}
+
+// Destroys them after the last.
+static void ReleaseSl() {
+  pthread_mutex_lock(&sl_lock);
+  if (--sl_users == 0) {
+    if (outputMixObject != NULL) {
+      (*outputMixObject)->Destroy(outputMixObject);
+      outputMixObject = NULL;
+    }
+    if (engineObject != NULL) {
+      (*engineObject)->Destroy(engineObject);
+      engineObject = NULL;
+      engineEngine = NULL;
+    }
+  }
+  pthread_mutex_unlock(&sl_lock);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_initClass(JNIEnv *env,
+    jclass clazz) {
+  engine_field = env->GetFieldID(clazz, "engine_", "J");
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_create(JNIEnv *env,
+    jobject thiz) {
+  return (jlong)(intptr_t)new Engine;
+}
+
 extern "C" JNIEXPORT void JNICALL
 Java_com_levien_synthesizer_android_AndroidGlue_start(JNIEnv *env,
     jobject thiz, jint sample_rate, jint buf_size) {
-  CreateEngine();
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return;
+  }
+  AcquireSl();
   SLDataLocator_AndroidSimpleBufferQueue loc_bufq =
     {SL_DATALOCATOR_ANDROIDSIMPLEBUFFERQUEUE, N_BUFFERS};
   SLDataFormat_PCM format_pcm = {
@@ -151,32 +612,48 @@ Java_com_levien_synthesizer_android_AndroidGlue_start(JNIEnv *env,
   const SLInterfaceID ids[2] = {SL_IID_BUFFERQUEUE, SL_IID_VOLUME};
   const SLboolean req[2] = {SL_BOOLEAN_TRUE, SL_BOOLEAN_TRUE};
   SLresult result;
-  result = (*engineEngine)->CreateAudioPlayer(engineEngine, &bqPlayerObject,
-      &audio_src, &audio_sink, 2, ids, req);
+  result = (*engineEngine)->CreateAudioPlayer(engineEngine,
+      &engine->player_object, &audio_src, &audio_sink, 2, ids, req);
   assert(SL_RESULT_SUCCESS == result);
-  result = (*bqPlayerObject)->Realize(bqPlayerObject, SL_BOOLEAN_FALSE);
+  SLObjectItf player_object = engine->player_object;
+  result = (*player_object)->Realize(player_object, SL_BOOLEAN_FALSE);
   assert(SL_RESULT_SUCCESS == result);
-  result = (*bqPlayerObject)->GetInterface(bqPlayerObject, SL_IID_PLAY,
-      &bq_player_play);
+  result = (*player_object)->GetInterface(player_object, SL_IID_PLAY,
+      &engine->player_play);
   assert(SL_RESULT_SUCCESS == result);
-  result = (*bqPlayerObject)->GetInterface(bqPlayerObject, SL_IID_BUFFERQUEUE,
-      &bq_player_buffer_queue);
+  result = (*player_object)->GetInterface(player_object, SL_IID_BUFFERQUEUE,
+      &engine->player_buffer_queue);
   assert(SL_RESULT_SUCCESS == result);
 
-  result = (*bq_player_buffer_queue)->RegisterCallback(bq_player_buffer_queue,
-        &BqPlayerCallback, NULL);
+  SLAndroidSimpleBufferQueueItf queue = engine->player_buffer_queue;
+  result = (*queue)->RegisterCallback(queue, &BqPlayerCallback, engine);
   assert(SL_RESULT_SUCCESS == result);
 
-  buffer_size = buf_size;
-  SynthUnit::Init(sample_rate);
-  ring_buffer = new RingBuffer();
-  stats_ring_buffer = new RingBuffer();
-  synth_unit = new SynthUnit(ring_buffer);
-  for (int i = 0; i < N_BUFFERS - 1; ++i) {
-    BqPlayerCallback(bq_player_buffer_queue, NULL);
+  engine->sample_rate = sample_rate;
+  engine->buffer_size = buf_size;
+  engine->buffer_period = (double)buf_size / sample_rate;
+  if (engine->adaptive_buffering) {
+    engine->buffer_controller = new BufferController(buf_size,
+      MAX_BUFFER_SIZE, N_BUFFERS - 1);
   }
+  SynthUnit::Init(engine->autotune_kernels);
+  engine->midi_input = new MidiInput();
+  engine->stats_ring_buffer = new RingBuffer();
+  engine->stats_records = new RingBuffer();
+  engine->ahead_fifo = new RingBuffer();
+  char kernels_line[128];
+  int kernels_len = Kernels::describe(kernels_line, sizeof(kernels_line));
+  engine->stats_ring_buffer->Write((const uint8_t *)kernels_line,
+    kernels_len);
+  LOGI("%s", kernels_line);
+  engine->synth_unit = new SynthUnit(engine->midi_input, sample_rate);
+  engine->synth_unit->SetQuality(engine->quality);
+  engine->player_state = kPlayerRunning;
+  engine->buffers_queued = 0;
+  engine->idle_time = 0;
+  PrimeQueue(engine);
 
-  result = (*bq_player_play)->SetPlayState(bq_player_play,
+  result = (*engine->player_play)->SetPlayState(engine->player_play,
       SL_PLAYSTATE_PLAYING);
   assert(SL_RESULT_SUCCESS == result);
 }
@@ -185,43 +662,198 @@ extern "C" JNIEXPORT void JNICALL
 Java_com_levien_synthesizer_android_AndroidGlue_shutdown(JNIEnv *env,
     jobject thiz) {
   LOGI("shutting down engine");
-  if (bqPlayerObject != NULL) {
-    (*bqPlayerObject)->Destroy(bqPlayerObject);
-    bqPlayerObject = NULL;
-    bq_player_play = NULL;
-    bq_player_buffer_queue = NULL;
-  }
-  if (outputMixObject != NULL) {
-    (*outputMixObject)->Destroy(outputMixObject);
-    outputMixObject = NULL;
-  }
-  if (engineObject != NULL) {
-    (*engineObject)->Destroy(engineObject);
-    engineObject = NULL;
-    engineEngine = NULL;
-  }
-  delete ring_buffer;
-  ring_buffer = NULL;
-  delete stats_ring_buffer;
-  stats_ring_buffer = NULL;
-  delete synth_unit;
-  synth_unit = NULL;
+  // Detach the engine once no call is using it; later calls find it gone,
+  // so it can be freed without holding the lock.
+  pthread_rwlock_wrlock(&engine_lock);
+  Engine *engine = GetEngine(env, thiz);
+  env->SetLongField(thiz, engine_field, 0);
+  pthread_rwlock_unlock(&engine_lock);
+  if (engine == NULL) {
+    return;
+  }
+  if (engine->player_object != NULL) {
+    (*engine->player_object)->Destroy(engine->player_object);
+    ReleaseSl();
+  }
+  StopAhead(engine);
+  delete engine->ahead_fifo;
+  delete[] engine->bank_sysex;
+  delete engine->midi_input;
+  delete engine->stats_ring_buffer;
+  delete engine->stats_records;
+  delete engine->synth_unit;
+  delete engine->buffer_controller;
+  delete engine;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_setAutotuneKernels(
+    JNIEnv *env, jobject thiz, jboolean autotune) {
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return;
+  }
+  engine->autotune_kernels = autotune;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_setAdaptiveBuffering(
+    JNIEnv *env, jobject thiz, jboolean adaptive) {
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return;
+  }
+  engine->adaptive_buffering = adaptive;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_getBufferSize(JNIEnv *env,
+    jobject thiz) {
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return 0;
+  }
+  return engine->buffer_size;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_getBufferCount(JNIEnv *env,
+    jobject thiz) {
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return 0;
+  }
+  return engine->buffer_count;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_setQuality(
+    JNIEnv *env, jobject thiz, jint tier) {
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return;
+  }
+  if (tier >= 0 && tier < kNumQualities) {
+    engine->quality = (Quality)tier;
+    if (engine->synth_unit != NULL) {
+      engine->synth_unit->SetQuality(engine->quality);
+    }
+  }
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_setIdleTimeout(
+    JNIEnv *env, jobject thiz, jint millis) {
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return;
+  }
+  engine->idle_timeout = max(0, millis) * 0.001;
 }
 
 extern "C" JNIEXPORT void JNICALL
 Java_com_levien_synthesizer_android_AndroidGlue_sendMidi(JNIEnv *env,
     jobject thiz, jbyteArray jb) {
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return;
+  }
+  uint8_t *data = (uint8_t *)env->GetByteArrayElements(jb, NULL);
+  if (data != NULL) {
+    engine->midi_input->Write(data, env->GetArrayLength(jb));
+    env->ReleaseByteArrayElements(jb, (jbyte *)data, JNI_ABORT);
+    WakePlayer(engine);
+  }
+}
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_loadBank(JNIEnv *env,
+    jobject thiz, jbyteArray jb) {
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return JNI_FALSE;
+  }
+  jboolean result = JNI_FALSE;
   uint8_t *data = (uint8_t *)env->GetByteArrayElements(jb, NULL);
   if (data != NULL) {
-    ring_buffer->Write(data, env->GetArrayLength(jb));
+    WakePlayer(engine);
+    result = engine->synth_unit->LoadBank(data, env->GetArrayLength(jb));
+    if (result) {
+      if (engine->bank_sysex == NULL) {
+        engine->bank_sysex = new uint8_t[kBankSysexSize];
+      }
+      memcpy(engine->bank_sysex, data, kBankSysexSize);
+    }
     env->ReleaseByteArrayElements(jb, (jbyte *)data, JNI_ABORT);
   }
+  return result;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_setMidiOverflowPolicy(
+    JNIEnv *env, jobject thiz, jint lane, jint policy) {
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return;
+  }
+  if (lane >= 0 && lane < kNumMidiLanes && policy >= kOverflowDrop &&
+      policy <= kOverflowBlock) {
+    engine->midi_input->SetOverflowPolicy((MidiLane)lane,
+      (OverflowPolicy)policy);
+  }
+}
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_getMidiLaneStats(
+    JNIEnv *env, jobject thiz, jint lane, jintArray jstats) {
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return JNI_FALSE;
+  }
+  if (lane < 0 || lane >= kNumMidiLanes || env->GetArrayLength(jstats) < 4) {
+    return JNI_FALSE;
+  }
+  MidiLaneStats stats;
+  engine->midi_input->GetStats((MidiLane)lane, &stats);
+  jint values[4] = {
+    (jint)stats.written, (jint)stats.dropped, (jint)stats.coalesced,
+    (jint)stats.blocked
+  };
+  env->SetIntArrayRegion(jstats, 0, 4, values);
+  return JNI_TRUE;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_getPrunedKernels(
+    JNIEnv *env, jobject thiz) {
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return 0;
+  }
+  return (jint)engine->synth_unit->pruned_kernels();
 }
 
 extern "C" JNIEXPORT void JNICALL
 Java_com_levien_synthesizer_android_AndroidGlue_setPlayState(JNIEnv *env,
     jobject thiz, jboolean isPlaying) {
-  SLresult result = (*bq_player_play)->SetPlayState(bq_player_play,
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return;
+  }
+  SLPlayItf player_play = engine->player_play;
+  SLresult result = (*player_play)->SetPlayState(player_play,
       isPlaying ? SL_PLAYSTATE_PLAYING : SL_PLAYSTATE_PAUSED);
   assert(SL_RESULT_SUCCESS == result);
 }
@@ -229,12 +861,23 @@ Java_com_levien_synthesizer_android_AndroidGlue_setPlayState(JNIEnv *env,
 extern "C" JNIEXPORT jint JNICALL
 Java_com_levien_synthesizer_android_AndroidGlue_statsBytesAvailable(
     JNIEnv *env, jobject thiz) {
-  return stats_ring_buffer->BytesAvailable();
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return 0;
+  }
+  return engine->stats_ring_buffer->BytesAvailable();
 }
 
 extern "C" JNIEXPORT jint JNICALL
 Java_com_levien_synthesizer_android_AndroidGlue_readStatsBytes(
     JNIEnv *env, jobject thiz, jbyteArray jb, jint off, jint len) {
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return 0;
+  }
+  RingBuffer *stats_ring_buffer = engine->stats_ring_buffer;
   int bytes_available = stats_ring_buffer->BytesAvailable();
   int n = min(bytes_available, len);
   if (n) {
@@ -250,4 +893,283 @@ Java_com_levien_synthesizer_android_AndroidGlue_readStatsBytes(
     }
   }
   return n;
-}
\ No newline at end of file
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_readStatsRecords(
+    JNIEnv *env, jobject thiz, jobject jbuf) {
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return 0;
+  }
+  RingBuffer *stats_records = engine->stats_records;
+  uint8_t *buf = (uint8_t *)env->GetDirectBufferAddress(jbuf);
+  if (buf == NULL) {
+    env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"),
+      "AndroidGlue.readStatsRecords needs a direct buffer");
+    return 0;
+  }
+  int n = min(stats_records->BytesAvailable(),
+    (int)env->GetDirectBufferCapacity(jbuf)) / (int)sizeof(StatsRecord);
+  stats_records->Read(n * sizeof(StatsRecord), buf);
+  return n;
+}
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_getProfile(JNIEnv *env,
+    jobject thiz, jlongArray jstats, jboolean reset) {
+#ifdef SYNTH_PROFILE
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  const int kSize = 1 + 3 * kNumProfileStages;
+  if (engine == NULL || engine->synth_unit == NULL || env->GetArrayLength(jstats) < kSize) {
+    return JNI_FALSE;
+  }
+  Profiler *profiler = engine->synth_unit->profiler();
+  ProfileStats stats;
+  profiler->Read(&stats);
+  if (reset) {
+    profiler->Reset();
+  }
+  jlong values[kSize];
+  values[0] = stats.buffers;
+  for (int i = 0; i < kNumProfileStages; i++) {
+    values[1 + i] = stats.last[i];
+    values[1 + kNumProfileStages + i] = stats.total[i];
+    values[1 + 2 * kNumProfileStages + i] = stats.max[i];
+  }
+  env->SetLongArrayRegion(jstats, 0, kSize, values);
+  return JNI_TRUE;
+#else
+  return JNI_FALSE;
+#endif
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_createOfflineRender(
+    JNIEnv *env, jobject thiz, jbyteArray jmidi, jbyteArray jbank,
+    jint sample_rate) {
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return 0;
+  }
+  SynthUnit::Init(engine->autotune_kernels);
+  OfflineJob *job = new OfflineJob(sample_rate);
+  job->renderer.SetQuality(engine->quality);
+  bool ok = false;
+  uint8_t *data = (uint8_t *)env->GetByteArrayElements(jmidi, NULL);
+  if (data != NULL) {
+    ok = job->file.Parse(data, env->GetArrayLength(jmidi));
+    env->ReleaseByteArrayElements(jmidi, (jbyte *)data, JNI_ABORT);
+  }
+  if (ok && jbank != NULL) {
+    data = (uint8_t *)env->GetByteArrayElements(jbank, NULL);
+    ok = data != NULL && job->renderer.LoadBank(data,
+      env->GetArrayLength(jbank));
+    if (data != NULL) {
+      env->ReleaseByteArrayElements(jbank, (jbyte *)data, JNI_ABORT);
+    }
+  }
+  if (!ok) {
+    delete job;
+    return 0;
+  }
+  return (jlong)(intptr_t)job;
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_offlineRenderLength(
+    JNIEnv *env, jclass clazz, jlong handle) {
+  return ((OfflineJob *)(intptr_t)handle)->renderer.end_position();
+}
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_offlineRenderFinished(
+    JNIEnv *env, jclass clazz, jlong handle) {
+  return ((OfflineJob *)(intptr_t)handle)->renderer.Finished();
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_renderOfflineChunk(
+    JNIEnv *env, jclass clazz, jlong handle, jobject jbuf, jint offset,
+    jint max_samples) {
+  OfflineJob *job = (OfflineJob *)(intptr_t)handle;
+  uint8_t *buf = (uint8_t *)env->GetDirectBufferAddress(jbuf);
+  jlong capacity = env->GetDirectBufferCapacity(jbuf);
+  if (buf == NULL || offset < 0 || max_samples < 0 ||
+      offset + 2 * (jlong)max_samples > capacity) {
+    env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"),
+      "bad buffer in AndroidGlue.renderOfflineChunk");
+    return 0;
+  }
+  int n_samples = 0;
+  while (n_samples < max_samples) {
+    int n = min(max_samples - n_samples, (int)(sizeof(job->chunk) / 2));
+    int n_rendered = job->renderer.Render(job->chunk, n);
+    memcpy(buf + offset + 2 * n_samples, job->chunk, 2 * n_rendered);
+    n_samples += n_rendered;
+    if (n_rendered < n) {
+      break;
+    }
+  }
+  return n_samples;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_destroyOfflineRender(
+    JNIEnv *env, jclass clazz, jlong handle) {
+  delete (OfflineJob *)(intptr_t)handle;
+}
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_playFileAhead(JNIEnv *env,
+    jobject thiz, jbyteArray jmidi, jint ahead_millis) {
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return JNI_FALSE;
+  }
+  if (engine->synth_unit == NULL) {
+    return JNI_FALSE;
+  }
+  StopAhead(engine);
+  // Give the callback a chance to flush the last file.
+  for (int i = 0; i < 200 && engine->ahead_state != kAheadOff; i++) {
+    struct timespec sleepTime;
+    sleepTime.tv_sec = 0;
+    sleepTime.tv_nsec = 1000000;
+    nanosleep(&sleepTime, NULL);
+  }
+  if (engine->ahead_state != kAheadOff) {
+    return JNI_FALSE;
+  }
+  MidiFile *file = new MidiFile;
+  bool ok = false;
+  uint8_t *data = (uint8_t *)env->GetByteArrayElements(jmidi, NULL);
+  if (data != NULL) {
+    ok = file->Parse(data, env->GetArrayLength(jmidi));
+    env->ReleaseByteArrayElements(jmidi, (jbyte *)data, JNI_ABORT);
+  }
+  if (!ok) {
+    delete file;
+    return JNI_FALSE;
+  }
+  engine->ahead_file = file;
+  engine->ahead_renderer = new OfflineRenderer(file, engine->sample_rate);
+  engine->ahead_renderer->SetQuality(engine->quality);
+  if (engine->bank_sysex != NULL) {
+    engine->ahead_renderer->LoadBank(engine->bank_sysex, kBankSysexSize);
+  }
+  // The FIFO holds just under 64k bytes.
+  int max_bytes = 65536 - 2 * (MAX_BUFFER_SIZE + 1);
+  int bytes = (int)(max(0, ahead_millis) * 0.001 * engine->sample_rate) * 2;
+  // At least a buffer of the largest size, which the callback waits for.
+  engine->ahead_bytes = max(MAX_BUFFER_SIZE * 2, min(bytes, max_bytes));
+  engine->ahead_stop = false;
+  engine->ahead_primed = false;
+  engine->ahead_finished = false;
+  pthread_create(&engine->ahead_thread, NULL, AheadThread, engine);
+  engine->ahead_thread_running = true;
+  SynthMemoryBarrier();
+  engine->ahead_state = kAheadPlaying;
+  WakePlayer(engine);
+  return JNI_TRUE;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_stopFileAhead(JNIEnv *env,
+    jobject thiz) {
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return;
+  }
+  StopAhead(engine);
+}
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_loadSequence(JNIEnv *env,
+    jobject thiz, jobject jbuf, jint size) {
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return JNI_FALSE;
+  }
+  const uint8_t *data = (const uint8_t *)env->GetDirectBufferAddress(jbuf);
+  if (engine->synth_unit == NULL || data == NULL || size < 0 ||
+      size > env->GetDirectBufferCapacity(jbuf)) {
+    return JNI_FALSE;
+  }
+  WakePlayer(engine);
+  return engine->synth_unit->sequencer()->Load(data, size);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_playSequence(JNIEnv *env,
+    jobject thiz) {
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return;
+  }
+  if (engine->synth_unit != NULL) {
+    engine->synth_unit->sequencer()->Play();
+    WakePlayer(engine);
+  }
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_stopSequence(JNIEnv *env,
+    jobject thiz) {
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return;
+  }
+  if (engine->synth_unit != NULL) {
+    engine->synth_unit->sequencer()->Stop();
+    WakePlayer(engine);
+  }
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_seekSequence(JNIEnv *env,
+    jobject thiz, jlong tick) {
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return;
+  }
+  if (engine->synth_unit != NULL) {
+    engine->synth_unit->sequencer()->Seek(tick);
+    WakePlayer(engine);
+  }
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_setSequenceLoop(JNIEnv *env,
+    jobject thiz, jlong start_tick, jlong end_tick) {
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return;
+  }
+  if (engine->synth_unit != NULL) {
+    engine->synth_unit->sequencer()->SetLoop(start_tick, end_tick);
+    WakePlayer(engine);
+  }
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_levien_synthesizer_android_AndroidGlue_getSequenceTick(JNIEnv *env,
+    jobject thiz) {
+  EngineRef ref(env, thiz);
+  Engine *engine = ref.get();
+  if (engine == NULL) {
+    return 0;
+  }
+  return engine->synth_unit == NULL ? 0 :
+    engine->synth_unit->sequencer()->tick();
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "synth.h"
+#include "buffer_controller.h"
+
+// Glitches this soon after a change are ignored, as buffers queued with the
+// old setting may still be playing out.
+static const double kSettleTime = 0.5;
+
+// A step down that goes this long without a glitch has held.
+static const double kTrialTime = 2.0;
+
+// The stable period needed for a step down, to begin with and at most.
+static const double kStableTime = 10.0;
+static const double kMaxStableTime = 300.0;
+
+BufferController::BufferController(int min_size, int max_size,
+    int max_count) {
+  min_size_ = min_size;
+  max_size_ = max(min_size, max_size);
+  max_count_ = max(1, max_count);
+  buffer_size_ = min_size;
+  buffer_count_ = 1;
+  settle_time_ = 0;
+  calm_time_ = 0;
+  stable_time_ = kStableTime;
+  stepped_down_ = false;
+}
+
+bool BufferController::Update(double period, bool late, bool underrun) {
+  settle_time_ += period;
+  calm_time_ += period;
+  if (stepped_down_ && settle_time_ >= kTrialTime) {
+    stepped_down_ = false;
+    stable_time_ = max(stable_time_ / 2, kStableTime);
+  }
+  if (late || underrun) {
+    calm_time_ = 0;
+    if (settle_time_ < kSettleTime) {
+      return false;
+    }
+    if (stepped_down_) {
+      // The last step down went too far; wait longer before trying again.
+      stable_time_ = min(stable_time_ * 2, kMaxStableTime);
+      stepped_down_ = false;
+    }
+    bool can_grow = buffer_size_ < max_size_;
+    bool can_add = buffer_count_ < max_count_;
+    if (can_grow && (late || !can_add)) {
+      buffer_size_ = min(buffer_size_ * 2, max_size_);
+    } else if (can_add) {
+      buffer_count_++;
+    } else {
+      return false;
+    }
+    settle_time_ = 0;
+    return true;
+  }
+  if (calm_time_ < stable_time_) {
+    return false;
+  }
+  if (buffer_count_ == 1 && buffer_size_ == min_size_) {
+    // Nothing to step down to, but a run this long earns back a backoff.
+    stable_time_ = max(stable_time_ / 2, kStableTime);
+    calm_time_ = 0;
+    return false;
+  }
+  if (buffer_count_ > 1) {
+    buffer_count_--;
+  } else {
+    buffer_size_ = max(buffer_size_ / 2, min_size_);
+  }
+  stepped_down_ = true;
+  settle_time_ = 0;
+  calm_time_ = 0;
+  return true;
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef SYNTH_BUFFER_CONTROLLER_H_
+#define SYNTH_BUFFER_CONTROLLER_H_
+
+// Decides the size of the audio output buffers and how many are queued at
+// once, trading latency for robustness. It starts at the lowest latency,
+// and each glitch steps it up: a buffer that took too long to render calls
+// for bigger buffers, a callback that came too late for more of them. The
+// latency only comes back down, a step at a time, after a stable period.
+// That period doubles whenever a step down turns out to be too far, and
+// halves again, down to its starting value, when one holds or after a
+// stable run at the lowest latency.
+class BufferController {
+ public:
+  BufferController(int min_size, int max_size, int max_count);
+
+  // Feeds the outcome of the last buffer: its period in seconds, whether it
+  // took longer than that to render, and whether the callback for it came
+  // so late that the output likely ran dry. Returns whether the setting
+  // changed.
+  bool Update(double period, bool late, bool underrun);
+
+  // Frames per buffer.
+  int buffer_size() const { return buffer_size_; }
+
+  // Buffers queued ahead of the one playing.
+  int buffer_count() const { return buffer_count_; }
+
+ private:
+  int min_size_;
+  int max_size_;
+  int max_count_;
+  int buffer_size_;
+  int buffer_count_;
+
+  // Seconds of audio since the setting last changed, and since the last
+  // glitch.
+  double settle_time_;
+  double calm_time_;
+  // How long to go without a glitch before stepping down.
+  double stable_time_;
+  // Whether the last change was a step down that a glitch could still show
+  // was too far.
+  bool stepped_down_;
+};
+
+#endif  // SYNTH_BUFFER_CONTROLLER_H_
@@ -4,21 +4,40 @@
       'target_name': 'core',
       'type': 'static_library',
       'sources': [
+        'buffer_controller.cc',
         'dx7note.cc',
         'env.cc',
         'exp2.cc',
         'fm_core.cc',
         'fm_op_kernel.cc',
+        'fm_op_kernel_x86.cc',
+        'fir.cc',
         'freqlut.cc',
+        'iir.cc',
+        'kernels.cc',
         'lfo.cc',
+        'load_governor.cc',
         'log2.cc',
+        'midi_file.cc',
+        'midi_input.cc',
+        'midi_queue.cc',
+        'offline_renderer.cc',
+        'parallel_renderer.cc',
         'patch.cc',
         'pitchenv.cc',
+        'profiler.cc',
+        'rate_tables.cc',
         'resofilter.cc',
         'ringbuffer.cc',
         'sawtooth.cc',
+        'sequencer.cc',
         'sin.cc',
         'synth_unit.cc',
+        'test_buffer_controller.cc',
+        'test_fm_kernel.cc',
+        'test_midi_input.cc',
+        'test_midi_queue.cc',
+        'test_sequencer.cc',
         'test_ringbuffer.cc',
       ],
       'include_dirs': ['.'],
@@ -28,8 +47,8 @@
       'type': 'executable',
       'sources': [
         'test_filter.cc',
-        'fir.cc',
       ],
+      'dependencies': ['core'],
     }
   ],
 }
@@ -18,8 +18,8 @@
 #include <iostream>
 #endif
 #include <math.h>
+#include <string.h>
 #include "synth.h"
-#include "freqlut.h"
 #include "patch.h"
 #include "exp2.h"
 #include "controllers.h"
@@ -41,12 +41,14 @@ const int32_t coarsemul[] = {
   81503396, 82323963, 83117622
 };
 
-int32_t osc_freq(int midinote, int mode, int coarse, int fine, int detune) {
+// Returns the part of the operator frequency that doesn't depend on the key.
+// In ratio mode (mode 0) this is an offset to be added to the key's logfreq;
+// in fixed mode it is the absolute logfreq.
+int32_t osc_freq(int mode, int coarse, int fine, int detune) {
   // TODO: pitch randomization
   int32_t logfreq;
   if (mode == 0) {
-    logfreq = midinote_to_logfreq(midinote);
-    logfreq += coarsemul[coarse & 31];
+    logfreq = coarsemul[coarse & 31];
     if (fine) {
       // (1 << 24) / log(2)
       logfreq += (int32_t)floor(24204406.323123 * log(1 + 0.01 * fine) + 0.5);
@@ -92,6 +94,15 @@ int ScaleRate(int midinote, int sensitivity) {
   return qratedelta;
 }
 
+void RampDown(FmOpParams params[6], int algorithm) {
+  int carriers = FmCore::carriers(algorithm);
+  for (int op = 0; op < 6; op++) {
+    if (carriers & (1 << op)) {
+      params[op].gain[1] = 0;
+    }
+  }
+}
+
 const uint8_t exp_scale_data[] = {
   0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 11, 14, 16, 19, 23, 27, 33, 39, 47, 56, 66,
   80, 94, 110, 126, 142, 158, 174, 190, 206, 222, 238, 250
@@ -128,50 +139,31 @@ static const uint8_t pitchmodsenstab[] = {
   0, 10, 20, 33, 55, 92, 153, 255
 };
 
-void Dx7Note::init(const char patch[156], int midinote, int velocity) {
-  int rates[4];
-  int levels[4];
+void Dx7Patch::init(const char patch[156]) {
+  memcpy(unpacked_, patch, sizeof(unpacked_));
   for (int op = 0; op < 6; op++) {
     int off = op * 21;
+    Dx7OpPatch &p = op_[op];
     for (int i = 0; i < 4; i++) {
-      rates[i] = patch[off + i];
-      levels[i] = patch[off + 4 + i];
-    }
-    int outlevel = patch[off + 16];
-    outlevel = Env::scaleoutlevel(outlevel);
-#ifdef VERBOSE
-    for (int j = 8; j < 12; j++) {
-      cout << (int)patch[off + j] << " ";
+      p.rates[i] = patch[off + i];
+      p.levels[i] = patch[off + 4 + i];
     }
-#endif
-    int level_scaling = ScaleLevel(midinote, patch[off + 8], patch[off + 9],
-        patch[off + 10], patch[off + 11], patch[off + 12]);
-    outlevel += level_scaling;
-    outlevel = min(127, outlevel);
-#ifdef VERBOSE
-    cout << op << ": " << level_scaling << " " << outlevel << endl;
-#endif
-    outlevel = outlevel << 5;
-    outlevel += ScaleVelocity(velocity, patch[off + 15]);
-    outlevel = max(0, outlevel);
-    int rate_scaling = ScaleRate(midinote, patch[off + 13]);
-    env_[op].init(rates, levels, outlevel, rate_scaling);
-
-    int mode = patch[off + 17];
-    int coarse = patch[off + 18];
-    int fine = patch[off + 19];
-    int detune = patch[off + 20];
-    int32_t freq = osc_freq(midinote, mode, coarse, fine, detune);
-    basepitch_[op] = freq;
-    // cout << op << " freq: " << freq << endl;
-    params_[op].phase = 0;
-    params_[op].gain[1] = 0;
+    p.outlevel = Env::scaleoutlevel(patch[off + 16]);
+    p.break_pt = patch[off + 8];
+    p.left_depth = patch[off + 9];
+    p.right_depth = patch[off + 10];
+    p.left_curve = patch[off + 11];
+    p.right_curve = patch[off + 12];
+    p.rate_sens = patch[off + 13];
+    p.vel_sens = patch[off + 15];
+    p.mode = patch[off + 17];
+    p.freq = osc_freq(p.mode, patch[off + 18], patch[off + 19],
+        patch[off + 20]);
   }
   for (int i = 0; i < 4; i++) {
-    rates[i] = patch[126 + i];
-    levels[i] = patch[130 + i];
+    pitch_rates_[i] = patch[126 + i];
+    pitch_levels_[i] = patch[130 + i];
   }
-  pitchenv_.set(rates, levels);
   algorithm_ = patch[134];
   int feedback = patch[135];
   fb_shift_ = feedback != 0 ? 8 - feedback : 16;
@@ -179,9 +171,101 @@ void Dx7Note::init(const char patch[156], int midinote, int velocity) {
   pitchmodsens_ = pitchmodsenstab[patch[143] & 7];
 }
 
-void Dx7Note::compute(int32_t *buf, int32_t lfo_val, int32_t lfo_delay,
+void Dx7Patch::compile(const char bulk[128]) {
+  char unpacked[156];
+  UnpackPatch(bulk, unpacked);
+  init(unpacked);
+}
+
+int Dx7Patch::release_samples() const {
+  // Envelope levels stay below 1 << 28, and rate scaling only ever makes
+  // the release faster.
+  const int32_t kMaxLevel = 1 << 28;
+  int carriers = FmCore::carriers(algorithm_);
+  int samples = 0;
+  for (int op = 0; op < 6; op++) {
+    if (carriers & (1 << op)) {
+      if (op_[op].levels[3] != 0) {
+        return -1;
+      }
+      int inc = Env::rateinc(op_[op].rates[3], 0);
+      samples = max(samples, (kMaxLevel + inc - 1) / inc);
+    }
+  }
+  return samples;
+}
+
+int ScaleOutlevel(const Dx7OpPatch &p, int midinote, int velocity) {
+  int outlevel = p.outlevel;
+  int level_scaling = ScaleLevel(midinote, p.break_pt, p.left_depth,
+      p.right_depth, p.left_curve, p.right_curve);
+  outlevel += level_scaling;
+  outlevel = min(127, outlevel);
+#ifdef VERBOSE
+  cout << level_scaling << " " << outlevel << endl;
+#endif
+  outlevel = outlevel << 5;
+  outlevel += ScaleVelocity(velocity, p.vel_sens);
+  return max(0, outlevel);
+}
+
+Dx7Note::Dx7Note(const RateTables *tables) {
+  tables_ = tables;
+  // The feedback state carries over from note to note.
+  fb_buf_[0] = 0;
+  fb_buf_[1] = 0;
+}
+
+void Dx7Note::init(const Dx7Patch &patch, int midinote, int velocity,
+    Quality quality) {
+  int32_t keyfreq = midinote_to_logfreq(midinote);
+  for (int op = 0; op < 6; op++) {
+    const Dx7OpPatch &p = patch.op_[op];
+    int outlevel = ScaleOutlevel(p, midinote, velocity);
+    int rate_scaling = ScaleRate(midinote, p.rate_sens);
+    env_[op].init(p.rates, p.levels, outlevel, rate_scaling);
+
+    basepitch_[op] = p.mode == 0 ? keyfreq + p.freq : p.freq;
+    params_[op].phase = 0;
+    params_[op].gain[1] = 0;
+  }
+  pitchenv_.set(patch.pitch_rates_, patch.pitch_levels_, tables_);
+  algorithm_ = patch.algorithm_;
+  fb_shift_ = patch.fb_shift_;
+  pitchmoddepth_ = patch.pitchmoddepth_;
+  pitchmodsens_ = patch.pitchmodsens_;
+  quality_ = quality;
+  held_ = false;
+  dirty_ = true;
+  fading_ = false;
+  faded_ = false;
+}
+
+void Dx7Note::init(const char patch[156], int midinote, int velocity) {
+  Dx7Patch compiled;
+  compiled.init(patch);
+  init(compiled, midinote, velocity);
+}
+
+int Dx7Note::compute(int32_t *buf, int n, int32_t lfo_val, int32_t lfo_delay,
   const Controllers *ctrls) {
-  int32_t pitchmod = pitchenv_.getsample();
+  if (held_) {
+    held_ = false;
+    for (int op = 0; op < 6; op++) {
+      params_[op].gain[0] = params_[op].gain[1];
+      params_[op].gain[1] = gain_next_[op];
+    }
+    if (fading_) {
+      RampDown(params_, algorithm_);
+      fading_ = false;
+      faded_ = true;
+    }
+    return core_.compute(buf, n, params_, algorithm_, fb_buf_, fb_shift_,
+      quality_);
+  }
+  bool halfrate = quality_ == kQualityEconomy;
+  int control_n = halfrate ? 2 * n : n;
+  int32_t pitchmod = pitchenv_.getsample(control_n);
   uint32_t pmd = pitchmoddepth_ * lfo_delay;  // Q32
   // TODO: add modulation sources (mod wheel, etc)
   int32_t senslfo = pitchmodsens_ * (lfo_val - (1 << 23));
@@ -191,15 +275,74 @@ void Dx7Note::compute(int32_t *buf, int32_t lfo_val, int32_t lfo_delay,
   int pitchbend = ctrls->values_[kControllerPitch];
   int32_t pb = (pitchbend - 0x2000) << 9;
   pitchmod += pb;
+  bool pitch_changed = dirty_ || pitchmod != last_pitchmod_;
+  const Freqlut &freqlut = tables_->freqlut();
+  last_pitchmod_ = pitchmod;
   for (int op = 0; op < 6; op++) {
     params_[op].gain[0] = params_[op].gain[1];
-    int32_t level = env_[op].getsample();
-    int32_t gain = Exp2::lookup(level - (14 * (1 << 24)));
-    //int32_t gain = pow(2, 10 + level * (1.0 / (1 << 24)));
-    params_[op].freq = Freqlut::lookup(basepitch_[op] + pitchmod);
+    int32_t level = env_[op].getsample(control_n);
+    if (dirty_ || level != last_level_[op]) {
+      last_level_[op] = level;
+      last_gain_[op] = Exp2::lookup(level - (14 * (1 << 24)));
+      //int32_t gain = pow(2, 10 + level * (1.0 / (1 << 24)));
+    }
+    int32_t gain = last_gain_[op];
+    if (pitch_changed) {
+      params_[op].freq = freqlut.lookup(basepitch_[op] + pitchmod);
+    }
+    if (halfrate) {
+      // halfway there this block, the rest in the next
+      gain_next_[op] = gain;
+      gain = params_[op].gain[0] + ((gain - params_[op].gain[0]) >> 1);
+    }
     params_[op].gain[1] = gain;
   }
-  core_.compute(buf, params_, algorithm_, fb_buf_, fb_shift_);
+  held_ = halfrate;
+  dirty_ = false;
+  if (fading_) {
+    RampDown(params_, algorithm_);
+    held_ = false;
+    fading_ = false;
+    faded_ = true;
+  }
+  return core_.compute(buf, n, params_, algorithm_, fb_buf_, fb_shift_,
+    quality_);
+}
+
+int32_t Dx7Note::level() const {
+  int carriers = FmCore::carriers(algorithm_);
+  int32_t level = 0;
+  for (int op = 0; op < 6; op++) {
+    if (carriers & (1 << op)) {
+      level += params_[op].gain[1];
+    }
+  }
+  return level;
+}
+
+bool Dx7Note::silent() const {
+  if (faded_) {
+    return true;
+  }
+  int carriers = FmCore::carriers(algorithm_);
+  for (int op = 0; op < 6; op++) {
+    if ((carriers & (1 << op)) && (!env_[op].finished() ||
+        params_[op].gain[1] >= FmCore::kLevelThresh)) {
+      return false;
+    }
+  }
+  return true;
+}
+
+void Dx7Note::fade() {
+  if (!faded_) {
+    fading_ = true;
+  }
+}
+
+void Dx7Note::reset_feedback() {
+  fb_buf_[0] = 0;
+  fb_buf_[1] = 0;
 }
 
 void Dx7Note::keyup() {
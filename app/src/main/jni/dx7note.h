@@ -26,18 +26,108 @@
 #include "env.h"
 #include "pitchenv.h"
 #include "fm_core.h"
+#include "rate_tables.h"
+
+// Per-operator parameters that don't depend on key or velocity.
+struct Dx7OpPatch {
+  int rates[4];
+  int levels[4];
+  int outlevel;  // already scaled by Env::scaleoutlevel
+  int break_pt;
+  int left_depth;
+  int right_depth;
+  int left_curve;
+  int right_curve;
+  int rate_sens;
+  int vel_sens;
+  int mode;
+  // Log frequency (Q24/octave). Relative to the key in ratio mode, absolute
+  // in fixed mode.
+  int32_t freq;
+};
+
+// A patch compiled for fast note-on. This holds the unpacked patch along
+// with everything that can be derived from it independently of the key and
+// velocity, so it only needs to be built when the patch data changes.
+class Dx7Patch {
+ public:
+  void init(const char unpacked[156]);
+  void compile(const char bulk[128]);
+
+  const char *unpacked() const { return unpacked_; }
+  const char *name() const { return unpacked_ + 145; }
+
+  // An upper bound on the number of samples a note takes to die away once
+  // released, or -1 if it may never do so (a carrier's release level isn't
+  // zero).
+  int release_samples() const;
+
+ private:
+  friend class Dx7Note;
+
+  char unpacked_[156];
+  Dx7OpPatch op_[6];
+  int pitch_rates_[4];
+  int pitch_levels_[4];
+  int algorithm_;
+  int32_t fb_shift_;
+  int pitchmoddepth_;
+  int pitchmodsens_;
+};
+
+int32_t midinote_to_logfreq(int midinote);
+
+// The envelope outlevel of an operator for a key and velocity, in
+// microsteps (see Env::init).
+int ScaleOutlevel(const Dx7OpPatch &p, int midinote, int velocity);
+
+// qRate units added to the operator's envelope rates for a key.
+int ScaleRate(int midinote, int sensitivity);
+
+// Sets a voice's carrier gains to fall to zero over the coming block, which
+// FmCore ramps to from the gains of the last one. Modulators are left as
+// they are.
+void RampDown(FmOpParams params[6], int algorithm);
 
 class Dx7Note {
  public:
-  void init(const char patch[128], int midinote, int velocity);
+  explicit Dx7Note(const RateTables *tables);
 
+  // The quality tier is fixed for the life of the note.
+  void init(const Dx7Patch &patch, int midinote, int velocity,
+    Quality quality = kQualityStandard);
+
+  // Convenience for one-off notes; compiles the patch on every call.
+  void init(const char patch[156], int midinote, int velocity);
+
+  // Renders a block of n samples, n <= MAX_N.
   // Note: this _adds_ to the buffer. Interesting question whether it's
-  // worth it...
-  void compute(int32_t *buf, int32_t lfo_val, int32_t lfo_delay,
+  // worth it... Returns the number of operator kernels pruned (see
+  // FmCore::compute).
+  int compute(int32_t *buf, int n, int32_t lfo_val, int32_t lfo_delay,
     const Controllers *ctrls);
 
   void keyup();
 
+  // Ramps the note's output down to nothing over the next block, after
+  // which it's silent. For stopping a note that's still sounding without
+  // a click.
+  void fade();
+
+  // The feedback operator's last outputs carry over from note to note;
+  // this clears them.
+  void reset_feedback();
+
+  int algorithm() const { return algorithm_; }
+
+  // Rough loudness: the sum of the carrier gains at the end of the last
+  // block.
+  int32_t level() const;
+
+  // Whether the note has been released and its carriers have died away, so
+  // it will never be heard again.
+  bool silent() const;
+
   // TODO: parameter changes
 
   // TODO: some way of indicating end-of-note. Maybe should be a return
@@ -46,6 +136,7 @@ class Dx7Note {
   // keyup, that won't work.
 
  private:
+  const RateTables *tables_;
   FmCore core_;
   Env env_[6];
   FmOpParams params_[6];
@@ -57,6 +148,25 @@ class Dx7Note {
   int algorithm_;
   int pitchmoddepth_;
   int pitchmodsens_;
+
+  Quality quality_;
+  // At economy quality the controls are updated for two blocks at a time;
+  // held_ is set between the two, and gain_next_ has the gains to ramp to
+  // in the second.
+  bool held_;
+  int32_t gain_next_[6];
+
+  // Gains and frequencies are only recomputed when the envelope level or
+  // the pitch modulation they come from has changed, or on the first block
+  // (when dirty_ is set).
+  int32_t last_level_[6];
+  int32_t last_gain_[6];
+  int32_t last_pitchmod_;
+  bool dirty_;
+
+  // Set by fade until the block that ramps down, and after it.
+  bool fading_;
+  bool faded_;
 };
 
 #endif  // SYNTH_DX7NOTE_H_
@@ -31,31 +31,39 @@ void Env::init(const int r[4], const int l[4], int32_t ol, int rate_scaling) {
   advance(0);
 }
 
-int32_t Env::getsample() {
-  if (ix_ < 3 || (ix_ < 4) && !down_) {
-    if (rising_) {
-      const int jumptarget = 1716;
-      if (level_ < (jumptarget << 16)) {
-        level_ = jumptarget << 16;
-      }
-      level_ += (((17 << 24) - level_) >> 24) * inc_;
-      // TODO: should probably be more accurate when inc is large
-      if (level_ >= targetlevel_) {
-        level_ = targetlevel_;
-        advance(ix_ + 1);
-      }
-    } else {  // !rising
-      level_ -= inc_;
-      if (level_ <= targetlevel_) {
-        level_ = targetlevel_;
-        advance(ix_ + 1);
-      }
-    }
+int32_t Env::getsample(int n) {
+  if (running(ix_, down_) && step(&level_, targetlevel_, inc_, rising_, n)) {
+    advance(ix_ + 1);
   }
   // TODO: this would be a good place to set level to 0 when under threshold
   return level_;
 }
 
+bool Env::step(int32_t *level, int32_t target, int inc, bool rising, int n) {
+  if (rising) {
+    const int jumptarget = 1716;
+    if (*level < (jumptarget << 16)) {
+      *level = jumptarget << 16;
+    }
+    // 64 bits because large blocks can overshoot past the int range
+    int64_t next = *level +
+      (int64_t)(((17 << 24) - *level) >> 24) * inc * n;
+    // TODO: should probably be more accurate when inc is large
+    if (next >= target) {
+      *level = target;
+      return true;
+    }
+    *level = next;
+  } else {  // !rising
+    *level -= inc * n;
+    if (*level <= target) {
+      *level = target;
+      return true;
+    }
+  }
+  return false;
+}
+
 void Env::keydown(bool d) {
   if (down_ != d) {
     down_ = d;
@@ -80,22 +88,27 @@ int Env::scaleoutlevel(int outlevel) {
   return outlevel >= 20 ? 28 + outlevel : levellut[outlevel];
 }
 
+int32_t Env::targetlevel(int level, int outlevel) {
+  int actuallevel = scaleoutlevel(level) >> 1;
+  actuallevel = (actuallevel << 6) + outlevel - 4256;
+  actuallevel = actuallevel < 16 ? 16 : actuallevel;
+  // level here is same as Java impl
+  return actuallevel << 16;
+}
+
+int Env::rateinc(int rate, int rate_scaling) {
+  int qrate = (rate * 41) >> 6;
+  qrate += rate_scaling;
+  qrate = min(qrate, 63);
+  return (4 + (qrate & 3)) << (2 + (qrate >> 2));
+}
+
 void Env::advance(int newix) {
   ix_ = newix;
   if (ix_ < 4) {
-    int newlevel = levels_[ix_];
-    int actuallevel = scaleoutlevel(newlevel) >> 1;
-    actuallevel = (actuallevel << 6) + outlevel_ - 4256;
-    actuallevel = actuallevel < 16 ? 16 : actuallevel;
-    // level here is same as Java impl
-    targetlevel_ = actuallevel << 16;
+    targetlevel_ = targetlevel(levels_[ix_], outlevel_);
     rising_ = (targetlevel_ > level_);
-
-    // rate
-    int qrate = (rates_[ix_] * 41) >> 6;
-    qrate += rate_scaling_;
-    qrate = min(qrate, 63);
-    inc_ = (4 + (qrate & 3)) << (2 + LG_N + (qrate >> 2));
+    inc_ = rateinc(rates_[ix_], rate_scaling_);
   }
 }
 
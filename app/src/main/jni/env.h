@@ -29,18 +29,39 @@ class Env {
   void init(const int rates[4], const int levels[4], int outlevel,
       int rate_scaling);
 
-  // Result is in Q24/doubling log format. Also, result is subsampled
-  // for every N samples.
+  // Result is in Q24/doubling log format. Also, result is subsampled:
+  // call once for every block of n samples.
   // A couple more things need to happen for this to be used as a gain
   // value. First, the # of outputs scaling needs to be applied. Also,
   // modulation.
   // Then, of course, log to linear.
-  int32_t getsample();
+  int32_t getsample(int n);
 
   void keydown(bool down);
+
+  // Whether the release stage has run its course.
+  bool finished() const { return ix_ == 4; }
   void setparam(int param, int value);
   static int scaleoutlevel(int outlevel);
+
+  // The level a stage heads for, in the units of getsample, given the
+  // stage's DX7 level (0..99) and the outlevel passed to init.
+  static int32_t targetlevel(int level, int outlevel);
+
+  // The per-sample increment of a stage, given its DX7 rate (0..99).
+  static int rateinc(int rate, int rate_scaling);
  private:
+  // The stage logic of getsample. Whether stage ix is still moving, given
+  // the key state.
+  static bool running(int ix, bool down) {
+    return ix < 3 || (ix < 4 && !down);
+  }
+
+  // Moves level toward the stage's target over n samples. Returns true
+  // when it has got there, and the next stage should begin.
+  static bool step(int32_t *level, int32_t target, int inc, bool rising,
+      int n);
+
   int rates_[4];
   int levels_[4];
   int outlevel_;
@@ -52,7 +73,7 @@ class Env {
   int targetlevel_;
   bool rising_;
   int ix_;
-  int inc_;
+  int inc_;  // per sample
 
   bool down_;
 
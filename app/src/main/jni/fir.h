@@ -14,12 +14,17 @@
  * limitations under the License.
  */
 
+#ifndef SYNTH_FIR_H_
+#define SYNTH_FIR_H_
+
 // move to generic utility file?
 void *malloc_aligned(size_t alignment, size_t nbytes);
 
 // Abstract class
 template <typename T, typename U> class FirFilter {
  public:
+  virtual ~FirFilter() {}
+
   // preconditions:
   // in + (nk - 1) is aligned to 128 bits
   // out is aligned to 128 bits
@@ -90,3 +95,5 @@ class SseFirFilter : public FirFilter<float, float> {
 };
 
 #endif  // __SSE2__
+
+#endif  // SYNTH_FIR_H_
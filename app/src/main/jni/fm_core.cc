@@ -20,6 +20,7 @@
 
 #include "synth.h"
 #include "fm_op_kernel.h"
+#include "kernels.h"
 #include "fm_core.h"
 
 using namespace std;
@@ -43,39 +44,46 @@ struct FmAlgorithm {
   int ops[6];
 };
 
+// Each entry is the flags for operators 6 down to 1.
+#define FM_ALGORITHMS(X) \
+  X(0xc1, 0x11, 0x11, 0x14, 0x01, 0x14) /* 1 */ \
+  X(0x01, 0x11, 0x11, 0x14, 0xc1, 0x14) /* 2 */ \
+  X(0xc1, 0x11, 0x14, 0x01, 0x11, 0x14) /* 3 */ \
+  X(0x41, 0x11, 0x94, 0x01, 0x11, 0x14) /* 4 */ \
+  X(0xc1, 0x14, 0x01, 0x14, 0x01, 0x14) /* 5 */ \
+  X(0x41, 0x94, 0x01, 0x14, 0x01, 0x14) /* 6 */ \
+  X(0xc1, 0x11, 0x05, 0x14, 0x01, 0x14) /* 7 */ \
+  X(0x01, 0x11, 0xc5, 0x14, 0x01, 0x14) /* 8 */ \
+  X(0x01, 0x11, 0x05, 0x14, 0xc1, 0x14) /* 9 */ \
+  X(0x01, 0x05, 0x14, 0xc1, 0x11, 0x14) /* 10 */ \
+  X(0xc1, 0x05, 0x14, 0x01, 0x11, 0x14) /* 11 */ \
+  X(0x01, 0x05, 0x05, 0x14, 0xc1, 0x14) /* 12 */ \
+  X(0xc1, 0x05, 0x05, 0x14, 0x01, 0x14) /* 13 */ \
+  X(0xc1, 0x05, 0x11, 0x14, 0x01, 0x14) /* 14 */ \
+  X(0x01, 0x05, 0x11, 0x14, 0xc1, 0x14) /* 15 */ \
+  X(0xc1, 0x11, 0x02, 0x25, 0x05, 0x14) /* 16 */ \
+  X(0x01, 0x11, 0x02, 0x25, 0xc5, 0x14) /* 17 */ \
+  X(0x01, 0x11, 0x11, 0xc5, 0x05, 0x14) /* 18 */ \
+  X(0xc1, 0x14, 0x14, 0x01, 0x11, 0x14) /* 19 */ \
+  X(0x01, 0x05, 0x14, 0xc1, 0x14, 0x14) /* 20 */ \
+  X(0x01, 0x14, 0x14, 0xc1, 0x14, 0x14) /* 21 */ \
+  X(0xc1, 0x14, 0x14, 0x14, 0x01, 0x14) /* 22 */ \
+  X(0xc1, 0x14, 0x14, 0x01, 0x14, 0x04) /* 23 */ \
+  X(0xc1, 0x14, 0x14, 0x14, 0x04, 0x04) /* 24 */ \
+  X(0xc1, 0x14, 0x14, 0x04, 0x04, 0x04) /* 25 */ \
+  X(0xc1, 0x05, 0x14, 0x01, 0x14, 0x04) /* 26 */ \
+  X(0x01, 0x05, 0x14, 0xc1, 0x14, 0x04) /* 27 */ \
+  X(0x04, 0xc1, 0x11, 0x14, 0x01, 0x14) /* 28 */ \
+  X(0xc1, 0x14, 0x01, 0x14, 0x04, 0x04) /* 29 */ \
+  X(0x04, 0xc1, 0x11, 0x14, 0x04, 0x04) /* 30 */ \
+  X(0xc1, 0x14, 0x04, 0x04, 0x04, 0x04) /* 31 */ \
+  X(0xc4, 0x04, 0x04, 0x04, 0x04, 0x04) /* 32 */
+
+#define FM_ALGORITHM_ENTRY(f0, f1, f2, f3, f4, f5) \
+  { { f0, f1, f2, f3, f4, f5 } },
+
 const FmAlgorithm algorithms[32] = {
-  { { 0xc1, 0x11, 0x11, 0x14, 0x01, 0x14 } }, // 1
-  { { 0x01, 0x11, 0x11, 0x14, 0xc1, 0x14 } }, // 2
-  { { 0xc1, 0x11, 0x14, 0x01, 0x11, 0x14 } }, // 3
-  { { 0x41, 0x11, 0x94, 0x01, 0x11, 0x14 } }, // 4
-  { { 0xc1, 0x14, 0x01, 0x14, 0x01, 0x14 } }, // 5
-  { { 0x41, 0x94, 0x01, 0x14, 0x01, 0x14 } }, // 6
-  { { 0xc1, 0x11, 0x05, 0x14, 0x01, 0x14 } }, // 7
-  { { 0x01, 0x11, 0xc5, 0x14, 0x01, 0x14 } }, // 8
-  { { 0x01, 0x11, 0x05, 0x14, 0xc1, 0x14 } }, // 9
-  { { 0x01, 0x05, 0x14, 0xc1, 0x11, 0x14 } }, // 10
-  { { 0xc1, 0x05, 0x14, 0x01, 0x11, 0x14 } }, // 11
-  { { 0x01, 0x05, 0x05, 0x14, 0xc1, 0x14 } }, // 12
-  { { 0xc1, 0x05, 0x05, 0x14, 0x01, 0x14 } }, // 13
-  { { 0xc1, 0x05, 0x11, 0x14, 0x01, 0x14 } }, // 14
-  { { 0x01, 0x05, 0x11, 0x14, 0xc1, 0x14 } }, // 15
-  { { 0xc1, 0x11, 0x02, 0x25, 0x05, 0x14 } }, // 16
-  { { 0x01, 0x11, 0x02, 0x25, 0xc5, 0x14 } }, // 17
-  { { 0x01, 0x11, 0x11, 0xc5, 0x05, 0x14 } }, // 18
-  { { 0xc1, 0x14, 0x14, 0x01, 0x11, 0x14 } }, // 19
-  { { 0x01, 0x05, 0x14, 0xc1, 0x14, 0x14 } }, // 20
-  { { 0x01, 0x14, 0x14, 0xc1, 0x14, 0x14 } }, // 21
-  { { 0xc1, 0x14, 0x14, 0x14, 0x01, 0x14 } }, // 22
-  { { 0xc1, 0x14, 0x14, 0x01, 0x14, 0x04 } }, // 23
-  { { 0xc1, 0x14, 0x14, 0x14, 0x04, 0x04 } }, // 24
-  { { 0xc1, 0x14, 0x14, 0x04, 0x04, 0x04 } }, // 25
-  { { 0xc1, 0x05, 0x14, 0x01, 0x14, 0x04 } }, // 26
-  { { 0x01, 0x05, 0x14, 0xc1, 0x14, 0x04 } }, // 27
-  { { 0x04, 0xc1, 0x11, 0x14, 0x01, 0x14 } }, // 28
-  { { 0xc1, 0x14, 0x01, 0x14, 0x04, 0x04 } }, // 29
-  { { 0x04, 0xc1, 0x11, 0x14, 0x04, 0x04 } }, // 30
-  { { 0xc1, 0x14, 0x04, 0x04, 0x04, 0x04 } }, // 31
-  { { 0xc4, 0x04, 0x04, 0x04, 0x04, 0x04 } }, // 32
+  FM_ALGORITHMS(FM_ALGORITHM_ENTRY)
 };
 
 int n_out(const FmAlgorithm &alg) {
@@ -86,6 +94,16 @@ int n_out(const FmAlgorithm &alg) {
   return count;
 }
 
+int FmCore::carriers(int algorithm) {
+  int mask = 0;
+  for (int op = 0; op < 6; op++) {
+    if ((algorithms[algorithm].ops[op] & 3) == 0) {
+      mask |= 1 << op;
+    }
+  }
+  return mask;
+}
+
 void FmCore::dump() {
 #ifdef VERBOSE
   for (int i = 0; i < 32; i++) {
@@ -107,45 +125,135 @@ void FmCore::dump() {
 #endif
 }
 
-void FmCore::compute(int32_t *output, FmOpParams *params, int algorithm,
-                     int32_t *fb_buf, int feedback_shift) {
-  const int kLevelThresh = 1120;
-  const FmAlgorithm alg = algorithms[algorithm];
-  bool has_contents[3] = { true, false, false };
-  for (int op = 0; op < 6; op++) {
-    int flags = alg.ops[op];
-    bool add = (flags & OUT_BUS_ADD) != 0;
-    FmOpParams &param = params[op];
-    int inbus = (flags >> 4) & 3;
-    int outbus = flags & 3;
-    int32_t *outptr = (outbus == 0) ? output : buf_[outbus - 1].get();
-    int32_t gain1 = param.gain[0];
-    int32_t gain2 = param.gain[1];
-    if (gain1 >= kLevelThresh || gain2 >= kLevelThresh) {
-      if (!has_contents[outbus]) {
-        add = false;
-      }
-      if (inbus == 0 || !has_contents[inbus]) {
-        // todo: more than one op in a feedback loop
-        if ((flags & 0xc0) == 0xc0 && feedback_shift < 16) {
-          // cout << op << " fb " << inbus << outbus << add << endl;
-          FmOpKernel::compute_fb(outptr, param.phase, param.freq,
-                                 gain1, gain2,
-                                 fb_buf, feedback_shift, add);
-        } else {
-          // cout << op << " pure " << inbus << outbus << add << endl;
-          FmOpKernel::compute_pure(outptr, param.phase, param.freq,
-                                   gain1, gain2, add);
+// For each algorithm and modulator, the set of carriers (as a bit mask of
+// operator indices) its output ends up in, directly or through other
+// modulators. Zero for carriers. Filled in by FmCore::init.
+static uint8_t carrier_feeds[32][6];
+
+void FmCore::init() {
+  for (int i = 0; i < 32; i++) {
+    const FmAlgorithm &alg = algorithms[i];
+    for (int op = 5; op >= 0; op--) {
+      int outbus = alg.ops[op] & 3;
+      int feeds = 0;
+      if (outbus != 0) {
+        for (int j = op + 1; j < 6; j++) {
+          int flags = alg.ops[j];
+          if (((flags >> 4) & 3) == outbus) {
+            feeds |= (flags & 3) == 0 ? 1 << j : carrier_feeds[i][j];
+          }
+          if ((flags & 3) == outbus && !(flags & OUT_BUS_ADD)) {
+            break;  // the bus gets overwritten
+          }
         }
+      }
+      carrier_feeds[i][op] = feeds;
+    }
+  }
+}
+
+// Renders one operator. The flags are a template parameter, so the bus
+// routing is resolved at compile time; only the level threshold and the
+// bus contents are tested at runtime. buses[0] is the output, buses[1] and
+// buses[2] the scratch buffers. A pruned operator is skipped like one below
+// the threshold; returns 1 if that saved a kernel call.
+template<int flags>
+static inline int compute_op(const FmKernelSet &kernels,
+                             int32_t *const *buses, int n, FmOpParams &param,
+                             bool *has_contents, int32_t *fb_buf,
+                             int feedback_shift, bool pruned) {
+  const int inbus = (flags >> 4) & 3;
+  const int outbus = flags & 3;
+  bool add = (flags & OUT_BUS_ADD) != 0;
+  int32_t *outptr = buses[outbus];
+  int32_t gain1 = param.gain[0];
+  int32_t gain2 = param.gain[1];
+  bool audible = gain1 >= FmCore::kLevelThresh ||
+    gain2 >= FmCore::kLevelThresh;
+  if (audible && !pruned) {
+    if (!has_contents[outbus]) {
+      add = false;
+    }
+    if (inbus == 0 || !has_contents[inbus]) {
+      // todo: more than one op in a feedback loop
+      if ((flags & 0xc0) == 0xc0 && feedback_shift < 16) {
+        kernels.fb(outptr, n, param.phase, param.freq, gain1, gain2,
+                   fb_buf, feedback_shift, add);
       } else {
-        // cout << op << " normal " << inbus << outbus << " " << param.freq << add << endl;
-        FmOpKernel::compute(outptr, buf_[inbus - 1].get(),
-                            param.phase, param.freq, gain1, gain2, add);
+        kernels.fm(outptr, NULL, n, param.phase, param.freq, gain1, gain2,
+                   add);
       }
-      has_contents[outbus] = true;
-    } else if (!add) {
-      has_contents[outbus] = false;
+    } else {
+      kernels.fm(outptr, buses[inbus], n, param.phase, param.freq,
+                 gain1, gain2, add);
     }
-    param.phase += param.freq << LG_N;
+    has_contents[outbus] = true;
+  } else if (!add) {
+    has_contents[outbus] = false;
   }
+  param.phase += param.freq * n;
+  return audible && pruned;
+}
+
+// Bit op of the result if the operator is a carrier below the threshold,
+// which means it will be skipped.
+template<int flags>
+static inline int silent_carrier(const FmOpParams &param, int op) {
+  return (flags & 3) == 0 && param.gain[0] < FmCore::kLevelThresh &&
+    param.gain[1] < FmCore::kLevelThresh ? 1 << op : 0;
+}
+
+// Whether a modulator only feeds carriers in the silent set. Operators with
+// active feedback are always run, so their feedback history stays intact.
+template<int flags>
+static inline bool prune(int feeds, int silent, int feedback_shift) {
+  return feeds != 0 && (feeds & ~silent) == 0 &&
+    !((flags & 0xc0) == 0xc0 && feedback_shift < 16);
+}
+
+// The whole algorithm, with the six operators unrolled. Modulators whose
+// carriers are all silent are pruned; their output would never be heard,
+// and their phases still advance, so this doesn't change the sound.
+template<int f0, int f1, int f2, int f3, int f4, int f5>
+static int render(const FmKernelSet &kernels, int32_t *const *buses, int n,
+                  FmOpParams *params, int32_t *fb_buf, int feedback_shift,
+                  const uint8_t *feeds) {
+  int silent = silent_carrier<f0>(params[0], 0) |
+    silent_carrier<f1>(params[1], 1) | silent_carrier<f2>(params[2], 2) |
+    silent_carrier<f3>(params[3], 3) | silent_carrier<f4>(params[4], 4) |
+    silent_carrier<f5>(params[5], 5);
+  bool has_contents[3] = { true, false, false };
+  int n_pruned = 0;
+  n_pruned += compute_op<f0>(kernels, buses, n, params[0], has_contents,
+    fb_buf, feedback_shift, prune<f0>(feeds[0], silent, feedback_shift));
+  n_pruned += compute_op<f1>(kernels, buses, n, params[1], has_contents,
+    fb_buf, feedback_shift, prune<f1>(feeds[1], silent, feedback_shift));
+  n_pruned += compute_op<f2>(kernels, buses, n, params[2], has_contents,
+    fb_buf, feedback_shift, prune<f2>(feeds[2], silent, feedback_shift));
+  n_pruned += compute_op<f3>(kernels, buses, n, params[3], has_contents,
+    fb_buf, feedback_shift, prune<f3>(feeds[3], silent, feedback_shift));
+  n_pruned += compute_op<f4>(kernels, buses, n, params[4], has_contents,
+    fb_buf, feedback_shift, prune<f4>(feeds[4], silent, feedback_shift));
+  n_pruned += compute_op<f5>(kernels, buses, n, params[5], has_contents,
+    fb_buf, feedback_shift, prune<f5>(feeds[5], silent, feedback_shift));
+  return n_pruned;
+}
+
+typedef int (*RenderFn)(const FmKernelSet &kernels, int32_t *const *buses,
+                        int n, FmOpParams *params, int32_t *fb_buf,
+                        int feedback_shift, const uint8_t *feeds);
+
+#define FM_RENDER_ENTRY(f0, f1, f2, f3, f4, f5) \
+  render<f0, f1, f2, f3, f4, f5>,
+
+static const RenderFn renderers[32] = {
+  FM_ALGORITHMS(FM_RENDER_ENTRY)
+};
+
+int FmCore::compute(int32_t *output, int n, FmOpParams *params,
+                    int algorithm, int32_t *fb_buf, int feedback_shift,
+                    Quality quality) {
+  int32_t *buses[3] = { output, buf_[0].get(), buf_[1].get() };
+  return renderers[algorithm](Kernels::fm_tiers[quality], buses, n, params,
+    fb_buf, feedback_shift, carrier_feeds[algorithm]);
 }
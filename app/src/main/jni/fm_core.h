@@ -27,11 +27,22 @@ struct FmOpParams {
 
 class FmCore {
  public:
+  // Operators with a gain below this for the whole block are skipped.
+  static const int kLevelThresh = 1120;
+
+  // Works out which carriers each modulator feeds, for pruning. Until this
+  // is called nothing is pruned.
+  static void init();
   static void dump();
-  void compute(int32_t *output, FmOpParams *params, int algorithm,
-               int32_t *fb_buf, int32_t feedback_gain);
+  // Bit op is set if operator op is a carrier in the algorithm.
+  static int carriers(int algorithm);
+  // Renders a block of n samples, n <= MAX_N. Returns the number of
+  // operator kernels skipped because all the carriers they feed are silent.
+  int compute(int32_t *output, int n, FmOpParams *params, int algorithm,
+              int32_t *fb_buf, int32_t feedback_gain,
+              Quality quality = kQualityStandard);
  private:
-  AlignedBuf<int32_t, N>buf_[2];
+  AlignedBuf<int32_t, MAX_N>buf_[2];
 };
 
 #endif  // __FM_CORE_H
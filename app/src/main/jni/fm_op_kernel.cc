@@ -14,12 +14,14 @@
  * limitations under the License.
  */
 
+#include <cstddef>
 #include <math.h>
 
 #include "synth.h"
 
 #include "sin.h"
 #include "fm_op_kernel.h"
+#include "kernels.h"
 
 #ifdef HAVE_NEON_INTRINSICS
 
@@ -147,70 +149,131 @@ void neon_fm_kernel(const int *in, const int *busin, int *out, int count,
   }
 }
 
-const int32_t __attribute__ ((aligned(16))) zeros[N] = {0};
+const int32_t __attribute__ ((aligned(16))) zeros[MAX_N] = {0};
 
 #endif
 
-void FmOpKernel::compute(int32_t *output, const int32_t *input,
+void FmOpKernel::compute(int32_t *output, const int32_t *input, int n,
                          int32_t phase0, int32_t freq,
                          int32_t gain1, int32_t gain2, bool add) {
-  int32_t dgain = (gain2 - gain1 + (N >> 1)) >> LG_N;
-  int32_t gain = gain1;
-  int32_t phase = phase0;
-  if (hasNeon()) {
+  Kernels::fm(output, input, n, phase0, freq, gain1, gain2, add);
+}
+
+void FmOpKernel::compute_pure(int32_t *output, int n,
+                              int32_t phase0, int32_t freq,
+                              int32_t gain1, int32_t gain2, bool add) {
+  Kernels::fm(output, NULL, n, phase0, freq, gain1, gain2, add);
+}
+
 #ifdef HAVE_NEON_INTRINSICS
-    neon_fm_kernel(input, add ? output : zeros, output, N,
-      phase0, freq, gain, dgain);
+void FmOpKernel::compute_neon(int32_t *output, const int32_t *input, int n,
+                              int32_t phase0, int32_t freq,
+                              int32_t gain1, int32_t gain2, bool add) {
+  // The assembly loop does 12 samples per iteration plus a final 4, so it
+  // takes counts of 16, 28, 40... The rest of the block is done in scalar.
+  int count = n < 16 ? 0 : n - (n - 4) % 12;
+  int32_t dgain = gain_step(gain1, gain2, n);
+  if (count > 0) {
+    neon_fm_kernel(input ? input : zeros, add ? output : zeros, output, count,
+      phase0, freq, gain1, dgain);
+  }
+  if (count < n) {
+    compute_scalar(output + count, input ? input + count : NULL, n - count,
+      phase0 + freq * count, gain1 + dgain * count, gain2, add);
+  }
+}
 #endif
-  } else {
+
+// The sine is a template parameter so each quality tier gets its own inner
+// loops.
+template<int32_t (*sine)(int32_t)>
+static void compute_op(int32_t *output, const int32_t *input, int n,
+                       int32_t phase0, int32_t freq,
+                       int32_t gain1, int32_t gain2, bool add) {
+  int32_t dgain = FmOpKernel::gain_step(gain1, gain2, n);
+  int32_t gain = gain1;
+  int32_t phase = phase0;
+  if (input == NULL) {
     if (add) {
-      for (int i = 0; i < N; i++) {
+      for (int i = 0; i < n; i++) {
         gain += dgain;
-        int32_t y = Sin::lookup(phase + input[i]);
+        int32_t y = sine(phase);
         output[i] += ((int64_t)y * (int64_t)gain) >> 24;
         phase += freq;
       }
     } else {
-      for (int i = 0; i < N; i++) {
+      for (int i = 0; i < n; i++) {
         gain += dgain;
-        int32_t y = Sin::lookup(phase + input[i]);
+        int32_t y = sine(phase);
         output[i] = ((int64_t)y * (int64_t)gain) >> 24;
         phase += freq;
       }
     }
+  } else if (add) {
+    for (int i = 0; i < n; i++) {
+      gain += dgain;
+      int32_t y = sine(phase + input[i]);
+      output[i] += ((int64_t)y * (int64_t)gain) >> 24;
+      phase += freq;
+    }
+  } else {
+    for (int i = 0; i < n; i++) {
+      gain += dgain;
+      int32_t y = sine(phase + input[i]);
+      output[i] = ((int64_t)y * (int64_t)gain) >> 24;
+      phase += freq;
+    }
   }
 }
 
-#if 1
-void FmOpKernel::compute_pure(int32_t *output, int32_t phase0, int32_t freq,
+void FmOpKernel::compute_scalar(int32_t *output, const int32_t *input, int n,
+                                int32_t phase0, int32_t freq,
+                                int32_t gain1, int32_t gain2, bool add) {
+  compute_op<Sin::lookup>(output, input, n, phase0, freq, gain1, gain2, add);
+}
+
+void FmOpKernel::compute_economy(int32_t *output, const int32_t *input,
+                                 int n, int32_t phase0, int32_t freq,
+                                 int32_t gain1, int32_t gain2, bool add) {
+  compute_op<Sin::lookup_coarse>(output, input, n, phase0, freq, gain1, gain2,
+    add);
+}
+
+void FmOpKernel::compute_high(int32_t *output, const int32_t *input, int n,
+                              int32_t phase0, int32_t freq,
                               int32_t gain1, int32_t gain2, bool add) {
-  int32_t dgain = (gain2 - gain1 + (N >> 1)) >> LG_N;
-  int32_t gain = gain1;
-  int32_t phase = phase0;
-  if (hasNeon()) {
-#ifdef HAVE_NEON_INTRINSICS
-    neon_fm_kernel(zeros, add ? output : zeros, output, N,
-      phase0, freq, gain, dgain);
+  compute_op<Sin::lookup_fine>(output, input, n, phase0, freq, gain1, gain2, add);
+}
+
+void FmOpKernel::compute_lanes(int n, int n_lanes, int32_t *output,
+                               const int32_t *input, const int32_t *phase0,
+                               const int32_t *freq, const int32_t *gain1,
+                               const int32_t *gain2, bool add) {
+#ifdef HAVE_X86_INTRINSICS
+  if ((n_lanes & 7) == 0 && hasAvx2()) {
+    compute_lanes_avx2(n, n_lanes, output, input, phase0, freq, gain1, gain2,
+      add);
+    return;
+  } else if ((n_lanes & 3) == 0 && hasSse41()) {
+    compute_lanes_sse41(n, n_lanes, output, input, phase0, freq, gain1, gain2,
+      add);
+    return;
+  }
 #endif
-  } else {
-    if (add) {
-      for (int i = 0; i < N; i++) {
-        gain += dgain;
-        int32_t y = Sin::lookup(phase);
-        output[i] += ((int64_t)y * (int64_t)gain) >> 24;
-        phase += freq;
-      }
-    } else {
-      for (int i = 0; i < N; i++) {
-        gain += dgain;
-        int32_t y = Sin::lookup(phase);
-        output[i] = ((int64_t)y * (int64_t)gain) >> 24;
-        phase += freq;
-      }
+  for (int k = 0; k < n_lanes; k++) {
+    int32_t dgain = gain_step(gain1[k], gain2[k], n);
+    int32_t gain = gain1[k];
+    int32_t phase = phase0[k];
+    for (int i = 0; i < n; i++) {
+      int ix = i * n_lanes + k;
+      gain += dgain;
+      int32_t y = Sin::lookup(input ? phase + input[ix] : phase);
+      y = ((int64_t)y * (int64_t)gain) >> 24;
+      output[ix] = add ? output[ix] + y : y;
+      phase += freq[k];
     }
   }
 }
-#endif
 
 #define noDOUBLE_ACCURACY
 #define HIGH_ACCURACY
@@ -348,30 +411,32 @@ void FmOpKernel::compute_pure(int32_t *output, int32_t phase0, int32_t freq,
 }
 #endif
 
-void FmOpKernel::compute_fb(int32_t *output, int32_t phase0, int32_t freq,
-                            int32_t gain1, int32_t gain2,
-                            int32_t *fb_buf, int fb_shift, bool add) {
-  int32_t dgain = (gain2 - gain1 + (N >> 1)) >> LG_N;
+template<int32_t (*sine)(int32_t)>
+static void compute_fb_op(int32_t *output, int n,
+                          int32_t phase0, int32_t freq,
+                          int32_t gain1, int32_t gain2,
+                          int32_t *fb_buf, int fb_shift, bool add) {
+  int32_t dgain = FmOpKernel::gain_step(gain1, gain2, n);
   int32_t gain = gain1;
   int32_t phase = phase0;
   int32_t y0 = fb_buf[0];
   int32_t y = fb_buf[1];
   if (add) {
-    for (int i = 0; i < N; i++) {
+    for (int i = 0; i < n; i++) {
       gain += dgain;
       int32_t scaled_fb = (y0 + y) >> (fb_shift + 1);
       y0 = y;
-      y = Sin::lookup(phase + scaled_fb);
+      y = sine(phase + scaled_fb);
       y = ((int64_t)y * (int64_t)gain) >> 24;
       output[i] += y;
       phase += freq;
     }
   } else {
-    for (int i = 0; i < N; i++) {
+    for (int i = 0; i < n; i++) {
       gain += dgain;
       int32_t scaled_fb = (y0 + y) >> (fb_shift + 1);
       y0 = y;
-      y = Sin::lookup(phase + scaled_fb);
+      y = sine(phase + scaled_fb);
       y = ((int64_t)y * (int64_t)gain) >> 24;
       output[i] = y;
       phase += freq;
@@ -380,3 +445,27 @@ void FmOpKernel::compute_fb(int32_t *output, int32_t phase0, int32_t freq,
   fb_buf[0] = y0;
   fb_buf[1] = y;
 }
+
+void FmOpKernel::compute_fb(int32_t *output, int n,
+                            int32_t phase0, int32_t freq,
+                            int32_t gain1, int32_t gain2,
+                            int32_t *fb_buf, int fb_shift, bool add) {
+  compute_fb_op<Sin::lookup>(output, n, phase0, freq, gain1, gain2, fb_buf,
+    fb_shift, add);
+}
+
+void FmOpKernel::compute_fb_economy(int32_t *output, int n,
+                                    int32_t phase0, int32_t freq,
+                                    int32_t gain1, int32_t gain2,
+                                    int32_t *fb_buf, int fb_shift, bool add) {
+  compute_fb_op<Sin::lookup_coarse>(output, n, phase0, freq, gain1, gain2,
+    fb_buf, fb_shift, add);
+}
+
+void FmOpKernel::compute_fb_high(int32_t *output, int n,
+                                 int32_t phase0, int32_t freq,
+                                 int32_t gain1, int32_t gain2,
+                                 int32_t *fb_buf, int fb_shift, bool add) {
+  compute_fb_op<Sin::lookup_fine>(output, n, phase0, freq, gain1, gain2, fb_buf,
+    fb_shift, add);
+}
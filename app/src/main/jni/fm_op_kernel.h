@@ -16,20 +16,92 @@
 
 class FmOpKernel {
  public:
+  // Each call renders a block of n samples, 1 <= n <= MAX_N.
   // gain1 and gain2 represent linear step: gain for sample i is
-  // gain1 + (1 + i) / 64 * (gain2 - gain1)
+  // gain1 + (1 + i) / n * (gain2 - gain1)
+
+  // The per-sample gain step, rounded. The division floors, so for a power
+  // of two n this is the same as an arithmetic shift.
+  static int32_t gain_step(int32_t gain1, int32_t gain2, int n) {
+    int32_t d = gain2 - gain1 + (n >> 1);
+    return d >= 0 ? d / n : -((n - 1 - d) / n);
+  }
 
   // This is the basic FM operator. No feedback.
-  static void compute(int32_t *output, const int32_t *input,
+  static void compute(int32_t *output, const int32_t *input, int n,
                       int32_t phase0, int32_t freq,
                       int32_t gain1, int32_t gain2, bool add);
   
   // This is a sine generator, no feedback.
-  static void compute_pure(int32_t *output, int32_t phase0, int32_t freq,
+  static void compute_pure(int32_t *output, int n,
+                           int32_t phase0, int32_t freq,
                            int32_t gain1, int32_t gain2, bool add);
 
+  // The portable implementation of compute and compute_pure. input may be
+  // NULL for a pure sine. compute dispatches through Kernels::fm, which
+  // picks this or one of the SIMD versions below.
+  static void compute_scalar(int32_t *output, const int32_t *input, int n,
+                             int32_t phase0, int32_t freq,
+                             int32_t gain1, int32_t gain2, bool add);
+
+#ifdef HAVE_NEON_INTRINSICS
+  // Uses a polynomial sine, so not bit-exact with the scalar version.
+  static void compute_neon(int32_t *output, const int32_t *input, int n,
+                           int32_t phase0, int32_t freq,
+                           int32_t gain1, int32_t gain2, bool add);
+#endif
+
   // One op with feedback, no add.
-  static void compute_fb(int32_t *output, int32_t phase0, int32_t freq,
+  static void compute_fb(int32_t *output, int n,
+                         int32_t phase0, int32_t freq,
                          int32_t gain1, int32_t gain2,
                          int32_t *fb_buf, int fb_gain, bool add);
+
+  // compute_scalar and compute_fb with the sine of the economy tier (a short
+  // table, no interpolation) and of the high tier (Sin::compute10). See
+  // Quality.
+  static void compute_economy(int32_t *output, const int32_t *input, int n,
+                              int32_t phase0, int32_t freq,
+                              int32_t gain1, int32_t gain2, bool add);
+  static void compute_high(int32_t *output, const int32_t *input, int n,
+                           int32_t phase0, int32_t freq,
+                           int32_t gain1, int32_t gain2, bool add);
+  static void compute_fb_economy(int32_t *output, int n,
+                                 int32_t phase0, int32_t freq,
+                                 int32_t gain1, int32_t gain2,
+                                 int32_t *fb_buf, int fb_gain, bool add);
+  static void compute_fb_high(int32_t *output, int n,
+                              int32_t phase0, int32_t freq,
+                              int32_t gain1, int32_t gain2,
+                              int32_t *fb_buf, int fb_gain, bool add);
+
+  // Computes n_lanes independent operators (usually from different voices)
+  // at once. The buffers are interleaved: sample i of lane k lives at
+  // [i * n_lanes + k]. phase0, freq, gain1 and gain2 hold one value per lane.
+  // input may be NULL, in which case the lanes are pure sines.
+  static void compute_lanes(int n, int n_lanes, int32_t *output,
+                            const int32_t *input, const int32_t *phase0,
+                            const int32_t *freq, const int32_t *gain1,
+                            const int32_t *gain2, bool add);
+
+#ifdef HAVE_X86_INTRINSICS
+  // x86 versions of the above, bit-exact with the scalar code. input may be
+  // NULL for a pure sine. Only call these when hasSse41() / hasAvx2() say so.
+  static void compute_sse41(int32_t *output, const int32_t *input, int n,
+                            int32_t phase0, int32_t freq,
+                            int32_t gain1, int32_t gain2, bool add);
+  static void compute_avx2(int32_t *output, const int32_t *input, int n,
+                           int32_t phase0, int32_t freq,
+                           int32_t gain1, int32_t gain2, bool add);
+
+  // n_lanes must be a multiple of 4 (sse41) or 8 (avx2).
+  static void compute_lanes_sse41(int n, int n_lanes, int32_t *output,
+                                  const int32_t *input, const int32_t *phase0,
+                                  const int32_t *freq, const int32_t *gain1,
+                                  const int32_t *gain2, bool add);
+  static void compute_lanes_avx2(int n, int n_lanes, int32_t *output,
+                                 const int32_t *input, const int32_t *phase0,
+                                 const int32_t *freq, const int32_t *gain1,
+                                 const int32_t *gain2, bool add);
+#endif
 };
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// SSE4.1 and AVX2 versions of the FM operator kernels. Unlike the NEON
+// kernel, which uses a polynomial sine, these use the same table lookup and
+// fixed point arithmetic as the scalar code, so the results are bit-exact.
+//
+// The two places where this takes care:
+//  - Sin::lookup computes (dy * lowbits) >> 14 in 64 bits. |dy| is below
+//    2^17 and lowbits below 2^14, so a 32 bit multiply is exact.
+//  - (y * gain) >> 24 genuinely needs 64 bits, and there's no 64 bit
+//    arithmetic shift before AVX-512. We only keep the low 32 bits of the
+//    result though, and those are the same for a logical shift.
+
+#include "synth.h"
+
+#ifdef HAVE_X86_INTRINSICS
+
+#include <immintrin.h>
+
+#include "sin.h"
+#include "fm_op_kernel.h"
+
+#define SSE41 __attribute__((target("sse4.1")))
+#define AVX2 __attribute__((target("avx2")))
+
+static const int kSinShift = 24 - SIN_LG_N_SAMPLES;
+
+SSE41 static inline __m128i sin_lookup_sse41(__m128i phase) {
+  __m128i lowbits = _mm_and_si128(phase, _mm_set1_epi32((1 << kSinShift) - 1));
+  __m128i ix = _mm_and_si128(_mm_srai_epi32(phase, kSinShift - 1),
+      _mm_set1_epi32((SIN_N_SAMPLES - 1) << 1));
+  // No gather instruction, so load the (dy, y0) pairs one lane at a time.
+  __m128i p01 = _mm_unpacklo_epi64(
+      _mm_loadl_epi64((const __m128i *)(sintab + _mm_cvtsi128_si32(ix))),
+      _mm_loadl_epi64((const __m128i *)(sintab + _mm_extract_epi32(ix, 1))));
+  __m128i p23 = _mm_unpacklo_epi64(
+      _mm_loadl_epi64((const __m128i *)(sintab + _mm_extract_epi32(ix, 2))),
+      _mm_loadl_epi64((const __m128i *)(sintab + _mm_extract_epi32(ix, 3))));
+  __m128i dy = _mm_castps_si128(_mm_shuffle_ps(_mm_castsi128_ps(p01),
+      _mm_castsi128_ps(p23), _MM_SHUFFLE(2, 0, 2, 0)));
+  __m128i y0 = _mm_castps_si128(_mm_shuffle_ps(_mm_castsi128_ps(p01),
+      _mm_castsi128_ps(p23), _MM_SHUFFLE(3, 1, 3, 1)));
+  return _mm_add_epi32(y0,
+      _mm_srai_epi32(_mm_mullo_epi32(dy, lowbits), kSinShift));
+}
+
+// Low 32 bits of ((int64_t)y * gain) >> 24, per lane.
+SSE41 static inline __m128i mul_shift24_sse41(__m128i y, __m128i gain) {
+  __m128i even = _mm_srli_epi64(_mm_mul_epi32(y, gain), 24);
+  __m128i odd = _mm_mul_epi32(_mm_srli_epi64(y, 32), _mm_srli_epi64(gain, 32));
+  // shifting left by 8 puts bits 24..55 in the high half of the lane
+  odd = _mm_slli_epi64(odd, 8);
+  return _mm_blend_epi16(even, odd, 0xcc);
+}
+
+AVX2 static inline __m256i sin_lookup_avx2(__m256i phase) {
+  __m256i lowbits = _mm256_and_si256(phase,
+      _mm256_set1_epi32((1 << kSinShift) - 1));
+  __m256i ix = _mm256_and_si256(_mm256_srai_epi32(phase, kSinShift - 1),
+      _mm256_set1_epi32((SIN_N_SAMPLES - 1) << 1));
+  __m256i dy = _mm256_i32gather_epi32((const int *)sintab, ix, 4);
+  __m256i y0 = _mm256_i32gather_epi32((const int *)sintab + 1, ix, 4);
+  return _mm256_add_epi32(y0,
+      _mm256_srai_epi32(_mm256_mullo_epi32(dy, lowbits), kSinShift));
+}
+
+AVX2 static inline __m256i mul_shift24_avx2(__m256i y, __m256i gain) {
+  __m256i even = _mm256_srli_epi64(_mm256_mul_epi32(y, gain), 24);
+  __m256i odd = _mm256_mul_epi32(_mm256_srli_epi64(y, 32),
+      _mm256_srli_epi64(gain, 32));
+  odd = _mm256_slli_epi64(odd, 8);
+  return _mm256_blend_epi32(even, odd, 0xaa);
+}
+
+// Lane j starts at phase0 + j * freq and gain1 + (j + 1) * dgain, as if the
+// scalar loop had already run j times. Unsigned so the wraparound is defined.
+static inline int32_t lane_start(int32_t base, int32_t step, int j) {
+  return (int32_t)((uint32_t)base + (uint32_t)step * j);
+}
+
+// Samples i..n-1 of a block whose size isn't a multiple of the vector width.
+static void compute_tail(int32_t *output, const int32_t *input, int i, int n,
+                         int32_t phase0, int32_t freq,
+                         int32_t gain1, int32_t dgain, bool add) {
+  int32_t phase = lane_start(phase0, freq, i);
+  int32_t gain = lane_start(gain1, dgain, i);
+  for (; i < n; i++) {
+    gain += dgain;
+    int32_t y = Sin::lookup(input ? phase + input[i] : phase);
+    y = ((int64_t)y * (int64_t)gain) >> 24;
+    output[i] = add ? output[i] + y : y;
+    phase += freq;
+  }
+}
+
+SSE41 void FmOpKernel::compute_sse41(int32_t *output, const int32_t *input,
+                                     int n,
+                                     int32_t phase0, int32_t freq,
+                                     int32_t gain1, int32_t gain2, bool add) {
+  int32_t dgain = gain_step(gain1, gain2, n);
+  __m128i phase = _mm_setr_epi32(phase0, lane_start(phase0, freq, 1),
+      lane_start(phase0, freq, 2), lane_start(phase0, freq, 3));
+  __m128i gain = _mm_setr_epi32(lane_start(gain1, dgain, 1),
+      lane_start(gain1, dgain, 2), lane_start(gain1, dgain, 3),
+      lane_start(gain1, dgain, 4));
+  __m128i freq4 = _mm_set1_epi32(lane_start(0, freq, 4));
+  __m128i dgain4 = _mm_set1_epi32(lane_start(0, dgain, 4));
+  int i;
+  for (i = 0; i + 4 <= n; i += 4) {
+    __m128i p = phase;
+    if (input) {
+      p = _mm_add_epi32(p, _mm_loadu_si128((const __m128i *)(input + i)));
+    }
+    __m128i y = mul_shift24_sse41(sin_lookup_sse41(p), gain);
+    if (add) {
+      y = _mm_add_epi32(y, _mm_loadu_si128((const __m128i *)(output + i)));
+    }
+    _mm_storeu_si128((__m128i *)(output + i), y);
+    phase = _mm_add_epi32(phase, freq4);
+    gain = _mm_add_epi32(gain, dgain4);
+  }
+  compute_tail(output, input, i, n, phase0, freq, gain1, dgain, add);
+}
+
+AVX2 void FmOpKernel::compute_avx2(int32_t *output, const int32_t *input,
+                                   int n,
+                                   int32_t phase0, int32_t freq,
+                                   int32_t gain1, int32_t gain2, bool add) {
+  int32_t dgain = gain_step(gain1, gain2, n);
+  __m256i lanes = _mm256_setr_epi32(0, 1, 2, 3, 4, 5, 6, 7);
+  __m256i phase = _mm256_add_epi32(_mm256_set1_epi32(phase0),
+      _mm256_mullo_epi32(_mm256_set1_epi32(freq), lanes));
+  __m256i gain = _mm256_add_epi32(_mm256_set1_epi32(gain1),
+      _mm256_mullo_epi32(_mm256_set1_epi32(dgain),
+          _mm256_add_epi32(lanes, _mm256_set1_epi32(1))));
+  __m256i freq8 = _mm256_set1_epi32(lane_start(0, freq, 8));
+  __m256i dgain8 = _mm256_set1_epi32(lane_start(0, dgain, 8));
+  int i;
+  for (i = 0; i + 8 <= n; i += 8) {
+    __m256i p = phase;
+    if (input) {
+      p = _mm256_add_epi32(p,
+          _mm256_loadu_si256((const __m256i *)(input + i)));
+    }
+    __m256i y = mul_shift24_avx2(sin_lookup_avx2(p), gain);
+    if (add) {
+      y = _mm256_add_epi32(y,
+          _mm256_loadu_si256((const __m256i *)(output + i)));
+    }
+    _mm256_storeu_si256((__m256i *)(output + i), y);
+    phase = _mm256_add_epi32(phase, freq8);
+    gain = _mm256_add_epi32(gain, dgain8);
+  }
+  compute_tail(output, input, i, n, phase0, freq, gain1, dgain, add);
+}
+
+SSE41 void FmOpKernel::compute_lanes_sse41(int n, int n_lanes,
+                                           int32_t *output,
+                                           const int32_t *input,
+                                           const int32_t *phase0,
+                                           const int32_t *freq,
+                                           const int32_t *gain1,
+                                           const int32_t *gain2, bool add) {
+  for (int k = 0; k < n_lanes; k += 4) {
+    __m128i phase = _mm_loadu_si128((const __m128i *)(phase0 + k));
+    __m128i f = _mm_loadu_si128((const __m128i *)(freq + k));
+    __m128i gain = _mm_loadu_si128((const __m128i *)(gain1 + k));
+    __m128i dgain = _mm_setr_epi32(gain_step(gain1[k], gain2[k], n),
+        gain_step(gain1[k + 1], gain2[k + 1], n),
+        gain_step(gain1[k + 2], gain2[k + 2], n),
+        gain_step(gain1[k + 3], gain2[k + 3], n));
+    for (int i = 0; i < n; i++) {
+      int ix = i * n_lanes + k;
+      gain = _mm_add_epi32(gain, dgain);
+      __m128i p = phase;
+      if (input) {
+        p = _mm_add_epi32(p, _mm_loadu_si128((const __m128i *)(input + ix)));
+      }
+      __m128i y = mul_shift24_sse41(sin_lookup_sse41(p), gain);
+      if (add) {
+        y = _mm_add_epi32(y, _mm_loadu_si128((const __m128i *)(output + ix)));
+      }
+      _mm_storeu_si128((__m128i *)(output + ix), y);
+      phase = _mm_add_epi32(phase, f);
+    }
+  }
+}
+
+AVX2 void FmOpKernel::compute_lanes_avx2(int n, int n_lanes,
+                                         int32_t *output,
+                                         const int32_t *input,
+                                         const int32_t *phase0,
+                                         const int32_t *freq,
+                                         const int32_t *gain1,
+                                         const int32_t *gain2, bool add) {
+  for (int k = 0; k < n_lanes; k += 8) {
+    __m256i phase = _mm256_loadu_si256((const __m256i *)(phase0 + k));
+    __m256i f = _mm256_loadu_si256((const __m256i *)(freq + k));
+    __m256i gain = _mm256_loadu_si256((const __m256i *)(gain1 + k));
+    int32_t dgains[8];
+    for (int j = 0; j < 8; j++) {
+      dgains[j] = gain_step(gain1[k + j], gain2[k + j], n);
+    }
+    __m256i dgain = _mm256_loadu_si256((const __m256i *)dgains);
+    for (int i = 0; i < n; i++) {
+      int ix = i * n_lanes + k;
+      gain = _mm256_add_epi32(gain, dgain);
+      __m256i p = phase;
+      if (input) {
+        p = _mm256_add_epi32(p,
+            _mm256_loadu_si256((const __m256i *)(input + ix)));
+      }
+      __m256i y = mul_shift24_avx2(sin_lookup_avx2(p), gain);
+      if (add) {
+        y = _mm256_add_epi32(y,
+            _mm256_loadu_si256((const __m256i *)(output + ix)));
+      }
+      _mm256_storeu_si256((__m256i *)(output + ix), y);
+      phase = _mm256_add_epi32(phase, f);
+    }
+  }
+}
+
+#endif  // HAVE_X86_INTRINSICS
@@ -14,8 +14,14 @@
  * limitations under the License.
  */
 
+// Resolves frequency signal (1.0 in Q24 format = 1 octave) to phase delta
+// at one sample rate. Engines get theirs from RateTables.
 class Freqlut {
  public:
-  static void init(double sample_rate);
-  static int32_t lookup(int32_t logfreq);
+  explicit Freqlut(double sample_rate);
+  int32_t lookup(int32_t logfreq) const;
+
+ private:
+  static const int kLgSamples = 10;
+  int32_t lut_[(1 << kLgSamples) + 1];
 };
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Portable and SSE versions of neon_iir_2chan. The sums are grouped the
+// same way as in the NEON code: (input terms) + (state terms).
+
+#include "iir.h"
+
+static void iir_1chan(const float *in, float *out, size_t n, const float *m,
+    float *state) {
+  float s0 = state[0];
+  float s1 = state[1];
+  for (size_t i = 0; i < n; i += 2) {
+    float x0 = in[i];
+    float x1 = in[i + 1];
+    float v[4];
+    for (int j = 0; j < 4; j++) {
+      v[j] = (m[j] * x0 + m[4 + j] * x1) + (m[8 + j] * s0 + m[12 + j] * s1);
+    }
+    out[i] = v[0];
+    out[i + 1] = v[1];
+    s0 = v[2];
+    s1 = v[3];
+  }
+  state[0] = s0;
+  state[1] = s1;
+}
+
+void iir_2chan_scalar(const float *in1, const float *in2, float *out1,
+    float *out2, size_t n, const float *matrices, float *state) {
+  iir_1chan(in1, out1, n, matrices, state);
+  iir_1chan(in2, out2, n, matrices + 16, state + 2);
+}
+
+#ifdef __SSE2__
+#include <emmintrin.h>
+
+static void iir_1chan_sse(const float *in, float *out, size_t n,
+    const float *m, float *state) {
+  __m128 m0 = _mm_load_ps(m);
+  __m128 m1 = _mm_load_ps(m + 4);
+  __m128 m2 = _mm_load_ps(m + 8);
+  __m128 m3 = _mm_load_ps(m + 12);
+  // The state lives in lanes 2 and 3 of v.
+  __m128 v = _mm_setr_ps(0, 0, state[0], state[1]);
+  for (size_t i = 0; i < n; i += 2) {
+    __m128 u = _mm_add_ps(_mm_mul_ps(m0, _mm_set1_ps(in[i])),
+      _mm_mul_ps(m1, _mm_set1_ps(in[i + 1])));
+    __m128 w = _mm_add_ps(
+      _mm_mul_ps(m2, _mm_shuffle_ps(v, v, _MM_SHUFFLE(2, 2, 2, 2))),
+      _mm_mul_ps(m3, _mm_shuffle_ps(v, v, _MM_SHUFFLE(3, 3, 3, 3))));
+    v = _mm_add_ps(u, w);
+    _mm_storel_pi((__m64 *)(out + i), v);
+  }
+  _mm_storeh_pi((__m64 *)state, v);
+}
+
+void iir_2chan_sse(const float *in1, const float *in2, float *out1,
+    float *out2, size_t n, const float *matrices, float *state) {
+  iir_1chan_sse(in1, out1, n, matrices, state);
+  iir_1chan_sse(in2, out2, n, matrices + 16, state + 2);
+}
+#endif
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef SYNTH_IIR_H_
+#define SYNTH_IIR_H_
+
+#include <stddef.h>
+
+// Second order IIR filter core (suitable for biquads) for two channels.
+// Each channel has a 4x4 column-major matrix (channel 2's follows channel
+// 1's) that maps two input samples and two state values to two output
+// samples and the next state. state holds two values per channel. n is the
+// buffer size in floats, a multiple of 4 and at least 8; buffers are 16 byte
+// aligned. See initbiquadmatrix in test_filter.cc for building the matrices.
+void iir_2chan_scalar(const float *in1, const float *in2, float *out1,
+  float *out2, size_t n, const float *matrices, float *state);
+
+#ifdef __SSE2__
+void iir_2chan_sse(const float *in1, const float *in2, float *out1,
+  float *out2, size_t n, const float *matrices, float *state);
+#endif
+
+#ifdef HAVE_NEON
+// Note: this one doesn't write the state back.
+extern "C"
+void neon_iir_2chan(const float *in1, const float *in2, float *out1,
+  float *out2, size_t n, const float *matrices, float *state);
+#endif
+
+#endif  // SYNTH_IIR_H_
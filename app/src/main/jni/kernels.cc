@@ -0,0 +1,333 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <stdio.h>
+#include <time.h>
+
+#if defined(__ARM_NEON__) && !defined(__aarch64__)
+#include <fcntl.h>
+#include <unistd.h>
+#endif
+
+#include "synth.h"
+#include "aligned_buf.h"
+#include "fir.h"
+#include "iir.h"
+#include "fm_op_kernel.h"
+#include "resofilter.h"
+#include "kernels.h"
+
+static FirFilter<float, float> *new_simple_fir(const float *kernel,
+    size_t nk) {
+  return new SimpleFirFilter(kernel, nk);
+}
+
+#ifdef __SSE2__
+static FirFilter<float, float> *new_sse_fir(const float *kernel, size_t nk) {
+  return new SseFirFilter(kernel, nk);
+}
+#endif
+
+#ifdef HAVE_NEON
+static FirFilter<float, float> *new_neon_fir(const float *kernel, size_t nk) {
+  return new NeonFirFilter(kernel, nk);
+}
+#endif
+
+FmKernel Kernels::fm = FmOpKernel::compute_scalar;
+FmKernelSet Kernels::fm_tiers[kNumQualities] = {
+  {FmOpKernel::compute_economy, FmOpKernel::compute_fb_economy},
+  {FmOpKernel::compute_scalar, FmOpKernel::compute_fb},
+  {FmOpKernel::compute_high, FmOpKernel::compute_fb_high}
+};
+LadderMatrixKernel Kernels::ladder_mkmatrix = ladder_mkmatrix_scalar;
+LadderKernel Kernels::ladder_lin = ladder_lin_scalar;
+LadderKernel Kernels::ladder_nl = ladder_nl_scalar;
+IirKernel Kernels::iir_2chan = iir_2chan_scalar;
+FirFactory Kernels::new_fir = new_simple_fir;
+
+const char *Kernels::fm_name_ = "scalar";
+const char *Kernels::ladder_name_ = "scalar";
+const char *Kernels::iir_name_ = "scalar";
+const char *Kernels::fir_name_ = "scalar";
+bool Kernels::autotuned_ = false;
+
+#if defined(__ARM_NEON__) && !defined(__aarch64__)
+// Reads AT_HWCAP from the aux vector. getauxval would be simpler, but it
+// needs API level 18.
+bool hasNeon() {
+  static int has_neon = -1;
+  if (has_neon < 0) {
+    has_neon = 0;
+    int fd = open("/proc/self/auxv", O_RDONLY);
+    if (fd >= 0) {
+      unsigned long entry[2];
+      while (read(fd, entry, sizeof(entry)) == sizeof(entry) &&
+          entry[0] != 0) {
+        const unsigned long kAtHwcap = 16;
+        const unsigned long kHwcapNeon = 1 << 12;
+        if (entry[0] == kAtHwcap) {
+          has_neon = (entry[1] & kHwcapNeon) != 0;
+          break;
+        }
+      }
+      close(fd);
+    }
+  }
+  return has_neon;
+}
+#endif
+
+template<typename T>
+struct Candidate {
+  const char *name;
+  T fn;
+};
+
+struct LadderKernels {
+  LadderMatrixKernel mkmatrix;
+  LadderKernel lin;
+  LadderKernel nl;
+};
+
+static const int kTuneRuns = 5;
+static const int kTuneIters = 200;
+
+static double now() {
+  struct timespec tp;
+  clock_gettime(CLOCK_MONOTONIC, &tp);
+  return tp.tv_sec + 1e-9 * tp.tv_nsec;
+}
+
+static double time_fm(FmKernel fn) {
+  AlignedBuf<int32_t, N> in;
+  AlignedBuf<int32_t, N> out;
+  for (int i = 0; i < N; i++) {
+    in.get()[i] = i << 18;
+    out.get()[i] = 0;
+  }
+  double best = 1e9;
+  for (int run = 0; run < kTuneRuns; run++) {
+    double start = now();
+    for (int i = 0; i < kTuneIters; i++) {
+      fn(out.get(), in.get(), N, i << 16, 123456, 1 << 24, 1 << 23, true);
+      fn(out.get(), NULL, N, i << 16, 123456, 1 << 24, 1 << 23, false);
+    }
+    best = min(best, now() - start);
+  }
+  return best;
+}
+
+static double time_ladder(LadderKernels k) {
+  AlignedBuf<int32_t, N> in;
+  AlignedBuf<int32_t, N> out;
+  AlignedBuf<float, 23> a;
+  AlignedBuf<float, 20> m;
+  AlignedBuf<float, 4> state;
+  for (int i = 0; i < N; i++) {
+    in.get()[i] = (i - (N >> 1)) << 18;
+  }
+  for (int i = 0; i < 4; i++) {
+    state.get()[i] = 0;
+  }
+  double best = 1e9;
+  for (int run = 0; run < kTuneRuns; run++) {
+    double start = now();
+    for (int i = 0; i < kTuneIters; i++) {
+      float params[2] = {0.01f, 1.0f + (i & 1)};
+      k.mkmatrix(params, m.get());
+      for (int j = 0; j < 16; j++) {
+        a.get()[j] = m.get()[4 + j];
+      }
+      for (int j = 0; j < 4; j++) {
+        a.get()[16 + j] = m.get()[j];
+      }
+      a.get()[20] = params[1];
+      a.get()[21] = 1.0f / (1 << 24);
+      a.get()[22] = 2.0f;
+      k.lin(in.get(), a.get(), out.get(), N, state.get());
+      k.nl(in.get(), a.get(), out.get(), N, state.get());
+    }
+    best = min(best, now() - start);
+  }
+  return best;
+}
+
+static double time_iir(IirKernel fn) {
+  AlignedBuf<float, N> in;
+  AlignedBuf<float, N> out1;
+  AlignedBuf<float, N> out2;
+  AlignedBuf<float, 32> matrices;
+  AlignedBuf<float, 4> state;
+  for (int i = 0; i < N; i++) {
+    in.get()[i] = (i & 7) * 0.125f - 0.5f;
+  }
+  // A mild lowpass; the exact coefficients don't matter for timing.
+  for (int i = 0; i < 32; i++) {
+    matrices.get()[i] = 0.0625f;
+  }
+  for (int i = 0; i < 4; i++) {
+    state.get()[i] = 0;
+  }
+  double best = 1e9;
+  for (int run = 0; run < kTuneRuns; run++) {
+    double start = now();
+    for (int i = 0; i < kTuneIters; i++) {
+      fn(in.get(), in.get(), out1.get(), out2.get(), N, matrices.get(),
+        state.get());
+    }
+    best = min(best, now() - start);
+  }
+  return best;
+}
+
+static double time_fir(FirFactory factory) {
+  const int nk = 64;
+  AlignedBuf<float, nk> kernel;
+  AlignedBuf<float, nk + N + 4> in;
+  AlignedBuf<float, N> out;
+  for (int i = 0; i < nk; i++) {
+    kernel.get()[i] = 1.0f / nk;
+  }
+  for (int i = 0; i < nk + N + 4; i++) {
+    in.get()[i] = (i & 7) * 0.125f - 0.5f;
+  }
+  FirFilter<float, float> *f = factory(kernel.get(), nk);
+  double best = 1e9;
+  for (int run = 0; run < kTuneRuns; run++) {
+    double start = now();
+    for (int i = 0; i < kTuneIters; i++) {
+      // in + (nk - 1) has to be aligned
+      f->process(in.get() + 1, out.get(), N);
+    }
+    best = min(best, now() - start);
+  }
+  delete f;
+  return best;
+}
+
+// Candidates are listed from slowest to (expected) fastest, so without
+// timing the last one wins.
+template<typename T>
+static int choose(const Candidate<T> *candidates, int n, bool autotune,
+    double (*time)(T)) {
+  if (!autotune) {
+    return n - 1;
+  }
+  int best = 0;
+  double best_time = 1e9;
+  for (int i = 0; i < n; i++) {
+    double t = time(candidates[i].fn);
+    if (t < best_time) {
+      best = i;
+      best_time = t;
+    }
+  }
+  return best;
+}
+
+void Kernels::init(bool autotune) {
+  Candidate<FmKernel> fm_candidates[4];
+  int n_fm = 0;
+  Candidate<FmKernel> fm_scalar = {"scalar", FmOpKernel::compute_scalar};
+  fm_candidates[n_fm++] = fm_scalar;
+#ifdef HAVE_X86_INTRINSICS
+  if (hasSse41()) {
+    Candidate<FmKernel> c = {"sse41", FmOpKernel::compute_sse41};
+    fm_candidates[n_fm++] = c;
+  }
+  if (hasAvx2()) {
+    Candidate<FmKernel> c = {"avx2", FmOpKernel::compute_avx2};
+    fm_candidates[n_fm++] = c;
+  }
+#endif
+#ifdef HAVE_NEON_INTRINSICS
+  if (hasNeon()) {
+    Candidate<FmKernel> c = {"neon", FmOpKernel::compute_neon};
+    fm_candidates[n_fm++] = c;
+  }
+#endif
+  int i = choose(fm_candidates, n_fm, autotune, time_fm);
+  fm = fm_candidates[i].fn;
+  fm_name_ = fm_candidates[i].name;
+  fm_tiers[kQualityStandard].fm = fm;
+  // The coarse table only beats the scalar kernel; the SIMD ones are faster
+  // still, so economy uses those when there are any.
+  fm_tiers[kQualityEconomy].fm = i == 0 ? FmOpKernel::compute_economy : fm;
+
+  Candidate<LadderKernels> ladder_candidates[2];
+  int n_ladder = 0;
+  Candidate<LadderKernels> ladder_scalar = {"scalar",
+    {ladder_mkmatrix_scalar, ladder_lin_scalar, ladder_nl_scalar}};
+  ladder_candidates[n_ladder++] = ladder_scalar;
+#ifdef HAVE_NEON
+  if (hasNeon()) {
+    Candidate<LadderKernels> c = {"neon",
+      {neon_ladder_mkmatrix, neon_ladder_lin, neon_ladder_nl}};
+    ladder_candidates[n_ladder++] = c;
+  }
+#endif
+  i = choose(ladder_candidates, n_ladder, autotune, time_ladder);
+  ladder_mkmatrix = ladder_candidates[i].fn.mkmatrix;
+  ladder_lin = ladder_candidates[i].fn.lin;
+  ladder_nl = ladder_candidates[i].fn.nl;
+  ladder_name_ = ladder_candidates[i].name;
+
+  Candidate<IirKernel> iir_candidates[3];
+  int n_iir = 0;
+  Candidate<IirKernel> iir_scalar = {"scalar", iir_2chan_scalar};
+  iir_candidates[n_iir++] = iir_scalar;
+#ifdef __SSE2__
+  Candidate<IirKernel> iir_sse = {"sse", iir_2chan_sse};
+  iir_candidates[n_iir++] = iir_sse;
+#endif
+#ifdef HAVE_NEON
+  if (hasNeon()) {
+    Candidate<IirKernel> c = {"neon", neon_iir_2chan};
+    iir_candidates[n_iir++] = c;
+  }
+#endif
+  i = choose(iir_candidates, n_iir, autotune, time_iir);
+  iir_2chan = iir_candidates[i].fn;
+  iir_name_ = iir_candidates[i].name;
+
+  Candidate<FirFactory> fir_candidates[3];
+  int n_fir = 0;
+  Candidate<FirFactory> fir_simple = {"scalar", new_simple_fir};
+  fir_candidates[n_fir++] = fir_simple;
+#ifdef __SSE2__
+  Candidate<FirFactory> fir_sse = {"sse", new_sse_fir};
+  fir_candidates[n_fir++] = fir_sse;
+#endif
+#ifdef HAVE_NEON
+  if (hasNeon()) {
+    Candidate<FirFactory> c = {"neon", new_neon_fir};
+    fir_candidates[n_fir++] = c;
+  }
+#endif
+  i = choose(fir_candidates, n_fir, autotune, time_fir);
+  new_fir = fir_candidates[i].fn;
+  fir_name_ = fir_candidates[i].name;
+
+  autotuned_ = autotune;
+}
+
+int Kernels::describe(char *buf, int size) {
+  int len = snprintf(buf, size, "kernels fm=%s ladder=%s fir=%s iir=%s "
+    "autotune=%d\n", fm_name_, ladder_name_, fir_name_, iir_name_,
+    autotuned_ ? 1 : 0);
+  return min(len, size - 1);
+}
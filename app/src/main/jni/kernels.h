@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef SYNTH_KERNELS_H_
+#define SYNTH_KERNELS_H_
+
+#include <stddef.h>
+#include <stdint.h>
+
+#include "synth.h"
+#include "fir.h"
+
+typedef void (*FmKernel)(int32_t *output, const int32_t *input, int n,
+  int32_t phase0, int32_t freq, int32_t gain1, int32_t gain2, bool add);
+typedef void (*FmFbKernel)(int32_t *output, int n, int32_t phase0,
+  int32_t freq, int32_t gain1, int32_t gain2, int32_t *fb_buf, int fb_shift,
+  bool add);
+typedef void (*LadderMatrixKernel)(const float *params, float *a);
+typedef void (*LadderKernel)(const int32_t *in, const float *a, int32_t *out,
+  int count, float *state);
+typedef void (*IirKernel)(const float *in1, const float *in2, float *out1,
+  float *out2, size_t n, const float *matrices, float *state);
+typedef FirFilter<float, float> *(*FirFactory)(const float *kernel,
+  size_t nk);
+
+// The operator kernels FmCore renders with at one quality tier.
+struct FmKernelSet {
+  FmKernel fm;
+  FmFbKernel fb;
+};
+
+// Dispatch table for the inner loops that have more than one
+// implementation. Until init is called, everything points at the portable
+// versions.
+class Kernels {
+ public:
+  // Picks an implementation for each kernel from the cpu features. With
+  // autotune, every candidate that the cpu supports is also timed for a few
+  // milliseconds, and the fastest wins. Call before any audio is rendered.
+  static void init(bool autotune);
+
+  // Writes a line describing the choice, in the form
+  // "kernels fm=avx2 ladder=scalar fir=sse iir=sse autotune=0\n", for the
+  // stats channel. Returns the length.
+  static int describe(char *buf, int size);
+
+  // FmOpKernel::compute, input may be NULL.
+  static FmKernel fm;
+
+  // Operator kernels for each Quality. The standard tier uses fm, and so
+  // does economy when fm is a SIMD kernel.
+  static FmKernelSet fm_tiers[kNumQualities];
+
+  // ResoFilter's matrix ladder. These three go together.
+  static LadderMatrixKernel ladder_mkmatrix;
+  static LadderKernel ladder_lin;
+  static LadderKernel ladder_nl;
+
+  static IirKernel iir_2chan;
+
+  // Creates a FIR filter; nk must be a multiple of 4.
+  static FirFactory new_fir;
+
+ private:
+  static const char *fm_name_;
+  static const char *ladder_name_;
+  static const char *iir_name_;
+  static const char *fir_name_;
+  static bool autotuned_;
+};
+
+#endif  // SYNTH_KERNELS_H_
@@ -20,12 +20,18 @@
 
 #include "sin.h"
 #include "lfo.h"
+#include "rate_tables.h"
 
-uint32_t Lfo::unit_;
-
-void Lfo::init(double sample_rate) {
+uint32_t Lfo::unit(double sample_rate) {
   // constant is 1 << 32 / 15.5s / 11
-  Lfo::unit_ = (int32_t)(N * 25190424 / sample_rate + 0.5);
+  return (int32_t)(N * 25190424 / sample_rate + 0.5);
+}
+
+Lfo::Lfo(const RateTables *tables) {
+  unit_ = tables->lfo_unit();
+  phase_ = 0;
+  randstate_ = 0;
+  delaystate_ = 0;
 }
 
 void Lfo::reset(const char params[6]) {
@@ -48,8 +54,15 @@ void Lfo::reset(const char params[6]) {
   sync_ = params[4] != 0;
 }
 
-int32_t Lfo::getsample() {
-  phase_ += delta_;
+// Scales an increment calibrated for N samples to a block of n samples.
+// Saturates, since ~0 is used as "no delay".
+static inline uint32_t scale_inc(uint32_t inc, int n) {
+  return min(((uint64_t)inc * n) >> LG_N, (uint64_t)~0u);
+}
+
+int32_t Lfo::getsample(int n) {
+  uint32_t delta = scale_inc(delta_, n);
+  phase_ += delta;
   int32_t x;
   switch (waveform_) {
   case 0:  // triangle
@@ -66,7 +79,7 @@ int32_t Lfo::getsample() {
   case 4:  // sine
     return (1 << 23) + (Sin::lookup(phase_ >> 8) >> 1);
   case 5:  // s&h
-    if (phase_ < delta_) {
+    if (phase_ < delta) {
       randstate_ = (randstate_ * 179 + 17) & 0xff;
     }
     x = randstate_ ^ 0x80;
@@ -75,10 +88,12 @@ int32_t Lfo::getsample() {
   return 1 << 23;
 }
 
-int32_t Lfo::getdelay() {
-  uint32_t delta = delaystate_ < (1U << 31) ? delayinc_ : delayinc2_;
+int32_t Lfo::getdelay(int n) {
+  uint32_t delayinc = scale_inc(delayinc_, n);
+  uint32_t delta = scale_inc(delaystate_ < (1U << 31) ? delayinc_ : delayinc2_,
+    n);
   uint32_t d = delaystate_ + delta;
-  if (d < delayinc_) {
+  if (d < delayinc) {
     return 1 << 24;
   }
   delaystate_ = d;
@@ -14,25 +14,35 @@
  * limitations under the License.
  */
 
+#ifndef SYNTH_LFO_H_
+#define SYNTH_LFO_H_
+
 // Low frequency oscillator, compatible with DX7
 
+class RateTables;
+
 class Lfo {
  public:
-  static void init(double sample_rate);
+  // The rate unit for a sample rate, as kept in RateTables.
+  static uint32_t unit(double sample_rate);
+
+  explicit Lfo(const RateTables *tables);
   void reset(const char params[6]);
 
+  // Both of these advance by a block of n samples.
+
   // result is 0..1 in Q24
-  int32_t getsample();
+  int32_t getsample(int n);
 
   // result is 0..1 in Q24
-  int32_t getdelay();
+  int32_t getdelay(int n);
 
   void keydown();
  private:
-  static uint32_t unit_;
+  uint32_t unit_;
 
   uint32_t phase_;  // Q32
-  uint32_t delta_;
+  uint32_t delta_;  // per N samples, as are the delay increments
   uint8_t waveform_;
   uint8_t randstate_;
   bool sync_;
@@ -41,3 +51,5 @@ class Lfo {
   uint32_t delayinc_;
   uint32_t delayinc2_;
 };
+
+#endif  // SYNTH_LFO_H_
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "synth.h"
+#include "load_governor.h"
+
+// Fractions of the buffer period. Above the high one a voice is shed;
+// below the low one for kCalmTime seconds, a voice is given back.
+static const double kHighLoad = 0.75;
+static const double kLowLoad = 0.4;
+static const double kCalmTime = 1.0;
+
+// Never go below this many voices.
+static const int kMinVoices = 2;
+
+LoadGovernor::LoadGovernor(int max_voices) {
+  max_voices_ = max_voices;
+  voice_limit_ = max_voices;
+  calm_time_ = 0;
+}
+
+bool LoadGovernor::Update(double elapsed, double period, int n_live) {
+  int old_limit = voice_limit_;
+  if (elapsed > kHighLoad * period) {
+    voice_limit_ = max(kMinVoices, min(voice_limit_, n_live) - 1);
+    calm_time_ = 0;
+  } else if (elapsed < kLowLoad * period) {
+    calm_time_ += period;
+    if (calm_time_ >= kCalmTime && voice_limit_ < max_voices_) {
+      voice_limit_++;
+      calm_time_ = 0;
+    }
+  } else {
+    calm_time_ = 0;
+  }
+  return voice_limit_ != old_limit;
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef SYNTH_LOAD_GOVERNOR_H_
+#define SYNTH_LOAD_GOVERNOR_H_
+
+// Decides how many voices the audio thread can afford, from how long each
+// buffer took to render compared to its period. When a buffer comes close
+// to its deadline the limit drops one voice below the number playing, so
+// repeated overruns shed voices one at a time. The limit only comes back
+// up, again one voice at a time, after the load has stayed well below the
+// deadline for a while.
+class LoadGovernor {
+ public:
+  explicit LoadGovernor(int max_voices);
+
+  // Feeds the render time of the last buffer, its period (both in seconds)
+  // and the number of voices that were playing. Returns whether the voice
+  // limit changed.
+  bool Update(double elapsed, double period, int n_live);
+
+  int voice_limit() const { return voice_limit_; }
+
+ private:
+  int max_voices_;
+  int voice_limit_;
+  // Seconds of audio since the load was last above the low threshold.
+  double calm_time_;
+};
+
+#endif  // SYNTH_LOAD_GOVERNOR_H_
@@ -16,12 +16,14 @@
 
 #include <iostream>
 #include <cstdlib>
+#include <cstring>
 #include <math.h>
+#include <time.h>
 
 #include "synth.h"
 #include "module.h"
 #include "aligned_buf.h"
-#include "freqlut.h"
+#include "rate_tables.h"
 #include "wavout.h"
 #include "sawtooth.h"
 #include "sin.h"
@@ -34,6 +36,8 @@
 #include "patch.h"
 #include "controllers.h"
 #include "dx7note.h"
+#include "midi_input.h"
+#include "synth_unit.h"
 
 using namespace std;
 
@@ -51,7 +55,7 @@ void benchmark_fm_op() {
   int32_t buf[64];
   int32_t fb_buf[2];
   for (int i = 0; i < 15625000; i++)
-    FmOpKernel::compute_fb(buf, 0, 123456, 1 << 24, 1 << 24,
+    FmOpKernel::compute_fb(buf, 64, 0, 123456, 1 << 24, 1 << 24,
                            fb_buf, 1, false);
 }
 
@@ -108,7 +112,7 @@ void test_pure_accuracy() {
     int32_t phase = rand() & 0xffffff;
     int32_t gain = 1 << 24;
     int32_t buf[64];
-    FmOpKernel::compute_pure(buf, phase, freq, gain, gain, false);
+    FmOpKernel::compute_pure(buf, 64, phase, freq, gain, gain, false);
     int32_t maxerr = 0;
     for (int j = 0; j < 64; j++) {
       double y = gain * sin((phase + j * freq) * (2.0 * M_PI / (1 << 24)));
@@ -137,7 +141,7 @@ void mksaw(double sample_rate) {
   int32_t control_last[1];
   int32_t control[1];
 
-  ResoFilter rf;
+  ResoFilter rf(RateTables::get(sample_rate));
   int32_t fc_last[2];
   int32_t fc[2];
   fc[0] = 0;  // TODO
@@ -164,8 +168,8 @@ void mksaw(double sample_rate) {
     control[0] = (1 << 24) * log(f * sample_rate) / log(2);
     fc_last[1] = fc[1];
     fc[1] = 4.0 * i * (1 << 24) / n_samples;
-    s.process((const int32_t **)0, control, control_last, bufs);
-    rf.process((const int32_t **)bufs, fc, fc_last, bufs2);
+    s.process((const int32_t **)0, control, control_last, bufs, 64);
+    rf.process((const int32_t **)bufs, fc, fc_last, bufs2, 64);
     for (int j = 0; j < 64; j++) {
       buf2[j] = buf[j] >> 1;
       //phase += 100000;
@@ -206,19 +210,19 @@ void mknote(double sample_rate) {
       e.keydown(false);
       e2.keydown(false);
     }
-    int32_t level = e.getsample();
+    int32_t level = e.getsample(N);
     gain2 = (1<<8) * pow(2, level * (1.0 / (1 << 24)));
-    FmOpKernel::compute_pure(buf, phase, freq, gain1, gain2, false);
-    level = e2.getsample();
+    FmOpKernel::compute_pure(buf, N, phase, freq, gain1, gain2, false);
+    level = e2.getsample(N);
     gain22 = (1<<8) * pow(2, level * (1.0 / (1 << 24)));
-    FmOpKernel::compute(buf, buf, phase, freq, gain21, gain22, false);
+    FmOpKernel::compute(buf, buf, N, phase, freq, gain21, gain22, false);
     phase += freq << LG_N;
     w.write_data(buf, N);
   }
   w.close();
 }
 
-char epiano[] = {
+static char epiano[] = {
   95, 29, 20, 50, 99, 95, 0, 0, 41, 0, 19, 0, 115, 24, 79, 2, 0, 95, 20, 20,
   50, 99, 95, 0, 0, 0, 0, 0, 0, 3, 0, 99, 2, 0, 95, 29, 20, 50, 99, 95, 0, 0,
   0, 0, 0, 0, 59, 24, 89, 2, 0, 95, 20, 20, 50, 99, 95, 0, 0, 0, 0, 0, 0, 59,
@@ -232,7 +236,7 @@ void mkdx7note(double sample_rate) {
   const int n_samples = 400 * 1024;
   WavOut w("/tmp/foo.wav", sample_rate, n_samples);
 
-  Dx7Note note;
+  Dx7Note note(RateTables::get(sample_rate));
   char unpacked_patch[156];
   UnpackPatch(epiano, unpacked_patch);
   note.init(unpacked_patch, 57, 64);
@@ -247,7 +251,7 @@ void mkdx7note(double sample_rate) {
     if (i == n_samples / 2) {
       note.keyup();
     }
-     note.compute(buf, 0, 0, &controllers);
+     note.compute(buf, N, 0, 0, &controllers);
     for (int j = 0; j < N; j++) {
       buf[j] >>= 2;
     }
@@ -256,8 +260,68 @@ void mkdx7note(double sample_rate) {
   w.close();
 }
 
+static double seconds_now() {
+  struct timespec tp;
+  clock_gettime(CLOCK_MONOTONIC, &tp);
+  return tp.tv_sec + 1e-9 * tp.tv_nsec;
+}
+
+// Seconds to render 10 seconds of the default patch with n_voices playing.
+// The notes are struck again every 256 blocks, so they don't die away.
+static double time_voices(Quality quality, int n_voices, double sample_rate) {
+  MidiInput midi_input;
+  SynthUnit synth_unit(&midi_input, sample_rate);
+  synth_unit.SetQuality(quality);
+  int16_t buf[N];
+  int n_blocks = (int)(10 * sample_rate) / N;
+  double elapsed = 0;
+  for (int i = 0; i < n_blocks; i++) {
+    if (i % 256 == 0) {
+      for (int j = 0; j < n_voices; j++) {
+        uint8_t msg[3] = {0x90, (uint8_t)(40 + 3 * j), 100};
+        midi_input.Write(msg, 3);
+      }
+    } else if (i % 256 == 255) {
+      for (int j = 0; j < n_voices; j++) {
+        uint8_t msg[3] = {0x80, (uint8_t)(40 + 3 * j), 0};
+        midi_input.Write(msg, 3);
+      }
+    }
+    double start = seconds_now();
+    synth_unit.GetSamples(N, buf);
+    elapsed += seconds_now() - start;
+  }
+  return elapsed;
+}
+
+// Prints the cost of one voice at each quality tier, as a percentage of a
+// core in real time, or only at the named tier.
+void benchmark_quality(const char *tier, double sample_rate) {
+  const char *names[kNumQualities] = {"economy", "standard", "high"};
+  SynthUnit::Init();
+  for (int q = 0; q < kNumQualities; q++) {
+    if (tier != NULL && strcmp(tier, names[q]) != 0) {
+      continue;
+    }
+    double idle = time_voices((Quality)q, 0, sample_rate);
+    double full = time_voices((Quality)q, 16, sample_rate);
+    cout << names[q] << ": " << (full - idle) / 16 * 10 << "% per voice, " <<
+      idle * 10 << "% idle" << endl;
+  }
+}
+
 void test_ringbuffer();
 
+void test_buffer_controller();
+
+void test_midi_queue();
+
+void test_midi_input();
+
+void test_sequencer();
+
+void test_fm_kernel();
+
 void test_exp2() {
   for (int32_t i = -16 << 24; i < 6 << 24; i += 123) {
     int32_t result = Exp2::lookup(i);
@@ -272,12 +336,16 @@ void test_exp2() {
 
 int main(int argc, char **argv) {
   double sample_rate = 44100.0;
-  Freqlut::init(sample_rate);
   Sawtooth::init(sample_rate);
   Sin::init();
   Exp2::init();
   Log2::init();
 
+  if (argc > 1 && strcmp(argv[1], "quality") == 0) {
+    benchmark_quality(argc > 2 ? argv[2] : NULL, sample_rate);
+    return 0;
+  }
+
   //FmCore::dump();
   //test_sin_accuracy();
   test_log_accuracy();
@@ -291,6 +359,11 @@ int main(int argc, char **argv) {
   //mkdx7note(sample_rate);
   mksaw(sample_rate);
   //test_ringbuffer();
+  test_midi_queue();
+  test_midi_input();
+  test_buffer_controller();
+  test_sequencer();
+  test_fm_kernel();
   test_exp2();
   return 0;
 }
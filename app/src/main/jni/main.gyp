@@ -12,6 +12,21 @@
       ],
       'include_dirs': ['.'],
     },
+    {
+      'target_name': 'render',
+      'type': 'executable',
+      'sources': [
+        'render_main.cc',
+        'wavout.cc',
+      ],
+      'dependencies': [
+        'core.gyp:core',
+      ],
+      'include_dirs': ['.'],
+      'link_settings': {
+        'libraries': ['-lpthread'],
+      },
+    },
   ],
 }
 
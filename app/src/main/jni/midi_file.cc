@@ -0,0 +1,262 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <stdlib.h>
+#include <string.h>
+
+#include "synth.h"
+#include "midi_file.h"
+
+// Grows a malloc'ed array to hold at least n elements.
+template<typename T>
+static void Reserve(T **array, int *capacity, int n) {
+  if (n > *capacity) {
+    *capacity = max(n, max(256, *capacity * 2));
+    *array = (T *)realloc(*array, *capacity * sizeof(T));
+  }
+}
+
+static uint32_t Read32(const uint8_t *p) {
+  return (p[0] << 24) | (p[1] << 16) | (p[2] << 8) | p[3];
+}
+
+// Reads a variable length quantity, returning false if it runs past end.
+static bool ReadVarInt(const uint8_t **p, const uint8_t *end, uint32_t *value) {
+  uint32_t result = 0;
+  for (int i = 0; i < 4; i++) {
+    if (*p == end) {
+      return false;
+    }
+    uint8_t b = *(*p)++;
+    result = (result << 7) | (b & 0x7f);
+    if ((b & 0x80) == 0) {
+      *value = result;
+      return true;
+    }
+  }
+  return false;
+}
+
+// Number of data bytes following a channel message status.
+static int ChannelDataSize(uint8_t status) {
+  uint8_t type = status & 0xf0;
+  return type == 0xc0 || type == 0xd0 ? 1 : 2;
+}
+
+MidiFile::MidiFile() {
+  events_ = NULL;
+  events_capacity_ = 0;
+  tempos_ = NULL;
+  tempos_capacity_ = 0;
+  bytes_ = NULL;
+  bytes_capacity_ = 0;
+  Clear();
+}
+
+MidiFile::~MidiFile() {
+  free(events_);
+  free(tempos_);
+  free(bytes_);
+}
+
+void MidiFile::Clear() {
+  n_events_ = 0;
+  n_tempos_ = 0;
+  n_bytes_ = 0;
+  last_tick_ = 0;
+  duration_ = 0;
+}
+
+bool MidiFile::Parse(const uint8_t *data, int size) {
+  Clear();
+  if (size < 14 || memcmp(data, "MThd", 4) != 0 || Read32(data + 4) < 6) {
+    return false;
+  }
+  int format = (data[8] << 8) | data[9];
+  int n_tracks = (data[10] << 8) | data[11];
+  int division = (data[12] << 8) | data[13];
+  if (format > 1) {
+    return false;
+  }
+  if (division & 0x8000) {
+    int frames_per_second = -(int8_t)(division >> 8);
+    ticks_per_beat_ = -1;
+    ticks_per_second_ = frames_per_second * (division & 0xff);
+  } else {
+    ticks_per_beat_ = division;
+    ticks_per_second_ = 0;
+  }
+  if (ticks_per_beat_ == 0 || ticks_per_second_ < 0) {
+    return false;
+  }
+
+  const uint8_t *p = data + 8 + Read32(data + 4);
+  const uint8_t *end = data + size;
+  int order = 0;
+  for (int track = 0; track < n_tracks; track++) {
+    if (end - p < 8) {
+      return false;
+    }
+    uint32_t track_size = Read32(p + 4);
+    if (track_size > (uint32_t)(end - p - 8)) {
+      return false;
+    }
+    // Chunks other than MTrk are to be skipped.
+    if (memcmp(p, "MTrk", 4) != 0) {
+      track--;
+    } else if (!ParseTrack(p + 8, p + 8 + track_size, &order)) {
+      return false;
+    }
+    p += 8 + track_size;
+  }
+
+  qsort(events_, n_events_, sizeof(Event), CompareEvents);
+  qsort(tempos_, n_tempos_, sizeof(Tempo), CompareTempos);
+  ApplyTempoMap();
+  return true;
+}
+
+bool MidiFile::ParseTrack(const uint8_t *p, const uint8_t *end, int *order) {
+  int64_t tick = 0;
+  uint8_t running_status = 0;
+  while (p < end) {
+    uint32_t delta;
+    if (!ReadVarInt(&p, end, &delta) || p == end) {
+      return false;
+    }
+    tick += delta;
+    last_tick_ = max(last_tick_, tick);
+    uint8_t status = *p;
+    if (status == 0xff) {
+      // meta event
+      if (end - p < 2) {
+        return false;
+      }
+      uint8_t type = p[1];
+      p += 2;
+      uint32_t len;
+      if (!ReadVarInt(&p, end, &len) || len > (uint32_t)(end - p)) {
+        return false;
+      }
+      if (type == 0x51 && len == 3) {
+        AddTempo(tick, (*order)++, (p[0] << 16) | (p[1] << 8) | p[2]);
+      } else if (type == 0x2f) {
+        break;
+      }
+      p += len;
+    } else if (status == 0xf0 || status == 0xf7) {
+      // sysex, or an escape for arbitrary bytes
+      p++;
+      uint32_t len;
+      if (!ReadVarInt(&p, end, &len) || len > (uint32_t)(end - p)) {
+        return false;
+      }
+      AddEvent(tick, (*order)++, status == 0xf0 ? &status : NULL, p, len);
+      running_status = 0;
+      p += len;
+    } else {
+      if (status & 0x80) {
+        p++;
+        running_status = status;
+      } else if (running_status == 0) {
+        return false;
+      }
+      int data_size = ChannelDataSize(running_status);
+      if (end - p < data_size) {
+        return false;
+      }
+      AddEvent(tick, (*order)++, &running_status, p, data_size);
+      p += data_size;
+    }
+  }
+  return true;
+}
+
+void MidiFile::AddEvent(int64_t tick, int order, const uint8_t *status,
+    const uint8_t *data, int data_size) {
+  int size = (status != NULL ? 1 : 0) + data_size;
+  if (size == 0) {
+    return;
+  }
+  Reserve(&bytes_, &bytes_capacity_, n_bytes_ + size);
+  Reserve(&events_, &events_capacity_, n_events_ + 1);
+  Event *event = &events_[n_events_++];
+  event->tick = tick;
+  event->order = order;
+  event->offset = n_bytes_;
+  event->size = size;
+  if (status != NULL) {
+    bytes_[n_bytes_++] = *status;
+  }
+  memcpy(bytes_ + n_bytes_, data, data_size);
+  n_bytes_ += data_size;
+}
+
+void MidiFile::AddTempo(int64_t tick, int order, int usec_per_beat) {
+  Reserve(&tempos_, &tempos_capacity_, n_tempos_ + 1);
+  Tempo *tempo = &tempos_[n_tempos_++];
+  tempo->tick = tick;
+  tempo->order = order;
+  tempo->usec_per_beat = usec_per_beat;
+}
+
+void MidiFile::ApplyTempoMap() {
+  // Seconds per tick, and the time and tick at which it took effect.
+  double tick_time;
+  if (ticks_per_beat_ < 0) {
+    tick_time = 1 / ticks_per_second_;
+  } else {
+    tick_time = 500000e-6 / ticks_per_beat_;
+  }
+  double segment_time = 0;
+  int64_t segment_tick = 0;
+  int tempo_ix = 0;
+  for (int i = 0; i <= n_events_; i++) {
+    int64_t tick = i < n_events_ ? events_[i].tick : last_tick_;
+    // SMPTE timing has no tempo.
+    while (ticks_per_beat_ > 0 && tempo_ix < n_tempos_ &&
+        tempos_[tempo_ix].tick <= tick) {
+      const Tempo &tempo = tempos_[tempo_ix++];
+      segment_time += (tempo.tick - segment_tick) * tick_time;
+      segment_tick = tempo.tick;
+      tick_time = tempo.usec_per_beat * 1e-6 / ticks_per_beat_;
+    }
+    double time = segment_time + (tick - segment_tick) * tick_time;
+    if (i < n_events_) {
+      events_[i].time = time;
+    } else {
+      duration_ = time;
+    }
+  }
+}
+
+int MidiFile::CompareEvents(const void *a, const void *b) {
+  const Event *ea = (const Event *)a;
+  const Event *eb = (const Event *)b;
+  if (ea->tick != eb->tick) {
+    return ea->tick < eb->tick ? -1 : 1;
+  }
+  return ea->order - eb->order;
+}
+
+int MidiFile::CompareTempos(const void *a, const void *b) {
+  const Tempo *ta = (const Tempo *)a;
+  const Tempo *tb = (const Tempo *)b;
+  if (ta->tick != tb->tick) {
+    return ta->tick < tb->tick ? -1 : 1;
+  }
+  return ta->order - tb->order;
+}
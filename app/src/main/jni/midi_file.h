@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef SYNTH_MIDI_FILE_H_
+#define SYNTH_MIDI_FILE_H_
+
+#include <stdint.h>
+
+// A standard MIDI file (format 0 or 1), flattened into a single list of
+// messages in time order. Only channel messages and sysex are kept; meta
+// events just go into the tempo map that times them.
+class MidiFile {
+ public:
+  MidiFile();
+  ~MidiFile();
+
+  // Parses a whole file, replacing anything parsed before. Returns false if
+  // it isn't a valid MIDI file.
+  bool Parse(const uint8_t *data, int size);
+
+  int n_events() const { return n_events_; }
+  // Seconds from the start of the file.
+  double time(int i) const { return events_[i].time; }
+  // A complete message, including the F0 of a sysex.
+  const uint8_t *message(int i) const { return bytes_ + events_[i].offset; }
+  int message_size(int i) const { return events_[i].size; }
+
+  // Time of the last event of any kind, including end of track.
+  double duration() const { return duration_; }
+
+ private:
+  struct Event {
+    int64_t tick;
+    // Position in the file, to keep simultaneous events in file order.
+    int order;
+    double time;
+    int offset;
+    int size;
+  };
+
+  struct Tempo {
+    int64_t tick;
+    int order;
+    int usec_per_beat;
+  };
+
+  void Clear();
+  bool ParseTrack(const uint8_t *p, const uint8_t *end, int *order);
+  void AddEvent(int64_t tick, int order, const uint8_t *status,
+    const uint8_t *data, int data_size);
+  void AddTempo(int64_t tick, int order, int usec_per_beat);
+  void ApplyTempoMap();
+
+  static int CompareEvents(const void *a, const void *b);
+  static int CompareTempos(const void *a, const void *b);
+
+  // Ticks per beat, or negative for SMPTE timing, where ticks_per_second_
+  // is used instead.
+  int ticks_per_beat_;
+  double ticks_per_second_;
+  int64_t last_tick_;
+  double duration_;
+
+  Event *events_;
+  int n_events_;
+  int events_capacity_;
+  Tempo *tempos_;
+  int n_tempos_;
+  int tempos_capacity_;
+  uint8_t *bytes_;
+  int n_bytes_;
+  int bytes_capacity_;
+};
+
+#endif  // SYNTH_MIDI_FILE_H_
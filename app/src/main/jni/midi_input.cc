@@ -0,0 +1,170 @@
+/*
+ * Copyright 2013 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <time.h>
+#include <string.h>
+
+#include "synth.h"
+#include "midi_input.h"
+
+MidiInput::MidiInput() {
+  policy_[kNoteLane] = kOverflowCoalesce;
+  policy_[kBulkLane] = kOverflowBlock;
+  for (int i = 0; i < kNumMidiLanes; i++) {
+    written_[i] = 0;
+    dropped_[i] = 0;
+    coalesced_[i] = 0;
+    blocked_[i] = 0;
+  }
+  for (int i = 0; i < kNumCoalesceSlots; i++) {
+    coalesce_slots_[i] = 0;
+    coalesce_positions_[i] = 0;
+  }
+  coalesce_dirty_ = 0;
+  collected_rd_ = 0;
+  collected_wr_ = 0;
+}
+
+void MidiInput::Write(const uint8_t *bytes, int size) {
+  if (size <= 0) {
+    return;
+  }
+  // Channel voice messages have status bytes 0x80..0xef.
+  MidiLane lane = (bytes[0] >= 0x80 && bytes[0] < 0xf0) ? kNoteLane : kBulkLane;
+  MidiQueue *queue = &lanes_[lane];
+  if (queue->TryWrite(bytes, size)) {
+    SynthAtomicIncrement(&written_[lane]);
+    return;
+  }
+  switch (policy_[lane]) {
+  case kOverflowCoalesce:
+    if (Coalesce(bytes, size)) {
+      SynthAtomicIncrement(&coalesced_[lane]);
+      return;
+    }
+    break;
+  case kOverflowBlock:
+    if (size <= MidiQueue::kMaxRecordSize) {
+      SynthAtomicIncrement(&blocked_[lane]);
+      queue->Write(bytes, size);
+      SynthAtomicIncrement(&written_[lane]);
+      return;
+    }
+    break;
+  }
+  SynthAtomicIncrement(&dropped_[lane]);
+}
+
+bool MidiInput::Coalesce(const uint8_t *bytes, int size) {
+  uint8_t cmd_type = bytes[0] & 0xf0;
+  int channel = bytes[0] & 0x0f;
+  int slot;
+  if (cmd_type == 0xb0 && size >= 3) {
+    slot = channel * 128 + (bytes[1] & 0x7f);
+  } else if (cmd_type == 0xe0 && size >= 3) {
+    slot = kPitchBendSlot + channel;
+  } else if (cmd_type == 0xd0 && size >= 2) {
+    slot = kPressureSlot + channel;
+  } else if (cmd_type == 0xc0 && size >= 2) {
+    slot = kProgramSlot + channel;
+  } else {
+    return false;
+  }
+  uint32_t value = kSlotValid | (bytes[0] << 16) | (bytes[1] << 8) |
+    (size >= 3 ? bytes[2] : 0);
+  // Writers racing on the same slot may pair one's value with the other's
+  // position, which only moves the value among records written at about
+  // the same time.
+  SynthAtomicExchange(&coalesce_positions_[slot],
+    lanes_[kNoteLane].write_position());
+  SynthAtomicExchange(&coalesce_slots_[slot], value);
+  SynthAtomicExchange(&coalesce_dirty_, (uint32_t)1);
+  return true;
+}
+
+void MidiInput::CollectCoalesced() {
+  if (collected_rd_ > 0) {
+    memmove(collected_, collected_ + collected_rd_,
+      (collected_wr_ - collected_rd_) * sizeof(collected_[0]));
+    collected_wr_ -= collected_rd_;
+    collected_rd_ = 0;
+  }
+  SynthAtomicExchange(&coalesce_dirty_, (uint32_t)0);
+  for (int i = 0; i < kNumCoalesceSlots; i++) {
+    if (coalesce_slots_[i] == 0) {
+      continue;
+    }
+    uint32_t value = SynthAtomicExchange(&coalesce_slots_[i], (uint32_t)0);
+    if ((value & kSlotValid) == 0 || collected_wr_ == kNumCoalesceSlots) {
+      continue;
+    }
+    uint32_t position = coalesce_positions_[i];
+    int j = collected_wr_++;
+    for (; j > 0 &&
+        (int32_t)(collected_[j - 1].position - position) > 0; --j) {
+      collected_[j] = collected_[j - 1];
+    }
+    collected_[j].position = position;
+    collected_[j].value = value;
+  }
+}
+
+bool MidiInput::NextCoalesced(uint32_t position, uint8_t msg[3]) {
+  if (coalesce_dirty_ != 0) {
+    CollectCoalesced();
+  }
+  if (collected_rd_ == collected_wr_ ||
+      (int32_t)(collected_[collected_rd_].position - position) > 0) {
+    return false;
+  }
+  uint32_t value = collected_[collected_rd_++].value;
+  msg[0] = value >> 16;
+  msg[1] = value >> 8;
+  msg[2] = value;
+  return true;
+}
+
+bool MidiInput::NextCoalesced(uint8_t msg[3]) {
+  if (coalesce_dirty_ != 0) {
+    CollectCoalesced();
+  }
+  if (collected_rd_ == collected_wr_) {
+    return false;
+  }
+  return NextCoalesced(collected_[collected_rd_].position, msg);
+}
+
+bool MidiInput::Pending() {
+  const uint8_t *buf1, *buf2;
+  int size1, size2;
+  for (int lane = 0; lane < kNumMidiLanes; lane++) {
+    if (lanes_[lane].Peek(&buf1, &size1, &buf2, &size2) > 0) {
+      return true;
+    }
+  }
+  return coalesce_dirty_ != 0 || collected_rd_ < collected_wr_;
+}
+
+void MidiInput::SetOverflowPolicy(MidiLane lane, OverflowPolicy policy) {
+  policy_[lane] = policy;
+}
+
+void MidiInput::GetStats(MidiLane lane, MidiLaneStats *stats) const {
+  stats->written = written_[lane];
+  stats->dropped = dropped_[lane];
+  stats->coalesced = coalesced_[lane];
+  stats->blocked = blocked_[lane];
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2013 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef SYNTH_MIDI_INPUT_H_
+#define SYNTH_MIDI_INPUT_H_
+
+#include "midi_queue.h"
+
+// MIDI input to the engine, split into two lanes so that bulk data never
+// delays notes. Channel voice messages go to the note lane, which the
+// engine drains completely every block. Sysex and other system messages go
+// to the bulk lane, which the engine works through under a byte budget.
+
+enum MidiLane {
+  kNoteLane = 0,
+  kBulkLane = 1,
+  kNumMidiLanes = 2
+};
+
+// What to do with a message when its lane is full.
+enum OverflowPolicy {
+  // Discard the message.
+  kOverflowDrop = 0,
+  // Keep only the latest value of controllers, pitch bend, channel pressure
+  // and program changes, to be applied where they fall among the messages
+  // the lane takes once it has room again. Other messages are dropped.
+  kOverflowCoalesce = 1,
+  // Wait until there is room, as RingBuffer::Write does.
+  kOverflowBlock = 2
+};
+
+struct MidiLaneStats {
+  uint32_t written;
+  uint32_t dropped;
+  uint32_t coalesced;
+  uint32_t blocked;
+};
+
+class MidiInput {
+ public:
+  MidiInput();
+
+  // Writes one MIDI record (normally a single message), choosing the lane
+  // from its first byte. Safe to call from any number of threads.
+  void Write(const uint8_t *bytes, int size);
+
+  void SetOverflowPolicy(MidiLane lane, OverflowPolicy policy);
+
+  void GetStats(MidiLane lane, MidiLaneStats *stats) const;
+
+  MidiQueue *lane(MidiLane lane) { return &lanes_[lane]; }
+
+  // Engine side: fetches the next message coalesced since the note lane
+  // overflowed that was written before the lane record at position (see
+  // MidiQueue::read_position), so that messages are applied in the order
+  // they were written. Returns false when there are none left before it.
+  bool NextCoalesced(uint32_t position, uint8_t msg[3]);
+
+  // Engine side: as above, once the lane has been drained.
+  bool NextCoalesced(uint8_t msg[3]);
+
+  // Engine side: whether any lane holds a message, or anything has been
+  // coalesced.
+  bool Pending();
+
+ private:
+  bool Coalesce(const uint8_t *bytes, int size);
+
+  // One slot per channel and controller, plus pitch bend, channel pressure
+  // and program change per channel.
+  static const int kPitchBendSlot = 16 * 128;
+  static const int kPressureSlot = kPitchBendSlot + 16;
+  static const int kProgramSlot = kPressureSlot + 16;
+  static const int kNumCoalesceSlots = kProgramSlot + 16;
+  static const uint32_t kSlotValid = 0x80000000;
+
+  // Engine side: moves the coalesced messages out of their slots, in the
+  // order they were written.
+  void CollectCoalesced();
+
+  MidiQueue lanes_[kNumMidiLanes];
+  volatile int policy_[kNumMidiLanes];
+  volatile uint32_t written_[kNumMidiLanes];
+  volatile uint32_t dropped_[kNumMidiLanes];
+  volatile uint32_t coalesced_[kNumMidiLanes];
+  volatile uint32_t blocked_[kNumMidiLanes];
+
+  volatile uint32_t coalesce_slots_[kNumCoalesceSlots];
+  // The note lane's write position when each slot was last written.
+  volatile uint32_t coalesce_positions_[kNumCoalesceSlots];
+  volatile uint32_t coalesce_dirty_;
+
+  // Engine side: collected messages waiting for their place in the lane,
+  // oldest first.
+  struct Coalesced {
+    uint32_t position;
+    uint32_t value;
+  };
+  Coalesced collected_[kNumCoalesceSlots];
+  int collected_rd_;
+  int collected_wr_;
+};
+
+#endif  // SYNTH_MIDI_INPUT_H_
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2013 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <time.h>
+#include <string.h>
+
+#include "synth.h"
+#include "midi_queue.h"
+
+MidiQueue::MidiQueue() {
+  memset(buf_words_, 0, sizeof(buf_words_));
+  buf_ = (uint8_t *)buf_words_;
+  wr_ix_ = 0;
+  rd_ix_ = 0;
+  peek_space_ = 0;
+}
+
+bool MidiQueue::TryWrite(const uint8_t *bytes, int size) {
+  if (size <= 0 || size > kMaxRecordSize) {
+    return false;
+  }
+  uint32_t space = RecordSpace(size);
+  uint32_t wr_ix;
+  do {
+    wr_ix = wr_ix_;
+    if (wr_ix + space - rd_ix_ > kBufSize) {
+      return false;
+    }
+  } while (!SynthAtomicCompareAndSwap(&wr_ix_, wr_ix, wr_ix + space));
+
+  // The space is ours now; copy the payload, which may wrap.
+  uint32_t data_ix = (wr_ix + 4) & (kBufSize - 1);
+  uint32_t fragment_size = min((uint32_t)size, kBufSize - data_ix);
+  memcpy(buf_ + data_ix, bytes, fragment_size);
+  if ((uint32_t)size > fragment_size) {
+    memcpy(buf_, bytes + fragment_size, size - fragment_size);
+  }
+  SynthMemoryBarrier();  // write barrier, make sure data commits before header
+  *(volatile uint32_t *)HeaderAt(wr_ix) = kCommitted | size;
+  return true;
+}
+
+void MidiQueue::Write(const uint8_t *bytes, int size) {
+  if (size <= 0 || size > kMaxRecordSize) {
+    // TryWrite rejects these however much room there is.
+    return;
+  }
+  while (!TryWrite(bytes, size)) {
+    struct timespec sleepTime;
+    sleepTime.tv_sec = 0;
+    sleepTime.tv_nsec = 1000000;
+    nanosleep(&sleepTime, NULL);
+  }
+}
+
+int MidiQueue::Peek(const uint8_t **buf1, int *size1, const uint8_t **buf2,
+    int *size2) {
+  uint32_t rd_ix = rd_ix_;
+  uint32_t header = *(volatile uint32_t *)HeaderAt(rd_ix);
+  if ((header & kCommitted) == 0) {
+    peek_space_ = 0;
+    return 0;
+  }
+  SynthMemoryBarrier();  // read barrier, make sure header is read before data
+  uint32_t size = header & ~kCommitted;
+  uint32_t data_ix = (rd_ix + 4) & (kBufSize - 1);
+  uint32_t fragment_size = min(size, kBufSize - data_ix);
+  *buf1 = buf_ + data_ix;
+  *size1 = fragment_size;
+  *buf2 = buf_;
+  *size2 = size - fragment_size;
+  peek_space_ = RecordSpace(size);
+  return size;
+}
+
+void MidiQueue::Consume() {
+  if (peek_space_ == 0) {
+    return;
+  }
+  // Clear the record so that stale bytes are never mistaken for a header
+  // when the space is reused.
+  uint32_t rd_ix = rd_ix_;
+  uint32_t ix = rd_ix & (kBufSize - 1);
+  uint32_t fragment_size = min(peek_space_, kBufSize - ix);
+  memset(buf_ + ix, 0, fragment_size);
+  memset(buf_, 0, peek_space_ - fragment_size);
+  SynthMemoryBarrier();  // full barrier, make sure clear commits before updating
+  rd_ix_ = rd_ix + peek_space_;
+  peek_space_ = 0;
+}
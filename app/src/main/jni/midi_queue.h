@@ -0,0 +1,76 @@
+/*
+ * Copyright 2013 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef SYNTH_MIDI_QUEUE_H_
+#define SYNTH_MIDI_QUEUE_H_
+
+// A queue of whole MIDI records (typically one message each), safe for any
+// number of writer threads and a single reader.
+//
+// Writers reserve space by atomically advancing a shared index, so they
+// never lock or wait for each other. Each record is preceded by a header
+// word that the writer sets once the data is in place, and the reader zeroes
+// the space it frees, so it can tell a finished record from one still being
+// written. Records are delivered in reservation order; a writer that stalls
+// mid-write holds up the records reserved after it, but not other writers.
+
+class MidiQueue {
+ public:
+  MidiQueue();
+
+  // Writes one record without blocking. Returns false if there isn't room.
+  bool TryWrite(const uint8_t *bytes, int size);
+
+  // Writes one record. If the queue is full, the method will block until
+  // space is available. Empty and oversize records are dropped.
+  void Write(const uint8_t *bytes, int size);
+
+  // Exposes the next complete record, as one region or two if it wraps
+  // around the end of the buffer. Returns the record size, or 0 if there is
+  // none. The regions stay valid until Consume is called.
+  int Peek(const uint8_t **buf1, int *size1, const uint8_t **buf2, int *size2);
+
+  // Frees the record returned by the last Peek.
+  void Consume();
+
+  // Positions in the stream of records, which wrap around. A record
+  // reserved after write_position was read is at that position or later.
+  // read_position is where the next record, if any, starts.
+  uint32_t write_position() const { return wr_ix_; }
+  uint32_t read_position() const { return rd_ix_; }
+
+  // Largest record that can be written.
+  static const int kMaxRecordSize = 16384;
+ private:
+  static const uint32_t kBufSize = 65536;
+  static const uint32_t kCommitted = 0x80000000;
+
+  // Space taken by a record, including its header, rounded up so that
+  // headers are always word aligned and never wrap.
+  static uint32_t RecordSpace(int size) { return (4 + size + 3) & ~3u; }
+
+  uint8_t *HeaderAt(uint32_t ix) { return buf_ + (ix & (kBufSize - 1)); }
+
+  uint32_t buf_words_[kBufSize / 4];
+  uint8_t *buf_;
+
+  // Free running indices; only the low bits address the buffer.
+  volatile uint32_t wr_ix_;
+  volatile uint32_t rd_ix_;
+  uint32_t peek_space_;
+};
+
+#endif  // SYNTH_MIDI_QUEUE_H_
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <string.h>
+
+#include "synth.h"
+#include "patch.h"
+#include "offline_renderer.h"
+
+OfflineRenderer::OfflineRenderer(const MidiFile *file, double sample_rate)
+    : file_(file), sample_rate_(sample_rate),
+      unit_(&midi_input_, sample_rate) {
+  next_event_ = 0;
+  position_ = 0;
+  end_position_ = (int64_t)(file->duration() * sample_rate + 0.5);
+  tail_limit_ = end_position_ + (int64_t)kMaxTailSeconds * (int64_t)sample_rate;
+  done_ = false;
+  carry_offset_ = 0;
+  carry_size_ = 0;
+}
+
+bool OfflineRenderer::LoadBank(const uint8_t *sysex, int size) {
+  if (position_ > 0 || !ValidateBankSysex(sysex, size)) {
+    return false;
+  }
+  return unit_.ApplyMidi(sysex, size) == size;
+}
+
+int64_t OfflineRenderer::EventPosition(int i) const {
+  return (int64_t)(file_->time(i) * sample_rate_ + 0.5);
+}
+
+int64_t OfflineRenderer::StartPiece(bool replay) {
+  while (next_event_ < file_->n_events() &&
+      EventPosition(next_event_) <= position_) {
+    const uint8_t *message = file_->message(next_event_);
+    int size = file_->message_size(next_event_);
+    if (replay) {
+      unit_.ReplayMidi(message, size);
+    } else {
+      unit_.ApplyMidi(message, size);
+    }
+    next_event_++;
+  }
+  int64_t end = (position_ / N + 1) * N;
+  if (next_event_ < file_->n_events()) {
+    end = min(end, EventPosition(next_event_));
+  }
+  return end;
+}
+
+void OfflineRenderer::Seek(int64_t start) {
+  // The LFO has to step through the same pieces as it would have in
+  // GetSamples.
+  while (position_ < start) {
+    int64_t end = min(StartPiece(true), start);
+    unit_.SkipSamples((int)(end - position_));
+    position_ = end;
+  }
+}
+
+bool OfflineRenderer::AtEnd() {
+  return next_event_ == file_->n_events() &&
+    ((position_ >= end_position_ && unit_.Idle()) ||
+    position_ >= tail_limit_);
+}
+
+bool OfflineRenderer::Finished() {
+  if (carry_size_ > 0) {
+    return false;
+  }
+  if (!done_) {
+    StartPiece(false);
+    done_ = AtEnd();
+  }
+  return done_;
+}
+
+int OfflineRenderer::RenderPiece(int16_t *buf) {
+  int64_t end = StartPiece(false);
+  if (AtEnd()) {
+    done_ = true;
+    return 0;
+  }
+  int n = (int)(end - position_);
+  unit_.GetSamples(n, buf);
+  position_ = end;
+  return n;
+}
+
+int OfflineRenderer::Render(int16_t *buf, int n) {
+  int i = 0;
+  while (i < n) {
+    if (carry_size_ > 0) {
+      int n_copy = min(carry_size_, n - i);
+      memcpy(buf + i, carry_buf_ + carry_offset_, n_copy * sizeof(buf[0]));
+      carry_offset_ += n_copy;
+      carry_size_ -= n_copy;
+      i += n_copy;
+    } else if (done_) {
+      break;
+    } else if (n - i >= N) {
+      i += RenderPiece(buf + i);
+    } else {
+      carry_offset_ = 0;
+      carry_size_ = RenderPiece(carry_buf_);
+    }
+  }
+  return i;
+}
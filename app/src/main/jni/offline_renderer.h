@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef SYNTH_OFFLINE_RENDERER_H_
+#define SYNTH_OFFLINE_RENDERER_H_
+
+#include "synth.h"
+#include "midi_file.h"
+#include "midi_input.h"
+#include "synth_unit.h"
+
+// Renders a MidiFile faster than real time on its own SynthUnit. Each event
+// is applied at its exact sample position, and the result doesn't depend on
+// how the output is split into calls to Render. Renderers are independent,
+// so several can run at once on different threads.
+class OfflineRenderer {
+ public:
+  // The file must outlive the renderer.
+  OfflineRenderer(const MidiFile *file, double sample_rate);
+
+  // Loads a DX7 32-voice bulk dump sysex before rendering starts. Returns
+  // false if it isn't valid.
+  bool LoadBank(const uint8_t *sysex, int size);
+
+  void SetQuality(Quality quality) { unit_.SetQuality(quality); }
+
+  // Starts the render at sample position start rather than 0, before the
+  // first call to Render. start must be the position of an event or a
+  // multiple of N, where a render from 0 begins a new block. Events before it are replayed without rendering
+  // (see SynthUnit::ReplayMidi), so the output from there on matches a
+  // render from 0 as long as that one is Idle at start.
+  void Seek(int64_t start);
+
+  // Renders up to n samples, returning how many were written. Returns less
+  // than n only once the render is finished: every event has been applied,
+  // the end of the file has passed, and the sound has died away (or
+  // kMaxTailSeconds have passed since the end).
+  int Render(int16_t *buf, int n);
+
+  bool done() const { return done_; }
+
+  // Whether Render would write nothing more. Applies the events due at the
+  // current position if it needs to know, as Render would next anyway.
+  bool Finished();
+
+  // Whether the engine is Idle, so that a render Seeked to this position
+  // would carry on exactly as this one will.
+  bool idle() { return unit_.Idle(); }
+
+  // Samples rendered so far.
+  int64_t position() const { return position_; }
+
+  // Sample position of the end of the file.
+  int64_t end_position() const { return end_position_; }
+
+#ifdef SYNTH_PROFILE
+  Profiler *profiler() { return unit_.profiler(); }
+#endif
+
+  static const int kMaxTailSeconds = 60;
+
+ private:
+  // Renders the next piece: up to the next event or multiple of N, whichever
+  // comes first. Returns its length, or 0 when finished.
+  int RenderPiece(int16_t *buf);
+
+  // Applies the events due at position_, returning the end of the piece
+  // that starts there.
+  int64_t StartPiece(bool replay);
+
+  // Whether the render is over, once the events due at position_ have been
+  // applied.
+  bool AtEnd();
+
+  int64_t EventPosition(int i) const;
+
+  const MidiFile *file_;
+  double sample_rate_;
+  MidiInput midi_input_;
+  SynthUnit unit_;
+
+  int next_event_;
+  int64_t position_;
+  int64_t end_position_;
+  int64_t tail_limit_;
+  bool done_;
+
+  // A piece that didn't fit in the caller's buffer.
+  int16_t carry_buf_[N];
+  int carry_offset_;
+  int carry_size_;
+};
+
+#endif  // SYNTH_OFFLINE_RENDERER_H_
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <stdlib.h>
+#include <string.h>
+
+#include "synth.h"
+#include "parallel_renderer.h"
+
+ParallelRenderer::ParallelRenderer(const MidiFile *file, double sample_rate) {
+  file_ = file;
+  sample_rate_ = sample_rate;
+  quality_ = kQualityStandard;
+  have_bank_ = false;
+  segments_ = NULL;
+  n_segments_ = 0;
+  segments_capacity_ = 0;
+  n_rerendered_ = 0;
+  pthread_mutex_init(&lock_, NULL);
+}
+
+ParallelRenderer::~ParallelRenderer() {
+  for (int i = 0; i < n_segments_; i++) {
+    free(segments_[i].buf);
+    delete segments_[i].renderer;
+  }
+  free(segments_);
+  pthread_mutex_destroy(&lock_);
+}
+
+bool ParallelRenderer::LoadBank(const uint8_t *sysex, int size) {
+  if (!ValidateBankSysex(sysex, size)) {
+    return false;
+  }
+  memcpy(bank_, sysex, kBankSysexSize);
+  have_bank_ = true;
+  return true;
+}
+
+void ParallelRenderer::AddSegment(int64_t start) {
+  if (n_segments_ == segments_capacity_) {
+    segments_capacity_ = max(16, segments_capacity_ * 2);
+    segments_ = (Segment *)realloc(segments_,
+      segments_capacity_ * sizeof(Segment));
+  }
+  if (n_segments_ > 0) {
+    segments_[n_segments_ - 1].end = start;
+  }
+  Segment *seg = &segments_[n_segments_++];
+  seg->start = start;
+  seg->end = -1;
+  seg->buf = NULL;
+  seg->size = 0;
+  seg->renderer = NULL;
+  seg->idle_at_end = false;
+}
+
+void ParallelRenderer::FindSegments() {
+  AddSegment(0);
+  if (!have_bank_) {
+    return;
+  }
+  // A rough model of the engine: which keys are down or sustained, and
+  // the latest time at which a released note may still be heard.
+  const int64_t kForever = (int64_t)1 << 62;
+  PatchBank *bank = new PatchBank;
+  memcpy(bank->data, bank_ + 6, sizeof(bank->data));
+  bank->Compile();
+  int program = 0;
+  bool sustain = false;
+  int held[128];
+  bool sustained[128];
+  int64_t release[128];
+  memset(held, 0, sizeof(held));
+  memset(sustained, 0, sizeof(sustained));
+  int n_down = 0;
+  int64_t silent_at = 0;
+  // Allow for the filter ringing on after the voices have gone.
+  int64_t margin = (int64_t)(0.1 * sample_rate_);
+  int64_t min_size = (int64_t)(kMinSegmentSeconds * sample_rate_);
+  int64_t last_position = -1;
+
+  for (int i = 0; i < file_->n_events(); i++) {
+    int64_t position = (int64_t)(file_->time(i) * sample_rate_ + 0.5);
+    if (position > last_position) {
+      // The state here is as the engine would have it before applying the
+      // events at this position.
+      if (n_down == 0 && position >= silent_at + margin &&
+          position - segments_[n_segments_ - 1].start >= min_size) {
+        AddSegment(position);
+      }
+      last_position = position;
+    }
+    const uint8_t *msg = file_->message(i);
+    int size = file_->message_size(i);
+    uint8_t cmd_type = msg[0] & 0xf0;
+    if ((cmd_type == 0x80 || (cmd_type == 0x90 && msg[2] == 0)) &&
+        size >= 3) {
+      int key = msg[1];
+      if (held[key] > 0) {
+        held[key] = 0;
+        if (sustain) {
+          sustained[key] = true;
+        } else {
+          n_down--;
+          silent_at = max(silent_at, position + release[key]);
+        }
+      }
+    } else if (cmd_type == 0x90 && size >= 3) {
+      int key = msg[1];
+      int samples = bank->patches[program].release_samples();
+      int64_t note_release = samples < 0 ? kForever : samples;
+      if (held[key] == 0 && !sustained[key]) {
+        n_down++;
+        release[key] = note_release;
+      } else {
+        release[key] = max(release[key], note_release);
+      }
+      held[key]++;
+      sustained[key] = false;
+    } else if (cmd_type == 0xb0 && size >= 3 && msg[1] == 64) {
+      sustain = msg[2] != 0;
+      if (!sustain) {
+        for (int key = 0; key < 128; key++) {
+          if (sustained[key]) {
+            sustained[key] = false;
+            n_down--;
+            silent_at = max(silent_at, position + release[key]);
+          }
+        }
+      }
+    } else if (cmd_type == 0xc0 && size >= 2) {
+      program = min((int)msg[1], 31);
+    } else if (msg[0] == 0xf0 && ValidateBankSysex(msg, size)) {
+      memcpy(bank->data, msg + 6, sizeof(bank->data));
+      bank->Compile();
+    }
+  }
+  delete bank;
+}
+
+OfflineRenderer *ParallelRenderer::NewRenderer(int64_t start) {
+  OfflineRenderer *renderer = new OfflineRenderer(file_, sample_rate_);
+  if (have_bank_) {
+    renderer->LoadBank(bank_, kBankSysexSize);
+  }
+  renderer->SetQuality(quality_);
+  renderer->Seek(start);
+  return renderer;
+}
+
+void ParallelRenderer::RenderSegment(Segment *seg, OfflineRenderer *renderer) {
+  free(seg->buf);
+  delete seg->renderer;
+  seg->renderer = renderer;
+  if (seg->end >= 0) {
+    seg->size = seg->end - seg->start;
+    seg->buf = (int16_t *)malloc(max(seg->size, (int64_t)1) *
+      sizeof(int16_t));
+    seg->size = renderer->Render(seg->buf, (int)seg->size);
+    seg->idle_at_end = renderer->idle();
+  } else {
+    const int kChunk = 65536;
+    int64_t capacity = kChunk;
+    seg->buf = (int16_t *)malloc(capacity * sizeof(int16_t));
+    seg->size = 0;
+    int n;
+    do {
+      if (seg->size + kChunk > capacity) {
+        capacity *= 2;
+        seg->buf = (int16_t *)realloc(seg->buf, capacity * sizeof(int16_t));
+      }
+      n = renderer->Render(seg->buf + seg->size, kChunk);
+      seg->size += n;
+    } while (n == kChunk);
+    seg->idle_at_end = true;
+  }
+}
+
+void *ParallelRenderer::Worker(void *arg) {
+  ParallelRenderer *self = (ParallelRenderer *)arg;
+  while (true) {
+    pthread_mutex_lock(&self->lock_);
+    int i = self->next_segment_++;
+    pthread_mutex_unlock(&self->lock_);
+    if (i >= self->n_segments_) {
+      return NULL;
+    }
+    Segment *seg = &self->segments_[i];
+    self->RenderSegment(seg, self->NewRenderer(seg->start));
+  }
+}
+
+int64_t ParallelRenderer::Render(int n_threads) {
+  FindSegments();
+  next_segment_ = 0;
+  n_threads = max(1, min(n_threads, n_segments_));
+  pthread_t *threads = new pthread_t[n_threads];
+  for (int i = 0; i < n_threads; i++) {
+    pthread_create(&threads[i], NULL, Worker, this);
+  }
+  for (int i = 0; i < n_threads; i++) {
+    pthread_join(threads[i], NULL);
+  }
+  delete[] threads;
+
+  // Where a segment didn't end Idle, the next one started from the wrong
+  // state, so it's rendered again by carrying on from the one before.
+  int64_t n_samples = 0;
+  for (int i = 0; i < n_segments_; i++) {
+    if (i > 0 && !segments_[i - 1].idle_at_end) {
+      OfflineRenderer *renderer = segments_[i - 1].renderer;
+      segments_[i - 1].renderer = NULL;
+      RenderSegment(&segments_[i], renderer);
+      n_rerendered_++;
+    }
+    n_samples += segments_[i].size;
+    if (i > 0) {
+      delete segments_[i - 1].renderer;
+      segments_[i - 1].renderer = NULL;
+    }
+  }
+  return n_samples;
+}
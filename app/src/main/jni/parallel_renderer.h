@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef SYNTH_PARALLEL_RENDERER_H_
+#define SYNTH_PARALLEL_RENDERER_H_
+
+#include <pthread.h>
+
+#include "synth.h"
+#include "midi_file.h"
+#include "offline_renderer.h"
+#include "patch.h"
+
+// Renders a single MidiFile on several threads at once. The engine forgets
+// everything but the MIDI state once it has gone Idle, so the song is split
+// where it is sure to be silent, and each segment is rendered by its own
+// OfflineRenderer, Seeked to the segment's start. The result is the same,
+// sample for sample, as rendering the whole file with one OfflineRenderer.
+//
+// The split points are found from the events and the patches' release
+// times. Each one is checked when the segment before it is rendered, and if
+// that segment turns out not to have gone Idle, the next one is rendered
+// again by carrying on from it.
+class ParallelRenderer {
+ public:
+  // The file must outlive the renderer.
+  ParallelRenderer(const MidiFile *file, double sample_rate);
+  ~ParallelRenderer();
+
+  // As OfflineRenderer::LoadBank. Without a bank the release times aren't
+  // known, and the file is rendered as one segment.
+  bool LoadBank(const uint8_t *sysex, int size);
+
+  void SetQuality(Quality quality) { quality_ = quality; }
+
+  // Renders the whole file on up to n_threads threads, returning the number
+  // of samples. The audio is left in the segments, in order.
+  int64_t Render(int n_threads);
+
+  int n_segments() const { return n_segments_; }
+  const int16_t *segment_samples(int i) const { return segments_[i].buf; }
+  int64_t segment_size(int i) const { return segments_[i].size; }
+
+  // How many segments had to be rendered again.
+  int n_rerendered() const { return n_rerendered_; }
+
+  // Segments shorter than this aren't worth a renderer of their own.
+  static const int kMinSegmentSeconds = 1;
+
+ private:
+  struct Segment {
+    int64_t start;
+    // Start of the next segment, or -1 for the last, which runs until the
+    // render is done.
+    int64_t end;
+    int16_t *buf;
+    int64_t size;
+    // The renderer that rendered this segment, kept until its successor is
+    // known to be right.
+    OfflineRenderer *renderer;
+    bool idle_at_end;
+  };
+
+  void FindSegments();
+  void AddSegment(int64_t start);
+  OfflineRenderer *NewRenderer(int64_t start);
+  // Renders seg with a renderer positioned at its start.
+  void RenderSegment(Segment *seg, OfflineRenderer *renderer);
+  static void *Worker(void *arg);
+
+  const MidiFile *file_;
+  double sample_rate_;
+  Quality quality_;
+  bool have_bank_;
+  uint8_t bank_[kBankSysexSize];
+
+  Segment *segments_;
+  int n_segments_;
+  int segments_capacity_;
+  int n_rerendered_;
+
+  pthread_mutex_t lock_;
+  int next_segment_;
+};
+
+#endif  // SYNTH_PARALLEL_RENDERER_H_
@@ -14,6 +14,7 @@
  * limitations under the License.
  */
 
+#include <cstddef>
 #include <cstring>
 
 #include "patch.h"
@@ -49,3 +50,34 @@ void UnpackPatch(const char bulk[128], char patch[156]) {
 	memcpy(patch + 144, bulk + 117, 11);  // transpose, name
 	patch[155] = 0x3f;  // operator on/off
 }
+
+static inline uint8_t SplitByte(const uint8_t *buf1, int size1,
+		const uint8_t *buf2, int i) {
+	return i < size1 ? buf1[i] : buf2[i - size1];
+}
+
+bool ValidateBankSysex(const uint8_t *buf1, int size1,
+		const uint8_t *buf2, int size2) {
+	int size = size1 + size2;
+	if (size != kBankSysexSize) {
+		return false;
+	}
+	uint8_t header[6];
+	for (int i = 0; i < 6; i++) {
+		header[i] = SplitByte(buf1, size1, buf2, i);
+	}
+	if (header[0] != 0xf0 || header[1] != 0x43 || (header[2] & 0xf0) != 0x00 ||
+			header[3] != 0x09 || header[4] != 0x20 || header[5] != 0x00 ||
+			SplitByte(buf1, size1, buf2, size - 1) != 0xf7) {
+		return false;
+	}
+	int sum = 0;
+	for (int i = 6; i < 6 + 4096; i++) {
+		sum += SplitByte(buf1, size1, buf2, i);
+	}
+	return ((sum + SplitByte(buf1, size1, buf2, 6 + 4096)) & 0x7f) == 0;
+}
+
+bool ValidateBankSysex(const uint8_t *sysex, int size) {
+	return ValidateBankSysex(sysex, size, NULL, 0);
+}
@@ -17,6 +17,20 @@
 #ifndef SYNTH_PATCH_H_
 #define SYNTH_PATCH_H_
 
+#include <stdint.h>
+
 void UnpackPatch(const char bulk[128], char patch[156]);
 
+// Size of a DX7 32-voice bulk dump sysex, including F0 and F7.
+const int kBankSysexSize = 4104;
+
+// Checks the header, length and checksum of a DX7 32-voice bulk dump. The
+// 4096 bytes of packed patch data start at offset 6.
+bool ValidateBankSysex(const uint8_t *sysex, int size);
+
+// As above, for a sysex that is split in two (for example at the wrap point
+// of a ring buffer).
+bool ValidateBankSysex(const uint8_t *buf1, int size1,
+    const uint8_t *buf2, int size2);
+
 #endif
\ No newline at end of file
@@ -16,11 +16,10 @@
 
 #include "synth.h"
 #include "pitchenv.h"
+#include "rate_tables.h"
 
-int PitchEnv::unit_;
-
-void PitchEnv::init(double sample_rate) {
-  unit_ = N * (1 << 24) / (21.3 * sample_rate) + 0.5;
+int PitchEnv::unit(double sample_rate) {
+  return N * (1 << 24) / (21.3 * sample_rate) + 0.5;
 }
 
 static uint8_t ratetab[] = {
@@ -42,7 +41,9 @@ static int8_t pitchtab[] = {
   82, 92, 103, 115, 127
 };
 
-void PitchEnv::set(const int r[4], const int l[4]) {
+void PitchEnv::set(const int r[4], const int l[4],
+    const RateTables *tables) {
+  unit_ = tables->pitchenv_unit();
   for (int i = 0; i < 4; i++) {
     rates_[i] = r[i];
     levels_[i] = l[i];
@@ -52,16 +53,17 @@ void PitchEnv::set(const int r[4], const int l[4]) {
   advance(0);
 }
 
-int32_t PitchEnv::getsample() {
+int32_t PitchEnv::getsample(int n) {
   if (ix_ < 3 || (ix_ < 4) && !down_) {
+    int32_t inc = (inc_ * n) >> LG_N;
     if (rising_) {
-      level_ += inc_;
+      level_ += inc;
       if (level_ >= targetlevel_) {
         level_ = targetlevel_;
         advance(ix_ + 1);
       }
     } else {  // !rising
-      level_ -= inc_;
+      level_ -= inc;
       if (level_ <= targetlevel_) {
         level_ = targetlevel_;
         advance(ix_ + 1);
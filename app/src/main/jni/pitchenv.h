@@ -19,27 +19,31 @@
 
 // Computation of the DX7 pitch envelope
 
+class RateTables;
+
 class PitchEnv {
  public:
-  static void init(double sample_rate);
+  // The rate unit for a sample rate, as kept in RateTables.
+  static int unit(double sample_rate);
 
   // The rates and levels arrays are calibrated to match the Dx7 parameters
   // (ie, value 0..99).
-  void set(const int rates[4], const int levels[4]);
+  void set(const int rates[4], const int levels[4],
+    const RateTables *tables);
 
-  // Result is in Q24/octave
-  int32_t getsample();
+  // Result is in Q24/octave. Call once for every block of n samples.
+  int32_t getsample(int n);
 
   void keydown(bool down);
  private:
-  static int unit_;
+  int unit_;
   int rates_[4];
   int levels_[4];
   int32_t level_;
   int targetlevel_;
   bool rising_;
   int ix_;
-  int inc_;
+  int inc_;  // per N samples
 
   bool down_;
 
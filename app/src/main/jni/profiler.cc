@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifdef SYNTH_PROFILE
+
+#include <string.h>
+#include <time.h>
+
+#include "synth.h"
+#include "profiler.h"
+
+Profiler::Profiler() {
+  memset(current_, 0, sizeof(current_));
+  memset(&window_, 0, sizeof(window_));
+  memset(&published_, 0, sizeof(published_));
+  sequence_ = 0;
+  reset_requested_ = false;
+}
+
+int64_t Profiler::Now() {
+  struct timespec tp;
+  clock_gettime(CLOCK_MONOTONIC, &tp);
+  return tp.tv_sec * (int64_t)1000000000 + tp.tv_nsec;
+}
+
+const char *Profiler::stage_name(int stage) {
+  static const char *const names[kNumProfileStages] = {
+    "midi", "noteon", "voices", "filter", "output"
+  };
+  return stage >= 0 && stage < kNumProfileStages ? names[stage] : NULL;
+}
+
+void Profiler::EndBuffer() {
+  if (reset_requested_) {
+    reset_requested_ = false;
+    memset(&window_, 0, sizeof(window_));
+  }
+  window_.buffers++;
+  for (int i = 0; i < kNumProfileStages; i++) {
+    window_.last[i] = current_[i];
+    window_.total[i] += current_[i];
+    window_.max[i] = max(window_.max[i], current_[i]);
+  }
+  memset(current_, 0, sizeof(current_));
+  sequence_ = sequence_ + 1;
+  SynthMemoryBarrier();
+  published_ = window_;
+  SynthMemoryBarrier();
+  sequence_ = sequence_ + 1;
+}
+
+void Profiler::Read(ProfileStats *stats) const {
+  while (true) {
+    uint32_t sequence = sequence_;
+    SynthMemoryBarrier();
+    *stats = published_;
+    SynthMemoryBarrier();
+    if ((sequence & 1) == 0 && sequence_ == sequence) {
+      return;
+    }
+  }
+}
+
+#endif  // SYNTH_PROFILE
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef SYNTH_PROFILER_H_
+#define SYNTH_PROFILER_H_
+
+// Per-stage timing of SynthUnit::GetSamples, to tell which part of the
+// engine a slow buffer spent its time in. It's only compiled in when
+// SYNTH_PROFILE is defined (for example with cppFlags.add('-DSYNTH_PROFILE')
+// in app/build.gradle); otherwise the PROFILE_ macros expand to nothing and
+// the engine carries no trace of it.
+
+#ifdef SYNTH_PROFILE
+
+#include <stdint.h>
+
+enum ProfileStage {
+  // Parsing and applying MIDI, from the input lanes and the sequencer.
+  // Includes kProfileNoteOn.
+  kProfileMidi,
+  // Starting voices on note-on.
+  kProfileNoteOn,
+  // Computing the voices.
+  kProfileVoices,
+  kProfileFilter,
+  // Scaling and clipping to 16 bits.
+  kProfileOutput,
+  kNumProfileStages
+};
+
+struct ProfileStats {
+  // Buffers since the last reset.
+  uint32_t buffers;
+  // Nanoseconds spent in each stage: in the last buffer, in all the buffers
+  // since the last reset, and the most in any one of them.
+  int64_t last[kNumProfileStages];
+  int64_t total[kNumProfileStages];
+  int64_t max[kNumProfileStages];
+};
+
+class Profiler {
+ public:
+  Profiler();
+
+  // A monotonic clock in nanoseconds.
+  static int64_t Now();
+
+  static const char *stage_name(int stage);
+
+  // Audio thread: adds to the time of a stage in the current buffer, and
+  // ends the buffer. Time added between buffers, as by SynthUnit::ApplyMidi,
+  // counts toward the next one.
+  void Add(ProfileStage stage, int64_t nanos) { current_[stage] += nanos; }
+  void EndBuffer();
+
+  // May be called from any thread. Copies the stats as of the last buffer.
+  void Read(ProfileStats *stats) const;
+
+  // May be called from any thread. Starts a new window at the next buffer.
+  void Reset() { reset_requested_ = true; }
+
+ private:
+  int64_t current_[kNumProfileStages];
+
+  // Owned by the audio thread.
+  ProfileStats window_;
+
+  // A copy of window_ for readers, guarded by a sequence count that is odd
+  // while it's being written.
+  ProfileStats published_;
+  volatile uint32_t sequence_;
+
+  volatile bool reset_requested_;
+};
+
+// Adds the time until the end of the enclosing block to a stage.
+class ProfileScope {
+ public:
+  ProfileScope(Profiler *profiler, ProfileStage stage)
+      : profiler_(profiler), stage_(stage), start_(Profiler::Now()) {
+  }
+  ~ProfileScope() {
+    profiler_->Add(stage_, Profiler::Now() - start_);
+  }
+
+ private:
+  Profiler *profiler_;
+  ProfileStage stage_;
+  int64_t start_;
+};
+
+#define PROFILE_SCOPE(profiler, stage) \
+  ProfileScope profile_scope(profiler, stage)
+
+// The same, for a span that isn't a block of its own.
+#define PROFILE_BEGIN(start) int64_t start = Profiler::Now()
+#define PROFILE_END(profiler, stage, start) \
+  (profiler)->Add(stage, Profiler::Now() - (start))
+
+#else
+
+#define PROFILE_SCOPE(profiler, stage)
+#define PROFILE_BEGIN(start)
+#define PROFILE_END(profiler, stage, start)
+
+#endif  // SYNTH_PROFILE
+
+#endif  // SYNTH_PROFILER_H_
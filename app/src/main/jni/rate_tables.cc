@@ -0,0 +1,49 @@
+/*
+ * Copyright 2013 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <pthread.h>
+
+#include "synth.h"
+#include "lfo.h"
+#include "pitchenv.h"
+#include "rate_tables.h"
+
+// There are only ever a few rates, so a list will do.
+static pthread_mutex_t tables_lock = PTHREAD_MUTEX_INITIALIZER;
+static const RateTables *tables_list = NULL;
+
+RateTables::RateTables(double sample_rate) : freqlut_(sample_rate) {
+  sample_rate_ = sample_rate;
+  lfo_unit_ = Lfo::unit(sample_rate);
+  pitchenv_unit_ = PitchEnv::unit(sample_rate);
+  next_ = NULL;
+}
+
+const RateTables *RateTables::get(double sample_rate) {
+  pthread_mutex_lock(&tables_lock);
+  const RateTables *tables = tables_list;
+  while (tables != NULL && tables->sample_rate_ != sample_rate) {
+    tables = tables->next_;
+  }
+  if (tables == NULL) {
+    RateTables *new_tables = new RateTables(sample_rate);
+    new_tables->next_ = tables_list;
+    tables_list = new_tables;
+    tables = new_tables;
+  }
+  pthread_mutex_unlock(&tables_lock);
+  return tables;
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2013 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef SYNTH_RATE_TABLES_H_
+#define SYNTH_RATE_TABLES_H_
+
+#include "freqlut.h"
+
+// Everything that depends on the sample rate. The tables are built once
+// for each rate and then shared, read-only, by all the engines running at
+// that rate, so any number of engines can run side by side.
+class RateTables {
+ public:
+  // Returns the tables for sample_rate, building them on first use. Safe to
+  // call from any thread, but not meant for the audio thread. The tables
+  // live as long as the process.
+  static const RateTables *get(double sample_rate);
+
+  double sample_rate() const { return sample_rate_; }
+  const Freqlut &freqlut() const { return freqlut_; }
+  // See Lfo::unit and PitchEnv::unit.
+  uint32_t lfo_unit() const { return lfo_unit_; }
+  int pitchenv_unit() const { return pitchenv_unit_; }
+
+ private:
+  explicit RateTables(double sample_rate);
+
+  double sample_rate_;
+  Freqlut freqlut_;
+  uint32_t lfo_unit_;
+  int pitchenv_unit_;
+  const RateTables *next_;
+};
+
+#endif  // SYNTH_RATE_TABLES_H_
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Batch renderer: turns MIDI files into WAV files, one engine per worker
+// thread. Usage:
+//   render [-j threads] [-r rate] [-q economy|standard|high] [-s]
+//          [-o outdir] bank.syx file.mid...
+// Each file.mid is written to file.wav, in outdir if given. With -s, the
+// files are rendered one at a time instead, each split at its silences
+// across all the threads (see ParallelRenderer). In a build with
+// SYNTH_PROFILE, the time spent in each stage of the engine is reported for
+// each file rendered without -s.
+
+#include <pthread.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+
+#include "synth.h"
+#include "midi_file.h"
+#include "offline_renderer.h"
+#include "parallel_renderer.h"
+#include "patch.h"
+#include "wavout.h"
+
+struct Job {
+  const char *in_path;
+  char out_path[1024];
+  bool ok;
+  double audio_seconds;
+  double wall_seconds;
+  int n_segments;
+#ifdef SYNTH_PROFILE
+  ProfileStats profile;
+#endif
+};
+
+struct Batch {
+  Job *jobs;
+  int n_jobs;
+  int next_job;
+  pthread_mutex_t lock;
+
+  double sample_rate;
+  Quality quality;
+  // Threads per file, when splitting.
+  int split_threads;
+  const uint8_t *bank;
+  int bank_size;
+};
+
+static double Now() {
+  struct timespec ts;
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  return ts.tv_sec + 1e-9 * ts.tv_nsec;
+}
+
+// Reads a whole file into a malloc'ed buffer, or returns NULL.
+static uint8_t *ReadFile(const char *path, int *size) {
+  FILE *f = fopen(path, "rb");
+  if (f == NULL) {
+    return NULL;
+  }
+  fseek(f, 0, SEEK_END);
+  long len = ftell(f);
+  fseek(f, 0, SEEK_SET);
+  uint8_t *data = (uint8_t *)malloc(len > 0 ? len : 1);
+  if (len < 0 || (long)fread(data, 1, len, f) != len) {
+    free(data);
+    data = NULL;
+  }
+  fclose(f);
+  *size = (int)len;
+  return data;
+}
+
+static bool RenderJob(const Batch *batch, Job *job) {
+  int size;
+  uint8_t *data = ReadFile(job->in_path, &size);
+  if (data == NULL) {
+    fprintf(stderr, "%s: can't read\n", job->in_path);
+    return false;
+  }
+  MidiFile file;
+  bool parsed = file.Parse(data, size);
+  free(data);
+  if (!parsed) {
+    fprintf(stderr, "%s: not a MIDI file\n", job->in_path);
+    return false;
+  }
+
+  WavOut wav(job->out_path, batch->sample_rate, 0);
+  if (!wav.ok()) {
+    fprintf(stderr, "%s: can't write\n", job->out_path);
+    return false;
+  }
+  if (batch->split_threads > 0) {
+    ParallelRenderer renderer(&file, batch->sample_rate);
+    renderer.SetQuality(batch->quality);
+    renderer.LoadBank(batch->bank, batch->bank_size);
+    int64_t n_samples = renderer.Render(batch->split_threads);
+    for (int i = 0; i < renderer.n_segments(); i++) {
+      wav.write_samples(renderer.segment_samples(i),
+        (int)renderer.segment_size(i));
+    }
+    wav.close();
+    if (!wav.ok()) {
+      fprintf(stderr, "%s: write failed\n", job->out_path);
+      return false;
+    }
+    job->audio_seconds = n_samples / batch->sample_rate;
+    job->n_segments = renderer.n_segments();
+    return true;
+  }
+
+  OfflineRenderer renderer(&file, batch->sample_rate);
+  renderer.SetQuality(batch->quality);
+  renderer.LoadBank(batch->bank, batch->bank_size);
+  const int kChunk = 4096;
+  int16_t buf[kChunk];
+  int n;
+  do {
+    n = renderer.Render(buf, kChunk);
+    wav.write_samples(buf, n);
+  } while (n == kChunk);
+  wav.close();
+  if (!wav.ok()) {
+    fprintf(stderr, "%s: write failed\n", job->out_path);
+    return false;
+  }
+  job->audio_seconds = renderer.position() / batch->sample_rate;
+#ifdef SYNTH_PROFILE
+  renderer.profiler()->Read(&job->profile);
+#endif
+  return true;
+}
+
+static void *Worker(void *arg) {
+  Batch *batch = (Batch *)arg;
+  while (true) {
+    pthread_mutex_lock(&batch->lock);
+    int i = batch->next_job++;
+    pthread_mutex_unlock(&batch->lock);
+    if (i >= batch->n_jobs) {
+      return NULL;
+    }
+    Job *job = &batch->jobs[i];
+    double start = Now();
+    job->ok = RenderJob(batch, job);
+    job->wall_seconds = Now() - start;
+    if (job->ok) {
+      fprintf(stderr, "%s: %.2fs audio in %.3fs, %.1fx real time",
+        job->out_path, job->audio_seconds, job->wall_seconds,
+        job->audio_seconds / job->wall_seconds);
+      if (batch->split_threads > 0) {
+        fprintf(stderr, ", %d segments", job->n_segments);
+      }
+      fprintf(stderr, "\n");
+#ifdef SYNTH_PROFILE
+      if (batch->split_threads == 0) {
+        const ProfileStats &profile = job->profile;
+        fprintf(stderr, "  %u buffers; total ms (max us per buffer):",
+          profile.buffers);
+        for (int stage = 0; stage < kNumProfileStages; stage++) {
+          fprintf(stderr, " %s %.1f (%.1f)", Profiler::stage_name(stage),
+            profile.total[stage] * 1e-6, profile.max[stage] * 1e-3);
+        }
+        fprintf(stderr, "\n");
+      }
+#endif
+    }
+  }
+}
+
+static void Usage() {
+  fprintf(stderr, "usage: render [-j threads] [-r rate] "
+    "[-q economy|standard|high] [-s] [-o outdir] bank.syx file.mid...\n");
+  exit(1);
+}
+
+int main(int argc, char **argv) {
+  int n_threads = (int)sysconf(_SC_NPROCESSORS_ONLN);
+  const char *out_dir = NULL;
+  Batch batch;
+  batch.sample_rate = 44100;
+  batch.quality = kQualityStandard;
+  bool split = false;
+
+  int opt;
+  while ((opt = getopt(argc, argv, "j:r:q:so:")) != -1) {
+    switch (opt) {
+      case 'j':
+        n_threads = atoi(optarg);
+        break;
+      case 'r':
+        batch.sample_rate = atof(optarg);
+        break;
+      case 'q':
+        if (strcmp(optarg, "economy") == 0) {
+          batch.quality = kQualityEconomy;
+        } else if (strcmp(optarg, "standard") == 0) {
+          batch.quality = kQualityStandard;
+        } else if (strcmp(optarg, "high") == 0) {
+          batch.quality = kQualityHigh;
+        } else {
+          Usage();
+        }
+        break;
+      case 's':
+        split = true;
+        break;
+      case 'o':
+        out_dir = optarg;
+        break;
+      default:
+        Usage();
+    }
+  }
+  if (argc - optind < 2 || n_threads < 1 || batch.sample_rate <= 0) {
+    Usage();
+  }
+
+  int bank_size;
+  uint8_t *bank = ReadFile(argv[optind], &bank_size);
+  if (bank == NULL || !ValidateBankSysex(bank, bank_size)) {
+    fprintf(stderr, "%s: not a DX7 32-voice bank\n", argv[optind]);
+    return 1;
+  }
+  batch.bank = bank;
+  batch.bank_size = bank_size;
+
+  batch.n_jobs = argc - optind - 1;
+  batch.jobs = new Job[batch.n_jobs];
+  for (int i = 0; i < batch.n_jobs; i++) {
+    Job *job = &batch.jobs[i];
+    job->in_path = argv[optind + 1 + i];
+    job->ok = false;
+    job->audio_seconds = 0;
+    job->n_segments = 1;
+    // file.mid becomes file.wav, moved to out_dir if given.
+    const char *name = job->in_path;
+    if (out_dir != NULL) {
+      const char *slash = strrchr(name, '/');
+      if (slash != NULL) {
+        name = slash + 1;
+      }
+    }
+    const char *dot = strrchr(name, '.');
+    int base_len = (dot != NULL && strchr(dot, '/') == NULL) ?
+      (int)(dot - name) : (int)strlen(name);
+    snprintf(job->out_path, sizeof(job->out_path), "%s%s%.*s.wav",
+      out_dir != NULL ? out_dir : "", out_dir != NULL ? "/" : "", base_len,
+      name);
+  }
+  batch.next_job = 0;
+  pthread_mutex_init(&batch.lock, NULL);
+
+  SynthUnit::Init();
+  batch.split_threads = split ? n_threads : 0;
+  int n_workers = split ? 1 : min(n_threads, batch.n_jobs);
+  double start = Now();
+  pthread_t *threads = new pthread_t[n_workers];
+  for (int i = 0; i < n_workers; i++) {
+    pthread_create(&threads[i], NULL, Worker, &batch);
+  }
+  for (int i = 0; i < n_workers; i++) {
+    pthread_join(threads[i], NULL);
+  }
+  double wall_seconds = Now() - start;
+
+  double audio_seconds = 0;
+  int n_failed = 0;
+  for (int i = 0; i < batch.n_jobs; i++) {
+    audio_seconds += batch.jobs[i].audio_seconds;
+    n_failed += batch.jobs[i].ok ? 0 : 1;
+  }
+  fprintf(stderr, "%d files, %.2fs audio in %.3fs on %d threads, "
+    "%.1fx real time\n", batch.n_jobs - n_failed, audio_seconds,
+    wall_seconds, split ? n_threads : n_workers,
+    audio_seconds / wall_seconds);
+
+  delete[] threads;
+  delete[] batch.jobs;
+  free(bank);
+  return n_failed == 0 ? 0 : 1;
+}
@@ -26,28 +26,18 @@
 #include <math.h>
 
 #include "synth.h"
-#include "freqlut.h"
+#include "rate_tables.h"
 #include "exp2.h"
 #include "aligned_buf.h"
 #include "resofilter.h"
+#include "kernels.h"
 
-#ifdef HAVE_NEON
-extern "C"
-void neon_ladder_nl(const int32_t *in, const float *a, int32_t *out, int count,
-  float *state);
-extern "C"
-void neon_ladder_lin(const int32_t *in, const float *a, int32_t *out, int count,
-  float *state);
-extern "C" void neon_ladder_mkmatrix(const float *in, float *out);
+ResoFilter::ResoFilter(const RateTables *tables) {
+  tables_ = tables;
+  always_nonlinear_ = false;
+#if defined(USE_MATRIX)
+  coeff_valid_ = false;
 #endif
-
-double this_sample_rate;
-
-void ResoFilter::init(double sample_rate) {
-  this_sample_rate = sample_rate;
-}
-
-ResoFilter::ResoFilter() {
   for (int i = 0; i < 4; i++) {
     x.get()[i] = 0;
 #if defined(NONLINEARITY)
@@ -56,8 +46,24 @@ ResoFilter::ResoFilter() {
   }
 }
 
-int32_t compute_alpha(int32_t logf) {
-  return min(1 << 24, Freqlut::lookup(logf));
+#if defined(USE_MATRIX)
+bool ResoFilter::settle() {
+  // The output is scaled down by 2^13 to 16 bits.
+  const float kInaudible = 256;
+  for (int i = 0; i < 4; i++) {
+    if (fabsf(x.get()[i]) >= kInaudible) {
+      return false;
+    }
+  }
+  for (int i = 0; i < 4; i++) {
+    x.get()[i] = 0;
+  }
+  return true;
+}
+#endif
+
+static int32_t compute_alpha(const Freqlut &freqlut, int32_t logf) {
+  return min(1 << 24, freqlut.lookup(logf));
 }
 
 // Some really generic 4x4 matrix multiplication operations, suitable
@@ -117,13 +123,14 @@ void dump_matrix(const float a[20]) {
   }
 }
 
-static void make_state_transition(float result[20], int32_t f0, int32_t k) {
+// params[0] is the cutoff scaled by 2^-4 (to match the repeated squaring
+// below), params[1] the resonance. Same interface as neon_ladder_mkmatrix.
+void ladder_mkmatrix_scalar(const float *params, float *result) {
   // TODO: these should depend on k, and be just enough to meet error bound
   int n1 = 4;
   int n2 = 4;
-  float f = f0 * (1.0 / (1 << (24 + n2)));
-  float k_f = k * (1.0 / (1 << 24));
-  k_f = min(k_f, 3.98f);
+  float f = params[0];
+  float k_f = min(params[1], 3.98f);
 
   // these are 5x5 matrices of which we store the bottom 5x4
   // Top row of Jacobian is all zeros
@@ -180,104 +187,112 @@ static void make_state_transition(float result[20], int32_t f0, int32_t k) {
 void test_matrix() {
   float params[2] = {1.0, 3.99};
   AlignedBuf<float, 20> a;
-  make_state_transition(a.get(), params[0] * (1 << 24), params[1] * (1 << 24));
+  params[0] /= 16;
+  ladder_mkmatrix_scalar(params, a.get());
   dump_matrix(a.get());
 #ifdef HAVE_NEON
-  params[0] /= 16;
   neon_ladder_mkmatrix(params, a.get());
   dump_matrix(a.get());
 #endif
 }
 
 #if defined(USE_MATRIX)
+// The ladder kernels take the matrix A first, then B. The nonlinear one
+// also takes k, overdrive / 2^24 and the output gain. Same interface as
+// neon_ladder_lin and neon_ladder_nl.
+void ladder_lin_scalar(const int32_t *in, const float *a, int32_t *out,
+    int count, float *state) {
+  for (int i = 0; i < count; i++) {
+    float signal = in[i];
+    float tmp[4];
+    matvec4(tmp, a, state);
+    for (int k = 0; k < 4; k++) {
+      state[k] = tmp[k] + signal * a[16 + k];
+    }
+    out[i] = state[3];
+  }
+}
+
 static float sigmoid(float x, float overdrive) {
-  float xs = overdrive * x * (1.0 / (1 << 24));
+  float xs = overdrive * x;
   float isq = 1.0 / sqrtf(1 + xs * xs);
   return x * isq;
 }
 
+void ladder_nl_scalar(const int32_t *in, const float *a, int32_t *out,
+    int count, float *state) {
+  float k = a[20];
+  float overdrive = a[21];
+  float ogain = a[22];
+  for (int i = 0; i < count; i++) {
+    float signal = in[i];
+    float tmp[4];
+    float tx[4];
+    for (int j = 0; j < 4; j++) {
+      tx[j] = sigmoid(state[j], overdrive);
+    }
+    matvec4(tmp, a, tx);
+    float xin = sigmoid(signal - k * state[3], overdrive);
+    for (int j = 0; j < 4; j++) {
+      state[j] += tmp[j] + xin * a[16 + j];
+    }
+    out[i] = state[3] * ogain;
+  }
+}
+
 void ResoFilter::process(const int32_t **inbufs, const int32_t *control_in,
-                         const int32_t *control_last, int32_t **outbufs) {
-  AlignedBuf<float, 20> a;
+                         const int32_t *control_last, int32_t **outbufs,
+                         int n) {
   float overdrive = control_in[2] * (1.0 / (1 << 24));
   const int32_t *ibuf = inbufs[0];
   int32_t *obuf = outbufs[0];
-  bool useneon = false; // TODO: hasNeon();
-  if (useneon) {
-#ifdef HAVE_NEON
+  bool nonlinear = overdrive >= 0.01 || always_nonlinear_;
+  if (!coeff_valid_ || nonlinear != coeff_nonlinear_ ||
+      control_in[0] != coeff_control_[0] ||
+      control_in[1] != coeff_control_[1] ||
+      control_in[2] != coeff_control_[2]) {
+    AlignedBuf<float, 20> a;
     float params[2];
-    params[0] = compute_alpha(control_in[0]) * (1.0 / (1 << 28));
+    params[0] = compute_alpha(tables_->freqlut(), control_in[0]) *
+      (1.0 / (1 << 28));
     params[1] = control_in[1] * (1.0 / (1 << 24));
-    neon_ladder_mkmatrix(params, a.get());
-#endif
-  } else {
-    make_state_transition(a.get(), compute_alpha(control_in[0]), control_in[1]);
-  }
-
-  if (overdrive < 0.01) {
-    if (useneon) {
-#ifdef HAVE_NEON
-      AlignedBuf<float, 20> a_neon;
-      matcopy(a_neon.get(), a.get() + 4, 16);
-      matcopy(a_neon.get() + 16, a.get(), 4);
-      neon_ladder_lin(ibuf, a_neon.get(), obuf, n, x.get());
-#endif
-    } else {
-      for (int i = 0; i < n; i++) {
-        float signal = ibuf[i];
-        float tmp[4];
-        matvec4(tmp, a.get() + 4, x.get());
-        for (int k = 0; k < 4; k++) {
-          x.get()[k] = tmp[k] + signal * a.get()[k];
-          obuf[i] = x.get()[3];
-        }
+    Kernels::ladder_mkmatrix(params, a.get());
+    if (nonlinear) {
+      float ogain = 1 + overdrive;
+      float k = control_in[1] * (1.0 / (1<<24));
+      for (int i = 0; i < 4; i++) {
+        a.get()[4 + 5 * i] -= 1.0;
+        a.get()[16 + i] += k * a.get()[i];
       }
+      a_k_.get()[20] = k;
+      a_k_.get()[21] = overdrive * (1.0 / (1 << 24));
+      a_k_.get()[22] = ogain;
     }
-  } else {
-    float ogain = 1 + overdrive;
-    float k = control_in[1] * (1.0 / (1<<24));
-    for (int i = 0; i < 4; i++) {
-      a.get()[4 + 5 * i] -= 1.0;
-      a.get()[16 + i] += k * a.get()[i];
-    }
-    if (useneon) {
-#ifdef HAVE_NEON
-      // Neon implementation has A first, then B
-      AlignedBuf<float, 23> a_neon;
-      matcopy(a_neon.get(), a.get() + 4, 16);
-      matcopy(a_neon.get() + 16, a.get(), 4);
-      a_neon.get()[20] = k;
-      a_neon.get()[21] = overdrive * (1.0 / (1 << 24));
-      a_neon.get()[22] = ogain;
-      neon_ladder_nl(ibuf, a_neon.get(), obuf, n, x.get());
-#endif
-    } else {
-      for (int i = 0; i < n; i++) {
-        float signal = ibuf[i];
-        float tmp[4];
-        float tx[4];
-        for (int j = 0; j < 4; j++) {
-          tx[j] = sigmoid(x.get()[j], overdrive);
-        }
-        matvec4(tmp, a.get() + 4, tx);
-        float xin = sigmoid(signal - k * x.get()[3], overdrive);
-        for (int j = 0; j < 4; j++) {
-          x.get()[j] += tmp[j] + xin * a.get()[j];
-          obuf[i] = x.get()[3] * ogain;
-        }
-      }
+    matcopy(a_k_.get(), a.get() + 4, 16);
+    matcopy(a_k_.get() + 16, a.get(), 4);
+    for (int i = 0; i < 3; i++) {
+      coeff_control_[i] = control_in[i];
     }
+    coeff_nonlinear_ = nonlinear;
+    coeff_valid_ = true;
+  }
+
+  if (nonlinear) {
+    Kernels::ladder_nl(ibuf, a_k_.get(), obuf, n, x.get());
+  } else {
+    Kernels::ladder_lin(ibuf, a_k_.get(), obuf, n, x.get());
   }
 }
 #else
 void ResoFilter::process(const int32_t **inbufs, const int32_t *control_in,
-                         const int32_t *control_last, int32_t **outbufs) {
-  int32_t alpha = compute_alpha(control_last[0]);
-  int32_t alpha_in = compute_alpha(control_in[0]);
-  int32_t delta_alpha = (alpha_in - alpha) >> lg_n;
+                         const int32_t *control_last, int32_t **outbufs,
+                         int n) {
+  int32_t alpha = compute_alpha(tables_->freqlut(), control_last[0]);
+  int32_t alpha_in = compute_alpha(tables_->freqlut(), control_in[0]);
+  int32_t delta_alpha = (alpha_in - alpha) / n;
   int32_t k = control_last[1];
   int32_t k_in = control_in[1];
-  int32_t delta_k = (k_in - k) >> lg_n;
+  int32_t delta_k = (k_in - k) / n;
   if ((((int64_t)alpha_in * (int64_t)k_in) >> 24) > 1 << 24) {
     k_in = ((1 << 30) / alpha_in) << 18;
   }
@@ -18,18 +18,40 @@
 #define SYNTH_RESOFILTER_H_
 
 #include "module.h"
+#include "aligned_buf.h"
 
 #define USE_MATRIX
 
+class RateTables;
+
 class ResoFilter : Module {
  public:
-  ResoFilter();
+  explicit ResoFilter(const RateTables *tables);
 
-  static void init(double sample_rate);
   static int32_t lookup(int32_t phase, int32_t log_f);
   void process(const int32_t **inbufs, const int32_t *control_in,
-			   const int32_t *control_last, int32_t **outbufs);
+			   const int32_t *control_last, int32_t **outbufs, int n);
+
+  // Normally the nonlinear ladder only runs when there is overdrive. With
+  // this set it always does (the high quality tier).
+  void set_always_nonlinear(bool always) { always_nonlinear_ = always; }
+
+  // With no input, the state decays but never quite reaches zero. Once it
+  // is too small to be heard it is cleared, so the filter is at rest.
+  // Returns whether it is.
+  bool settle();
  private:
+  const RateTables *tables_;
+  bool always_nonlinear_;
+#if defined(USE_MATRIX)
+  // The kernel coefficients only depend on the controls, which rarely
+  // change, so they're kept from block to block. coeff_control_ and
+  // coeff_nonlinear_ are what a_k_ was built for.
+  AlignedBuf<float, 23> a_k_;
+  int32_t coeff_control_[3];
+  bool coeff_nonlinear_;
+  bool coeff_valid_;
+#endif
  #if defined(USE_MATRIX)
   AlignedBuf<float, 4> x;
 #else
@@ -41,6 +63,23 @@ class ResoFilter : Module {
 #endif
 };
 
+// Inner loops of the matrix ladder filter, selected through Kernels.
+void ladder_mkmatrix_scalar(const float *params, float *a);
+void ladder_lin_scalar(const int32_t *in, const float *a, int32_t *out,
+  int count, float *state);
+void ladder_nl_scalar(const int32_t *in, const float *a, int32_t *out,
+  int count, float *state);
+
+#ifdef HAVE_NEON
+extern "C"
+void neon_ladder_nl(const int32_t *in, const float *a, int32_t *out, int count,
+  float *state);
+extern "C"
+void neon_ladder_lin(const int32_t *in, const float *a, int32_t *out, int count,
+  float *state);
+extern "C" void neon_ladder_mkmatrix(const float *in, float *out);
+#endif
+
 // remove when done
 void test_matrix();
 
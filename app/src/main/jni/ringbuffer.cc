@@ -46,6 +46,25 @@ int RingBuffer::Read(int size, uint8_t *bytes) {
   return size;
 }
 
+int RingBuffer::Peek(const uint8_t **buf1, int *size1, const uint8_t **buf2,
+    int *size2) {
+  unsigned int rd_ix = rd_ix_;
+  unsigned int wr_ix = wr_ix_;
+  SynthMemoryBarrier();  // read barrier, make sure data is committed before ix
+  unsigned int size = (wr_ix - rd_ix) & (kBufSize - 1);
+  unsigned int fragment_size = min(size, kBufSize - rd_ix);
+  *buf1 = buf_ + rd_ix;
+  *size1 = fragment_size;
+  *buf2 = buf_;
+  *size2 = size - fragment_size;
+  return size;
+}
+
+void RingBuffer::Consume(int size) {
+  SynthMemoryBarrier();  // full barrier, make sure read commits before updating
+  rd_ix_ = (rd_ix_ + size) & (kBufSize - 1);
+}
+
 void RingBuffer::Write(const uint8_t *bytes, int size) {
   unsigned int remaining = (unsigned int)size;
   while (remaining > 0) {
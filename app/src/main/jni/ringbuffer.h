@@ -31,6 +31,17 @@ class RingBuffer {
   // size <= a previous value of BytesAvailable().
   int Read(int size, uint8_t *bytes);
 
+  // Exposes the bytes available for reading without copying them. Because
+  // the data may wrap around the end of the buffer, it is returned as two
+  // contiguous regions; the second is empty unless the data wraps. Returns
+  // the total size. The regions stay valid until Consume is called.
+  int Peek(const uint8_t **buf1, int *size1, const uint8_t **buf2, int *size2);
+
+  // Marks bytes returned by Peek as read, freeing the space for the writer.
+  // It is the caller's responsibility to make sure that size <= the total
+  // returned by the last Peek.
+  void Consume(int size);
+
   // Writes bytes into the buffer. If the buffer is full, the method will
   // block until space is available.
   void Write(const uint8_t *bytes, int size);
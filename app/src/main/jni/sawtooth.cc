@@ -162,7 +162,8 @@ int32_t Sawtooth::lookup_2(int32_t phase, int slice, int32_t slice_lowbits) {
 }
 
 void Sawtooth::process(const int32_t **inbufs, const int32_t *control_in,
-                       const int32_t *control_last, int32_t **outbufs) {
+                       const int32_t *control_last, int32_t **outbufs,
+                       int n) {
   int32_t logf = control_last[0];
   int32_t *obuf = outbufs[0];
   int32_t actual_logf = logf + sawtooth_freq_off;
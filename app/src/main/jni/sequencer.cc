@@ -0,0 +1,350 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include "synth.h"
+#include "sequencer.h"
+
+struct Sequencer::Sequence {
+  Sequence() : positions(NULL), messages(NULL), tempo_ticks(NULL),
+      tempo_positions(NULL), samples_per_tick(NULL) {
+  }
+  ~Sequence() {
+    delete[] positions;
+    delete[] messages;
+    delete[] tempo_ticks;
+    delete[] tempo_positions;
+    delete[] samples_per_tick;
+  }
+
+  // The sample position of a tick, by way of the tempo map.
+  int64_t Position(int64_t tick) const;
+  // The tick at a sample position.
+  int64_t Tick(int64_t position) const;
+  // The index of the first event at or after a sample position.
+  int FirstEvent(int64_t position) const;
+
+  int n_events;
+  int64_t *positions;
+  // The size of each message, followed by the message.
+  uint8_t (*messages)[4];
+
+  // Tempo segments, with an extra one at tick 0.
+  int n_tempos;
+  int64_t *tempo_ticks;
+  double *tempo_positions;
+  double *samples_per_tick;
+};
+
+int64_t Sequencer::Sequence::Position(int64_t tick) const {
+  int i = n_tempos - 1;
+  while (i > 0 && tempo_ticks[i] > tick) {
+    i--;
+  }
+  return (int64_t)(tempo_positions[i] +
+    (tick - tempo_ticks[i]) * samples_per_tick[i] + 0.5);
+}
+
+int64_t Sequencer::Sequence::Tick(int64_t position) const {
+  int i = n_tempos - 1;
+  while (i > 0 && tempo_positions[i] > position) {
+    i--;
+  }
+  return tempo_ticks[i] +
+    (int64_t)((position - tempo_positions[i]) / samples_per_tick[i]);
+}
+
+int Sequencer::Sequence::FirstEvent(int64_t position) const {
+  int lo = 0;
+  int hi = n_events;
+  while (lo < hi) {
+    int mid = (lo + hi) / 2;
+    if (positions[mid] < position) {
+      lo = mid + 1;
+    } else {
+      hi = mid;
+    }
+  }
+  return lo;
+}
+
+Sequencer::Sequencer(double sample_rate) {
+  sample_rate_ = sample_rate;
+  command_rd_ = 0;
+  command_wr_ = 0;
+  pthread_mutex_init(&write_lock_, NULL);
+  pending_ = NULL;
+  retired_ = NULL;
+  sequence_ = NULL;
+  playing_ = false;
+  position_ = 0;
+  next_event_ = 0;
+  loop_start_ = 0;
+  loop_end_ = 0;
+  memset(held_, 0, sizeof(held_));
+  release_key_ = 128;
+  tick_ = 0;
+}
+
+Sequencer::~Sequencer() {
+  delete sequence_;
+  delete pending_;
+  delete retired_;
+  pthread_mutex_destroy(&write_lock_);
+}
+
+static int32_t ReadWord(const uint8_t *p) {
+  int32_t word;
+  memcpy(&word, p, sizeof(word));
+  return word;
+}
+
+bool Sequencer::Load(const uint8_t *data, int size) {
+  if (size < 12) {
+    return false;
+  }
+  int ticks_per_beat = ReadWord(data);
+  int n_tempos = ReadWord(data + 4);
+  int n_events = ReadWord(data + 8);
+  if (ticks_per_beat <= 0 || n_tempos < 0 || n_events < 0 ||
+      n_tempos > (size - 12) / 8 ||
+      n_events > (size - 12 - 8 * n_tempos) / 8) {
+    return false;
+  }
+
+  Sequence *seq = new Sequence;
+  seq->n_tempos = n_tempos + 1;
+  seq->tempo_ticks = new int64_t[n_tempos + 1];
+  seq->tempo_positions = new double[n_tempos + 1];
+  seq->samples_per_tick = new double[n_tempos + 1];
+  seq->tempo_ticks[0] = 0;
+  seq->tempo_positions[0] = 0;
+  seq->samples_per_tick[0] = 500000e-6 * sample_rate_ / ticks_per_beat;
+  const uint8_t *p = data + 12;
+  bool ok = true;
+  for (int i = 1; i <= n_tempos; i++, p += 8) {
+    int64_t tick = ReadWord(p);
+    int usec_per_beat = ReadWord(p + 4);
+    int64_t last_tick = seq->tempo_ticks[i - 1];
+    ok = ok && tick >= last_tick && usec_per_beat > 0;
+    seq->tempo_ticks[i] = tick;
+    seq->tempo_positions[i] = seq->tempo_positions[i - 1] +
+      (tick - last_tick) * seq->samples_per_tick[i - 1];
+    seq->samples_per_tick[i] = usec_per_beat * 1e-6 * sample_rate_ /
+      ticks_per_beat;
+  }
+  seq->n_events = n_events;
+  seq->positions = new int64_t[max(n_events, 1)];
+  seq->messages = new uint8_t[max(n_events, 1)][4];
+  int64_t last_tick = 0;
+  for (int i = 0; i < n_events; i++, p += 8) {
+    int64_t tick = ReadWord(p);
+    uint8_t *message = seq->messages[i];
+    memcpy(message, p + 4, 4);
+    ok = ok && tick >= last_tick && message[0] >= 1 && message[0] <= 3 &&
+      message[1] >= 0x80 && message[1] < 0xf0;
+    seq->positions[i] = seq->Position(tick);
+    last_tick = tick;
+  }
+  if (!ok) {
+    delete seq;
+    return false;
+  }
+
+  CollectSequence();
+  delete SynthAtomicExchange(&pending_, seq);
+  // As in SynthUnit::LoadBank, give the audio thread a chance to take it so
+  // the old one can be freed here.
+  for (int i = 0; i < 100 && pending_ != NULL; i++) {
+    struct timespec sleepTime;
+    sleepTime.tv_sec = 0;
+    sleepTime.tv_nsec = 1000000;
+    nanosleep(&sleepTime, NULL);
+  }
+  CollectSequence();
+  return true;
+}
+
+void Sequencer::SwapSequence() {
+  if (pending_ == NULL || retired_ != NULL) {
+    return;
+  }
+  Sequence *seq = SynthAtomicExchange(&pending_, (Sequence *)NULL);
+  if (seq != NULL) {
+    Sequence *old_seq = sequence_;
+    sequence_ = seq;
+    playing_ = false;
+    loop_end_ = loop_start_ = 0;
+    Jump(0);
+    SynthMemoryBarrier();
+    retired_ = old_seq;
+  }
+}
+
+void Sequencer::CollectSequence() {
+  delete SynthAtomicExchange(&retired_, (Sequence *)NULL);
+}
+
+void Sequencer::WriteCommand(int type, int64_t a, int64_t b) {
+  pthread_mutex_lock(&write_lock_);
+  int wr = command_wr_;
+  int next = (wr + 1) % kCommandQueueSize;
+  while (next == command_rd_) {
+    // Full; the audio thread takes them all every buffer.
+    struct timespec sleepTime;
+    sleepTime.tv_sec = 0;
+    sleepTime.tv_nsec = 1000000;
+    nanosleep(&sleepTime, NULL);
+  }
+  commands_[wr].type = type;
+  commands_[wr].a = a;
+  commands_[wr].b = b;
+  SynthMemoryBarrier();
+  command_wr_ = next;
+  pthread_mutex_unlock(&write_lock_);
+}
+
+void Sequencer::Play() {
+  WriteCommand(kCommandPlay, 0, 0);
+}
+
+void Sequencer::Stop() {
+  WriteCommand(kCommandStop, 0, 0);
+}
+
+void Sequencer::Seek(int64_t tick) {
+  WriteCommand(kCommandSeek, tick, 0);
+}
+
+void Sequencer::SetLoop(int64_t start_tick, int64_t end_tick) {
+  WriteCommand(kCommandLoop, start_tick, end_tick);
+}
+
+bool Sequencer::Active() const {
+  return playing_ || release_key_ < 128 || command_rd_ != command_wr_ ||
+    pending_ != NULL;
+}
+
+void Sequencer::ProcessCommands() {
+  SwapSequence();
+  int rd = command_rd_;
+  int wr = command_wr_;
+  SynthMemoryBarrier();
+  for (; rd != wr; rd = (rd + 1) % kCommandQueueSize) {
+    const Command &command = commands_[rd];
+    if (sequence_ == NULL) {
+      continue;
+    }
+    switch (command.type) {
+      case kCommandPlay:
+        playing_ = true;
+        break;
+      case kCommandStop:
+        playing_ = false;
+        ReleaseNotes();
+        break;
+      case kCommandSeek:
+        Jump(sequence_->Position(max(command.a, (int64_t)0)));
+        break;
+      case kCommandLoop:
+        if (command.b > command.a) {
+          loop_start_ = sequence_->Position(max(command.a, (int64_t)0));
+          loop_end_ = sequence_->Position(command.b);
+        } else {
+          loop_start_ = loop_end_ = 0;
+        }
+        break;
+    }
+  }
+  SynthMemoryBarrier();
+  command_rd_ = rd;
+}
+
+void Sequencer::Jump(int64_t position) {
+  position_ = position;
+  next_event_ = sequence_->FirstEvent(position);
+  ReleaseNotes();
+  UpdateTick();
+}
+
+void Sequencer::ReleaseNotes() {
+  release_key_ = 0;
+}
+
+void Sequencer::UpdateTick() {
+  if (sequence_ != NULL) {
+    tick_ = sequence_->Tick(position_);
+  }
+}
+
+bool Sequencer::NextMessage(const uint8_t **message, int *size) {
+  for (; release_key_ < 128; release_key_++) {
+    if (held_[release_key_] > 0) {
+      held_[release_key_] = 0;
+      release_message_[0] = 0x80;
+      release_message_[1] = release_key_;
+      release_message_[2] = 0;
+      *message = release_message_;
+      *size = 3;
+      return true;
+    }
+  }
+  if (!playing_ || next_event_ == sequence_->n_events ||
+      sequence_->positions[next_event_] > position_) {
+    return false;
+  }
+  const uint8_t *m = sequence_->messages[next_event_++];
+  uint8_t type = m[1] & 0xf0;
+  if (m[0] == 3 && type == 0x90 && m[3] != 0) {
+    held_[m[2]] = min(held_[m[2]] + 1, 255);
+  } else if (m[0] == 3 && (type == 0x80 || type == 0x90)) {
+    held_[m[2]] = 0;
+  }
+  *message = m + 1;
+  *size = m[0];
+  return true;
+}
+
+int Sequencer::SamplesToNext(int max_samples) const {
+  if (!playing_) {
+    return max_samples;
+  }
+  int64_t n = max_samples;
+  if (next_event_ < sequence_->n_events) {
+    n = min(n, sequence_->positions[next_event_] - position_);
+  }
+  if (loop_end_ > loop_start_ && position_ < loop_end_) {
+    n = min(n, loop_end_ - position_);
+  }
+  return (int)n;
+}
+
+void Sequencer::Advance(int n) {
+  if (!playing_) {
+    return;
+  }
+  position_ += n;
+  if (loop_end_ > loop_start_ && position_ == loop_end_) {
+    Jump(loop_start_);
+  } else if (next_event_ == sequence_->n_events && loop_end_ <= loop_start_) {
+    // Played to the end.
+    playing_ = false;
+  }
+  UpdateTick();
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef SYNTH_SEQUENCER_H_
+#define SYNTH_SEQUENCER_H_
+
+#include <pthread.h>
+#include <stdint.h>
+
+// Plays a sequence of channel messages on the audio thread, with each event
+// at its exact sample position (see SynthUnit::GetSamples). The sequence is
+// handed over once, and the transport is then driven by commands, which
+// never make the audio thread wait.
+//
+// A sequence is loaded from a block of 32-bit words in native byte order:
+//   ticks per beat, number of tempos, number of events,
+//   for each tempo: tick, microseconds per beat,
+//   for each event: tick, then a word holding the message size (1 to 3) in
+//     its first byte and the message in the other three.
+// Tempos and events are sorted by tick. Until the first tempo, the tempo is
+// 120 bpm.
+class Sequencer {
+ public:
+  explicit Sequencer(double sample_rate);
+  ~Sequencer();
+
+  // Builds a sequence and hands it over to the audio thread, which stops
+  // the transport and rewinds when it picks it up. Must not be called from
+  // the audio thread, and calls must not overlap. Returns false if the data
+  // is malformed.
+  bool Load(const uint8_t *data, int size);
+
+  // Transport commands. May be called from any thread except the audio
+  // thread; they take effect at the start of the next buffer. Stopping,
+  // seeking and looping back release any notes the sequence is holding.
+  void Play();
+  void Stop();
+  void Seek(int64_t tick);
+  // Loops between two ticks while playing; end <= start turns it off.
+  void SetLoop(int64_t start_tick, int64_t end_tick);
+
+  // The playing position, in ticks. Approximate when read from another
+  // thread than the audio thread.
+  int64_t tick() const { return tick_; }
+
+  // Audio thread: whether there are commands waiting, or the sequence is
+  // playing, so that there's work for GetSamples.
+  bool Active() const;
+
+  // Audio thread, at the start of a buffer: picks up a new sequence and
+  // carries out the commands.
+  void ProcessCommands();
+
+  // Audio thread: fetches the next message to apply at the current
+  // position. Returns false when there are none.
+  bool NextMessage(const uint8_t **message, int *size);
+
+  // Audio thread: the number of samples, at most max, until the next event
+  // or the end of the loop.
+  int SamplesToNext(int max) const;
+
+  // Audio thread: moves on by n samples, which must not be more than
+  // SamplesToNext returned.
+  void Advance(int n);
+
+ private:
+  struct Sequence;
+
+  enum CommandType {
+    kCommandPlay,
+    kCommandStop,
+    kCommandSeek,
+    kCommandLoop
+  };
+
+  struct Command {
+    int type;
+    int64_t a;
+    int64_t b;
+  };
+
+  void WriteCommand(int type, int64_t a, int64_t b);
+  void SwapSequence();
+  void CollectSequence();
+
+  // Moves the play position, releasing held notes.
+  void Jump(int64_t position);
+  // Releases the notes the sequence is holding.
+  void ReleaseNotes();
+  void UpdateTick();
+
+  double sample_rate_;
+
+  // Commands, from any number of writers (serialized by write_lock_) to
+  // the audio thread.
+  static const int kCommandQueueSize = 64;
+  Command commands_[kCommandQueueSize];
+  volatile int command_rd_;
+  volatile int command_wr_;
+  pthread_mutex_t write_lock_;
+
+  // Handoff slots between Load and the audio thread, as for patch banks.
+  Sequence *volatile pending_;
+  Sequence *volatile retired_;
+
+  // Owned by the audio thread.
+  Sequence *sequence_;
+  bool playing_;
+  int64_t position_;
+  int next_event_;
+  int64_t loop_start_;
+  int64_t loop_end_;
+  // How many notes the sequence has started on each key, and the next key
+  // to check for release.
+  uint8_t held_[128];
+  int release_key_;
+  uint8_t release_message_[3];
+
+  volatile int64_t tick_;
+};
+
+#endif  // SYNTH_SEQUENCER_H_
@@ -21,6 +21,8 @@
 
 #define R (1 << 29)
 
+int32_t sintab_coarse[SIN_COARSE_N_SAMPLES];
+
 #ifdef SIN_DELTA
 int32_t sintab[SIN_N_SAMPLES << 1];
 #else
@@ -53,6 +55,10 @@ void Sin::init() {
 #else
   sintab[SIN_N_SAMPLES] = 0;
 #endif
+  for (int i = 0; i < SIN_COARSE_N_SAMPLES; i++) {
+    sintab_coarse[i] = (int32_t)floor(
+      sin(i * (2 * M_PI / SIN_COARSE_N_SAMPLES)) * (1 << 24) + 0.5);
+  }
 }
 
 #ifndef SIN_INLINE
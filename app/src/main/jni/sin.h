@@ -24,8 +24,29 @@ class Sin {
 
   // A more accurate sine, both input and output Q30
   static int32_t compute10(int32_t phase);
+
+  // Nearest entry of a short table, no interpolation. Same units as lookup.
+  static int32_t lookup_coarse(int32_t phase);
+
+  // compute10, in the same units as lookup.
+  static int32_t lookup_fine(int32_t phase) {
+    return (compute10(phase << 6) + 32) >> 6;
+  }
 };
 
+#define SIN_COARSE_LG_N_SAMPLES 9
+#define SIN_COARSE_N_SAMPLES (1 << SIN_COARSE_LG_N_SAMPLES)
+
+extern int32_t sintab_coarse[SIN_COARSE_N_SAMPLES];
+
+inline
+int32_t Sin::lookup_coarse(int32_t phase) {
+  const int SHIFT = 24 - SIN_COARSE_LG_N_SAMPLES;
+  int phase_int = ((phase + (1 << (SHIFT - 1))) >> SHIFT) &
+    (SIN_COARSE_N_SAMPLES - 1);
+  return sintab_coarse[phase_int];
+}
+
 #define SIN_LG_N_SAMPLES 10
 #define SIN_N_SAMPLES (1 << SIN_LG_N_SAMPLES)
 
@@ -21,9 +21,24 @@
 // See http://stackoverflow.com/questions/126279/c99-stdint-h-header-and-ms-visual-studio
 #include <stdint.h>
 
-// TODO(raph): move from fixed to variable N
+// Audio is rendered in blocks whose size is chosen at runtime, up to MAX_N
+// samples, so a device buffer can be rendered in one go. Anything updated
+// once per block (envelopes, LFO) is calibrated for blocks of N samples and
+// scaled to the actual block size.
 #define LG_N 6
 #define N (1 << LG_N)
+#define MAX_N 256
+
+// Trades fidelity for CPU. Economy uses a short sine table without
+// interpolation, updates the voice controls every other block and skips the
+// filter when it would do nothing. High uses a polynomial sine and always
+// runs the nonlinear ladder. Standard is the original engine.
+enum Quality {
+  kQualityEconomy,
+  kQualityStandard,
+  kQualityHigh,
+  kNumQualities
+};
 
 #if defined(__APPLE__)
 #include <libkern/OSAtomic.h>
@@ -41,6 +56,32 @@
 #define SynthMemoryBarrier()
 #endif
 
+// Atomically replaces *ptr with value and returns the previous contents. This
+// is a full barrier, so writes to the object being published are visible
+// before the pointer is.
+template<typename T>
+inline static T SynthAtomicExchange(volatile T *ptr, T value) {
+  SynthMemoryBarrier();
+  return __sync_lock_test_and_set(ptr, value);
+}
+
+// Atomically increments a counter that may be shared between threads.
+inline static void SynthAtomicIncrement(volatile uint32_t *ptr) {
+  __sync_fetch_and_add(ptr, 1);
+}
+
+// Atomically decrements a shared counter, returning the new value.
+inline static uint32_t SynthAtomicDecrement(volatile uint32_t *ptr) {
+  return __sync_sub_and_fetch(ptr, 1);
+}
+
+// Atomically replaces *ptr with new_value if it still holds old_value.
+// Returns whether the replacement happened. This is a full barrier.
+inline static bool SynthAtomicCompareAndSwap(volatile uint32_t *ptr,
+    uint32_t old_value, uint32_t new_value) {
+  return __sync_bool_compare_and_swap(ptr, old_value, new_value);
+}
+
 template<typename T>
 inline static T min(const T& a, const T& b) {
     return a < b ? a : b;
@@ -60,15 +101,32 @@ static inline bool hasNeon() {
 #elif __ARM_NEON__
 #define HAVE_NEON_INTRINSICS
 #include <arm_neon.h>
-// TODO: get this working (although maybe we don't even care about non-NEON ARM any more)
-//#include <cpu-features.h>
-
+// Checks the hwcaps at runtime, see kernels.cc.
+bool hasNeon();
+#else
 static inline bool hasNeon() {
-  return true;
-  //return (android_getCpuFeatures() & ANDROID_CPU_ARM_FEATURE_NEON) != 0;
+  return false;
+}
+#endif
+
+#if defined(__i386__) || defined(__x86_64__)
+// The x86 kernels are compiled with per-function target attributes, so the
+// rest of the code doesn't need -msse4.1 or -mavx2, and are selected at
+// runtime.
+#define HAVE_X86_INTRINSICS
+static inline bool hasSse41() {
+  return __builtin_cpu_supports("sse4.1");
+}
+
+static inline bool hasAvx2() {
+  return __builtin_cpu_supports("avx2");
 }
 #else
-static inline bool hasNeon() {
+static inline bool hasSse41() {
+  return false;
+}
+
+static inline bool hasAvx2() {
   return false;
 }
 #endif
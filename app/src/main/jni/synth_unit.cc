@@ -23,15 +23,16 @@
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO, "synth", __VA_ARGS__)
 #endif
 
+#include <pthread.h>
 #include <string.h>
+#include <time.h>
 
 #include "synth.h"
-#include "freqlut.h"
 #include "sin.h"
 #include "exp2.h"
-#include "pitchenv.h"
 #include "patch.h"
 #include "synth_unit.h"
+#include "kernels.h"
 #include "aligned_buf.h"
 
 char epiano[] = {
@@ -46,61 +47,226 @@ char epiano[] = {
   69, 46, 80, 73, 65, 78, 79, 32, 49, 32
 };
 
-void SynthUnit::Init(double sample_rate) {
-  Freqlut::init(sample_rate);
-  Exp2::init();
-  Tanh::init();
-  Sin::init();
-  Lfo::init(sample_rate);
-  PitchEnv::init(sample_rate);
+static pthread_mutex_t init_lock = PTHREAD_MUTEX_INITIALIZER;
+static bool initialized = false;
+
+void SynthUnit::Init(bool autotune_kernels) {
+  // The tables are rebuilt in place, so this can't happen again once some
+  // engine may be rendering.
+  pthread_mutex_lock(&init_lock);
+  if (!initialized) {
+    Exp2::init();
+    Tanh::init();
+    Sin::init();
+    FmCore::init();
+    // Last, as autotuning runs the kernels on the tables.
+    Kernels::init(autotune_kernels);
+    initialized = true;
+  }
+  pthread_mutex_unlock(&init_lock);
 }
 
-SynthUnit::SynthUnit(RingBuffer *ring_buffer) {
-  ring_buffer_ = ring_buffer;
+SynthUnit::SynthUnit(MidiInput *midi_input, double sample_rate)
+    : tables_(RateTables::get(sample_rate)), lfo_(tables_), filter_(tables_),
+      governor_(max_active_notes), sequencer_(sample_rate) {
+  midi_input_ = midi_input;
+  bulk_byte_budget_ = kDefaultBulkByteBudget;
+  bulk_credit_ = 0;
   for (int note = 0; note < max_active_notes; ++note) {
-    active_note_[note].dx7_note = new Dx7Note;
+    active_note_[note].dx7_note = new Dx7Note(tables_);
     active_note_[note].keydown = false;
     active_note_[note].sustained = false;
     active_note_[note].live = false;
+    active_note_[note].shed = false;
   }
-  input_buffer_index_ = 0;
-  memcpy(patch_data_, epiano, sizeof(epiano));
+  bank_ = new PatchBank;
+  memset(bank_->data, 0, sizeof(bank_->data));
+  memcpy(bank_->data, epiano, sizeof(epiano));
+  bank_->Compile();
+  received_bank_ = new PatchBank;
+  received_patches_ = -1;
+  stage_banks_ = false;
+  pending_bank_ = NULL;
+  retired_bank_ = NULL;
   ProgramChange(0);
   current_note_ = 0;
-  filter_control_[0] = 258847126;
+  filter_control_[0] = kFilterOpen;
   filter_control_[1] = 0;
   filter_control_[2] = 0;
   controllers_.values_[kControllerPitch] = 0x2000;
   sustain_ = false;
-  extra_buf_size_ = 0;
+  pruned_kernels_ = 0;
+  quality_ = kQualityStandard;
+  shed_voices_ = 0;
+  filter_at_rest_ = true;
+  replaying_ = false;
+  voices_rendered_ = 0;
+  midi_bytes_ = 0;
+}
+
+SynthUnit::~SynthUnit() {
+  for (int note = 0; note < max_active_notes; ++note) {
+    delete active_note_[note].dx7_note;
+  }
+  delete bank_;
+  delete received_bank_;
+  delete pending_bank_;
+  delete retired_bank_;
+}
+
+void PatchBank::Compile() {
+  for (int i = 0; i < 32; i++) {
+    patches[i].compile((const char *)data + 128 * i);
+  }
 }
 
-// Transfer as many bytes as possible from ring buffer to input buffer.
-// Note that this implementation has a fair amount of copying - we'd probably
-// do it a bit differently if it were bulk data, but in this case we're
-// optimizing for simplicity of implementation.
-void SynthUnit::TransferInput() {
-  size_t bytes_available = ring_buffer_->BytesAvailable();
-  int bytes_to_read = min(bytes_available,
-      sizeof(input_buffer_) - input_buffer_index_);
-  if (bytes_to_read > 0) {
-    ring_buffer_->Read(bytes_to_read, input_buffer_ + input_buffer_index_);
-    input_buffer_index_ += bytes_to_read;
+bool SynthUnit::LoadBank(const uint8_t *sysex, int size) {
+  if (!ValidateBankSysex(sysex, size)) {
+    return false;
   }
+  PatchBank *bank = new PatchBank;
+  memcpy(bank->data, sysex + 6, sizeof(bank->data));
+  bank->Compile();
+
+  CollectBank();
+  // If the audio thread hadn't picked up the previous bank yet, it never
+  // will, so it can be freed right away.
+  delete SynthAtomicExchange(&pending_bank_, bank);
+
+  // Give the audio thread a chance to switch over, so that the old bank can
+  // be freed here rather than lingering until the next load. If it isn't
+  // running, the bank is freed by the next load or the destructor.
+  for (int i = 0; i < 100 && pending_bank_ != NULL; i++) {
+    struct timespec sleepTime;
+    sleepTime.tv_sec = 0;
+    sleepTime.tv_nsec = 1000000;
+    nanosleep(&sleepTime, NULL);
+  }
+  CollectBank();
+  return true;
 }
 
-void SynthUnit::ConsumeInput(int n_input_bytes) {
-  if (n_input_bytes < input_buffer_index_) {
-    memmove(input_buffer_, input_buffer_ + n_input_bytes,
-        input_buffer_index_ - n_input_bytes);
+void SynthUnit::SwapBank() {
+  // Only take a new bank once the loader has collected the last retired
+  // one, so that retired_bank_ never has to hold more than one.
+  if (pending_bank_ == NULL || retired_bank_ != NULL) {
+    return;
+  }
+  PatchBank *bank = SynthAtomicExchange(&pending_bank_, (PatchBank *)NULL);
+  if (bank != NULL) {
+    // Supersedes a bank still being received.
+    received_patches_ = -1;
+    PatchBank *old_bank = bank_;
+    bank_ = bank;
+    ProgramChange(current_patch_);
+    SynthMemoryBarrier();
+    retired_bank_ = old_bank;
+  }
+}
+
+void SynthUnit::CollectBank() {
+  delete SynthAtomicExchange(&retired_bank_, (PatchBank *)NULL);
+}
+
+void SynthUnit::SetBulkByteBudget(int bytes) {
+  bulk_byte_budget_ = max(1, bytes);
+}
+
+int SynthUnit::ProcessContiguous(const uint8_t *buf, int buf_size) {
+  int offset = 0;
+  while (offset < buf_size) {
+    int bytes_consumed = ProcessMidiMessage(buf + offset, buf_size - offset);
+    if (bytes_consumed == 0) {
+      break;
+    }
+    offset += bytes_consumed;
+  }
+  return offset;
+}
+
+int SynthUnit::ReplayMidi(const uint8_t *buf, int size) {
+  replaying_ = true;
+  int bytes_consumed = ProcessContiguous(buf, size);
+  replaying_ = false;
+  return bytes_consumed;
+}
+
+int SynthUnit::ProcessInput(const uint8_t *buf1, int size1,
+    const uint8_t *buf2, int size2) {
+  int offset = ProcessContiguous(buf1, size1);
+  if (offset == size1 || size2 == 0) {
+    return offset + ProcessContiguous(buf2, size2);
+  }
+
+  // A message straddles the wrap point. Short messages are stitched
+  // together; a bank dump is too big for that and is read in two parts.
+  int tail_size = size1 - offset;
+  int n_stitch = min(tail_size + size2, (int)sizeof(stitch_buf_));
+  int n_tail = min(tail_size, n_stitch);
+  memcpy(stitch_buf_, buf1 + offset, n_tail);
+  memcpy(stitch_buf_ + n_tail, buf2, n_stitch - n_tail);
+  int bytes_consumed = ProcessMidiMessage(stitch_buf_, n_stitch);
+  if (bytes_consumed == 0 && n_stitch == (int)sizeof(stitch_buf_) &&
+      stitch_buf_[0] == 0xf0 && tail_size + size2 >= kBankSysexSize) {
+    ReceiveBank(buf1 + offset, tail_size, buf2, kBankSysexSize - tail_size);
+    bytes_consumed = kBankSysexSize;
+  }
+  if (bytes_consumed == 0) {
+    return offset;
+  }
+  offset += bytes_consumed;
+  if (offset < size1) {
+    // Only happens when an unknown message skipped just part of the tail.
+    return offset;
+  }
+  int offset2 = offset - size1;
+  return offset + ProcessContiguous(buf2 + offset2, size2 - offset2);
+}
+
+void SynthUnit::ReceiveBank(const uint8_t *buf1, int size1,
+    const uint8_t *buf2, int size2) {
+  if (!ValidateBankSysex(buf1, size1, buf2, size2)) {
+    return;
+  }
+  // Copy the 4096 data bytes, which start after the 6 byte header.
+  PatchBank *bank = stage_banks_ ? received_bank_ : bank_;
+  uint8_t *data = bank->data;
+  int n1 = max(0, min(size1 - 6, 4096));
+  memcpy(data, buf1 + 6, n1);
+  memcpy(data + n1, buf2 + max(0, 6 - size1), 4096 - n1);
+  if (stage_banks_) {
+    received_patches_ = 0;
+    return;
+  }
+  // Supersedes a bank still being received.
+  received_patches_ = -1;
+  bank->Compile();
+  ProgramChange(current_patch_);
+}
+
+void SynthUnit::CompileReceivedBank() {
+  while (received_patches_ >= 0 && bulk_credit_ > 0) {
+    int i = received_patches_++;
+    received_bank_->patches[i].compile(
+      (const char *)received_bank_->data + 128 * i);
+    bulk_credit_ -= 128;
+    if (received_patches_ == 32) {
+      PatchBank *bank = bank_;
+      bank_ = received_bank_;
+      received_bank_ = bank;
+      received_patches_ = -1;
+      ProgramChange(current_patch_);
+    }
   }
-  input_buffer_index_ -= n_input_bytes;
 }
 
 int SynthUnit::AllocateNote() {
+  // At the governor's limit, only a voice that is already playing can be
+  // taken over.
+  bool at_limit = CountLive() >= governor_.voice_limit();
   int note = current_note_;
   for (int i = 0; i < max_active_notes; i++) {
-    if (!active_note_[note].keydown) {
+    if (!active_note_[note].keydown && (!at_limit || active_note_[note].live)) {
       current_note_ = (note + 1) % max_active_notes;
       return note;
     }
@@ -109,11 +275,78 @@ int SynthUnit::AllocateNote() {
   return -1;
 }
 
+void SynthUnit::NoteOn(int note, int midinote, int velocity) {
+  if (replaying_) {
+    return;
+  }
+  PROFILE_SCOPE(&profiler_, kProfileNoteOn);
+  active_note_[note].dx7_note->init(*patch_, midinote, velocity, quality_);
+}
+
+void SynthUnit::NoteOff(int note) {
+  // Keys replayed by ReplayMidi are down without a voice.
+  if (!active_note_[note].live) {
+    return;
+  }
+  active_note_[note].dx7_note->keyup();
+}
+
+int SynthUnit::Algorithm(int note) const {
+  return active_note_[note].dx7_note->algorithm();
+}
+
+int32_t SynthUnit::Level(int note) const {
+  return active_note_[note].dx7_note->level();
+}
+
+bool SynthUnit::Silent(int note) const {
+  return active_note_[note].dx7_note->silent();
+}
+
+int SynthUnit::CountLive() const {
+  int n_live = 0;
+  for (int note = 0; note < max_active_notes; ++note) {
+    n_live += active_note_[note].live;
+  }
+  return n_live;
+}
+
+bool SynthUnit::ReportLoad(double elapsed, double period) {
+  // Voices already fading out don't count.
+  int n_live = 0;
+  for (int note = 0; note < max_active_notes; ++note) {
+    n_live += active_note_[note].live && !active_note_[note].shed;
+  }
+  if (!governor_.Update(elapsed, period, n_live)) {
+    return false;
+  }
+  for (; n_live > governor_.voice_limit(); --n_live) {
+    int quietest = -1;
+    int32_t quietest_level = 0;
+    for (int note = 0; note < max_active_notes; ++note) {
+      if (active_note_[note].live && !active_note_[note].shed) {
+        int32_t level = Level(note);
+        if (quietest < 0 || level < quietest_level) {
+          quietest = note;
+          quietest_level = level;
+        }
+      }
+    }
+    // Cutting the voice off mid-waveform would click, so it's faded out
+    // over the next block, and freed once it's silent.
+    active_note_[quietest].shed = true;
+    active_note_[quietest].keydown = false;
+    active_note_[quietest].sustained = false;
+    active_note_[quietest].dx7_note->fade();
+    shed_voices_ = shed_voices_ + 1;
+  }
+  return true;
+}
+
 void SynthUnit::ProgramChange(int p) {
   current_patch_ = p;
-  const uint8_t *patch = patch_data_ + 128 * current_patch_;
-  UnpackPatch((const char *)patch, unpacked_patch_);
-  lfo_.reset(unpacked_patch_ + 137);
+  patch_ = &bank_->patches[current_patch_];
+  lfo_.reset(patch_->unpacked() + 137);
 }
 
 void SynthUnit::SetController(int controller, int value) {
@@ -133,7 +366,8 @@ int SynthUnit::ProcessMidiMessage(const uint8_t *buf, int buf_size) {
           if (sustain_) {
             active_note_[note].sustained = true;
           } else {
-            active_note_[note].dx7_note->keyup();
+            NoteOff(note);
+            active_note_[note].sustained = false;
           }
           active_note_[note].keydown = false;
         }
@@ -150,8 +384,12 @@ int SynthUnit::ProcessMidiMessage(const uint8_t *buf, int buf_size) {
         active_note_[note_ix].midi_note = buf[1];
         active_note_[note_ix].keydown = true;
         active_note_[note_ix].sustained = sustain_;
-        active_note_[note_ix].live = true;
-        active_note_[note_ix].dx7_note->init(unpacked_patch_, buf[1], buf[2]);
+        active_note_[note_ix].shed = false;
+        if (!replaying_) {
+          active_note_[note_ix].live = true;
+          filter_at_rest_ = false;
+        }
+        NoteOn(note_ix, buf[1], buf[2]);
       }
       return 3;
     }
@@ -173,7 +411,7 @@ int SynthUnit::ProcessMidiMessage(const uint8_t *buf, int buf_size) {
         if (!sustain_) {
           for (int note = 0; note < max_active_notes; note++) {
             if (active_note_[note].sustained && !active_note_[note].keydown) {
-              active_note_[note].dx7_note->keyup();
+              NoteOff(note);
               active_note_[note].sustained = false;
             }
           }
@@ -187,7 +425,7 @@ int SynthUnit::ProcessMidiMessage(const uint8_t *buf, int buf_size) {
       int program_number = buf[1];
       ProgramChange(min(program_number, 31));
       char name[11];
-      memcpy(name, unpacked_patch_ + 145, 10);
+      memcpy(name, patch_->name(), 10);
       name[10] = 0;
 #ifdef VERBOSE
       std::cout << "Loaded patch " << current_patch_ << ": " << name << "\r";
@@ -197,18 +435,20 @@ int SynthUnit::ProcessMidiMessage(const uint8_t *buf, int buf_size) {
     }
     return 0;
   } else if (cmd == 0xe0) {
-    // pitch bend
-    SetController(kControllerPitch, buf[1] | (buf[2] << 7));
-    return 3;
+    if (buf_size >= 3) {
+      // pitch bend
+      SetController(kControllerPitch, buf[1] | (buf[2] << 7));
+      return 3;
+    }
+    return 0;
   } else if (cmd == 0xf0) {
     // sysex
-    if (buf_size >= 6 && buf[1] == 0x43 && buf[2] == 0x00 && buf[3] == 0x09 &&
-        buf[4] == 0x20 && buf[5] == 0x00) {
-      if (buf_size >= 4104) {
-        // TODO: check checksum?
-        memcpy(patch_data_, buf + 6, 4096);
-        ProgramChange(current_patch_);
-        return 4104;
+    static const uint8_t bank_header[] = { 0xf0, 0x43, 0x00, 0x09, 0x20, 0x00 };
+    // A header cut short, as at the wrap point, still needs more bytes.
+    if (memcmp(buf, bank_header, min(buf_size, 6)) == 0) {
+      if (buf_size >= kBankSysexSize) {
+        ReceiveBank(buf, kBankSysexSize, NULL, 0);
+        return kBankSysexSize;
       }
       return 0;
     }
@@ -222,61 +462,177 @@ int SynthUnit::ProcessMidiMessage(const uint8_t *buf, int buf_size) {
   return buf_size;
 }
 
+bool SynthUnit::Idle() {
+  return filter_at_rest_ && CountLive() == 0 && pending_bank_ == NULL &&
+    received_patches_ < 0 && !midi_input_->Pending() && !sequencer_.Active();
+}
+
+void SynthUnit::SkipSamples(int n_samples) {
+  // Only the LFO moves on, in the same blocks as GetSamples, so it ends up
+  // where it would have been.
+  int n_blocks = (n_samples + MAX_N - 1) / MAX_N;
+  for (int block = 0; block < n_blocks; block++) {
+    int n = (int)((int64_t)n_samples * (block + 1) / n_blocks) -
+      (int)((int64_t)n_samples * block / n_blocks);
+    lfo_.getsample(n);
+    lfo_.getdelay(n);
+  }
+}
+
 void SynthUnit::GetSamples(int n_samples, int16_t *buffer) {
-  TransferInput();
-  size_t input_offset;
-  for (input_offset = 0; input_offset < input_buffer_index_; ) {
-    int bytes_available = input_buffer_index_ - input_offset;
-    int bytes_consumed = ProcessMidiMessage(input_buffer_ + input_offset,
-        bytes_available);
-    if (bytes_consumed == 0) {
+  SwapBank();
+  voices_rendered_ = 0;
+  int midi_bytes = 0;
+  Quality quality = quality_;
+  filter_.set_always_nonlinear(quality == kQualityHigh);
+  PROFILE_BEGIN(midi_start);
+  const uint8_t *buf1, *buf2;
+  int size1, size2;
+  MidiQueue *note_lane = midi_input_->lane(kNoteLane);
+  uint8_t coalesced[3];
+  while (note_lane->Peek(&buf1, &size1, &buf2, &size2) > 0) {
+    // Messages coalesced while the lane was full go before the records
+    // written after them.
+    while (midi_input_->NextCoalesced(note_lane->read_position(),
+        coalesced)) {
+      midi_bytes += sizeof(coalesced);
+      ProcessMidiMessage(coalesced, sizeof(coalesced));
+    }
+    midi_bytes += size1 + size2;
+    ProcessInput(buf1, size1, buf2, size2);
+    note_lane->Consume();
+  }
+  while (midi_input_->NextCoalesced(coalesced)) {
+    midi_bytes += sizeof(coalesced);
+    ProcessMidiMessage(coalesced, sizeof(coalesced));
+  }
+
+  // A record is taken whenever there's budget left, and may overdraw it.
+  // A bank dump is paid for as its patches are compiled.
+  MidiQueue *bulk_lane = midi_input_->lane(kBulkLane);
+  bulk_credit_ += bulk_byte_budget_;
+  while (true) {
+    CompileReceivedBank();
+    if (received_patches_ >= 0 || bulk_credit_ <= 0) {
       break;
     }
-    input_offset += bytes_consumed;
+    int bulk_size = bulk_lane->Peek(&buf1, &size1, &buf2, &size2);
+    if (bulk_size == 0) {
+      // Don't let budget build up while the lane is idle.
+      bulk_credit_ = 0;
+      break;
+    }
+    stage_banks_ = true;
+    ProcessInput(buf1, size1, buf2, size2);
+    stage_banks_ = false;
+    bulk_lane->Consume();
+    midi_bytes += bulk_size;
+    if (received_patches_ < 0) {
+      bulk_credit_ -= bulk_size;
+    }
   }
-  ConsumeInput(input_offset);
+  PROFILE_END(&profiler_, kProfileMidi, midi_start);
 
-  int i;
-  for (i = 0; i < n_samples && i < extra_buf_size_; i++) {
-    buffer[i] = extra_buf_[i];
+  // Sequenced events fall inside the buffer, so it's rendered in spans
+  // running from one to the next.
+  sequencer_.ProcessCommands();
+  int i = 0;
+  while (i < n_samples) {
+    const uint8_t *message;
+    int message_size;
+    while (sequencer_.NextMessage(&message, &message_size)) {
+      PROFILE_SCOPE(&profiler_, kProfileMidi);
+      ProcessMidiMessage(message, message_size);
+      midi_bytes += message_size;
+    }
+    int n = sequencer_.SamplesToNext(n_samples - i);
+    Render(n, buffer + i, quality);
+    sequencer_.Advance(n);
+    i += n;
   }
-  if (extra_buf_size_ > n_samples) {
-    for (int j = 0; j < extra_buf_size_ - n_samples; j++) {
-      extra_buf_[j] = extra_buf_[j + n_samples];
+  midi_bytes_ = midi_bytes;
+#ifdef SYNTH_PROFILE
+  profiler_.EndBuffer();
+#endif
+}
+
+void SynthUnit::Render(int n_samples, int16_t *buffer, Quality quality) {
+  // Voices sharing an algorithm run the same specialized FmCore code, so
+  // they're rendered next to each other.
+  int order[max_active_notes];
+  int n_live = 0;
+  for (int note = 0; note < max_active_notes; ++note) {
+    if (active_note_[note].live) {
+      int algorithm = Algorithm(note);
+      int j = n_live++;
+      for (; j > 0 && Algorithm(order[j - 1]) > algorithm; --j) {
+        order[j] = order[j - 1];
+      }
+      order[j] = note;
     }
-    extra_buf_size_ -= n_samples;
+  }
+  if (n_live == 0 && filter_at_rest_) {
+    SkipSamples(n_samples);
+    memset(buffer, 0, n_samples * sizeof(buffer[0]));
     return;
   }
+  voices_rendered_ = max(voices_rendered_, n_live);
 
-  for (; i < n_samples; i += N) {
-    AlignedBuf<int32_t, N> audiobuf;
-    AlignedBuf<int32_t, N> audiobuf2;
-    for (int j = 0; j < N; ++j) {
+  int n_blocks = (n_samples + MAX_N - 1) / MAX_N;
+  for (int block = 0; block < n_blocks; block++) {
+    int i = (int)((int64_t)n_samples * block / n_blocks);
+    int n = (int)((int64_t)n_samples * (block + 1) / n_blocks) - i;
+    AlignedBuf<int32_t, MAX_N> audiobuf;
+    AlignedBuf<int32_t, MAX_N> audiobuf2;
+    for (int j = 0; j < n; ++j) {
       audiobuf.get()[j] = 0;
     }
-    int32_t lfovalue = lfo_.getsample();
-    int32_t lfodelay = lfo_.getdelay();
-    for (int note = 0; note < max_active_notes; ++note) {
-      if (active_note_[note].live) {
-        active_note_[note].dx7_note->compute(audiobuf.get(), lfovalue, lfodelay,
-          &controllers_);
-      }
+    int32_t lfovalue = lfo_.getsample(n);
+    int32_t lfodelay = lfo_.getdelay(n);
+    int n_pruned = 0;
+    PROFILE_BEGIN(voices_start);
+    for (int j = 0; j < n_live; ++j) {
+      n_pruned += active_note_[order[j]].dx7_note->compute(audiobuf.get(),
+        n, lfovalue, lfodelay, &controllers_);
+    }
+    PROFILE_END(&profiler_, kProfileVoices, voices_start);
+    pruned_kernels_ = pruned_kernels_ + n_pruned;
+    // At economy quality, a filter with the cutoff all the way up and no
+    // resonance or overdrive is left out.
+    const int32_t *filtered = audiobuf.get();
+    if (quality != kQualityEconomy || filter_control_[0] < kFilterOpen ||
+        filter_control_[1] != 0 || filter_control_[2] != 0) {
+      PROFILE_SCOPE(&profiler_, kProfileFilter);
+      const int32_t *bufs[] = { audiobuf.get() };
+      int32_t *bufs2[] = { audiobuf2.get() };
+      filter_.process(bufs, filter_control_, filter_control_, bufs2, n);
+      filtered = audiobuf2.get();
     }
-    const int32_t *bufs[] = { audiobuf.get() };
-    int32_t *bufs2[] = { audiobuf2.get() };
-    filter_.process(bufs, filter_control_, filter_control_, bufs2);
-    int jmax = n_samples - i;
-    for (int j = 0; j < N; ++j) {
-      int32_t val = audiobuf2.get()[j] >> 4;
+    PROFILE_SCOPE(&profiler_, kProfileOutput);
+    for (int j = 0; j < n; ++j) {
+      int32_t val = filtered[j] >> 4;
       int clip_val = val < -(1 << 24) ? 0x8000 : val >= (1 << 24) ? 0x7fff :
         val >> 9;
       // TODO: maybe some dithering?
-      if (j < jmax) {
-        buffer[i + j] = clip_val;
-      } else {
-        extra_buf_[j - jmax] = clip_val;
+      buffer[i + j] = clip_val;
+    }
+  }
+
+  // Retire released notes that have died away.
+  int n_sounding = n_live;
+  for (int j = 0; j < n_live; ++j) {
+    ActiveNote &note = active_note_[order[j]];
+    if (!note.keydown && !note.sustained && Silent(order[j])) {
+      note.live = false;
+      --n_sounding;
+    }
+  }
+  if (n_sounding == 0) {
+    filter_at_rest_ = filter_.settle();
+    if (filter_at_rest_) {
+      for (int note = 0; note < max_active_notes; ++note) {
+        active_note_[note].dx7_note->reset_feedback();
       }
     }
   }
-  extra_buf_size_ = i - n_samples;
 }
@@ -14,36 +14,180 @@
  * limitations under the License.
  */
 
+#ifndef SYNTH_SYNTH_UNIT_H_
+#define SYNTH_SYNTH_UNIT_H_
+
 #include "controllers.h"
 #include "dx7note.h"
 #include "lfo.h"
-#include "ringbuffer.h"
+#include "load_governor.h"
+#include "midi_input.h"
+#include "profiler.h"
 #include "resofilter.h"
+#include "sequencer.h"
+
+// A bank of 32 patches, in both packed and compiled form. Banks loaded
+// through LoadBank are built off the audio thread and handed over to it by
+// pointer.
+struct PatchBank {
+  void Compile();
+
+  uint8_t data[4096];
+  Dx7Patch patches[32];
+};
 
 struct ActiveNote {
   int midi_note;
   bool keydown;
   bool sustained;
   bool live;
+  // Stopped by the load governor, and fading out before the voice is freed.
+  bool shed;
   Dx7Note *dx7_note;
 };
 
 class SynthUnit {
  public:
-  static void Init(double sample_rate);
+  // Sets up the tables shared by all engines and picks the kernels for this
+  // cpu. With autotune_kernels, the candidate kernels are timed first (see
+  // Kernels). Call before creating the first SynthUnit; only the first call
+  // in a process has any effect.
+  static void Init(bool autotune_kernels = false);
 
-  explicit SynthUnit(RingBuffer *ring_buffer);
+  // Each SynthUnit is a complete, independent engine, and several can run
+  // at once on different threads.
+  SynthUnit(MidiInput *midi_input, double sample_rate);
+  ~SynthUnit();
 
+  // Renders n_samples of audio. Buffers of up to MAX_N samples are rendered
+  // as a single block; larger ones are split into blocks of equal size, so
+  // nothing is ever carried over between calls. While the sequencer is
+  // playing, the buffer is first split at its events.
   void GetSamples(int n_samples, int16_t *buffer);
+
+  // Audio thread: whether GetSamples would output nothing but silence and
+  // leave the engine as it is. That's the case once every voice has died
+  // away, the filter has settled, no MIDI or bank is waiting, and the
+  // sequencer has nothing to do. The caller
+  // may then output silence itself, calling SkipSamples instead of GetSamples.
+  bool Idle();
+
+  // Audio thread, when Idle: accounts for n_samples of silence output
+  // without GetSamples, keeping the LFO in step.
+  void SkipSamples(int n_samples);
+
+  // Applies complete MIDI messages right away, bypassing the MidiInput.
+  // Only for a caller that also calls GetSamples itself, such as an offline
+  // renderer. Returns the number of bytes used.
+  int ApplyMidi(const uint8_t *buf, int size) {
+    PROFILE_SCOPE(&profiler_, kProfileMidi);
+    return ProcessContiguous(buf, size);
+  }
+
+  // Offline rendering: applies complete MIDI messages for their effect on
+  // the bank, program, controllers, LFO and note allocation, without
+  // starting or stopping any voices. Playing a song's messages this way,
+  // with SkipSamples standing in for GetSamples, brings a new engine to the
+  // same state as one that rendered them, at any point where that one is
+  // Idle. Returns the number of bytes used.
+  int ReplayMidi(const uint8_t *buf, int size);
+
+  // Loads a DX7 32-voice bulk dump sysex. The bank is validated and compiled
+  // on the calling thread, which must not be the audio thread, and is picked
+  // up by the audio thread at the start of a following block. The bank it
+  // replaces is freed here once the audio thread has let go of it. Calls
+  // must not overlap. Returns false if the sysex is malformed or its
+  // checksum is wrong.
+  bool LoadBank(const uint8_t *sysex, int size);
+
+  // Sets how many bytes from the bulk lane may be processed per block on
+  // average. A record is taken whenever some budget is left, and a larger
+  // one is paid back over the following blocks. A bank dump costs 128 bytes
+  // for each patch, compiled as the budget allows, so it's spread out over
+  // several blocks and takes effect once all 32 are done.
+  void SetBulkByteBudget(int bytes);
+
+  static const int kDefaultBulkByteBudget = 1024;
+
+  // Running count of operator kernel calls skipped because all the carriers
+  // they feed were silent. Written by the audio thread only; wraps around.
+  uint32_t pruned_kernels() const { return pruned_kernels_; }
+
+  // May be called from any thread. Notes keep the tier they were started
+  // with; the filter switches at the next buffer.
+  void SetQuality(Quality quality) { quality_ = quality; }
+
+  // Audio thread, after each buffer: how long GetSamples took and how long
+  // the buffer lasts, in seconds. If this is too close to the deadline the
+  // quietest voices are faded out over the next block and note-ons can't
+  // start more voices than are left (see LoadGovernor). Returns whether the
+  // voice limit changed.
+  bool ReportLoad(double elapsed, double period);
+
+  int voice_limit() const { return governor_.voice_limit(); }
+
+  // Plays sequences loaded into it as part of GetSamples. Its Load and
+  // transport commands may be used from other threads.
+  Sequencer *sequencer() { return &sequencer_; }
+
+  // Running count of voices stopped by the load governor; wraps around.
+  uint32_t shed_voices() const { return shed_voices_; }
+
+  // Audio thread, after GetSamples: the most voices it rendered at once,
+  // and the number of MIDI bytes it applied, from the input lanes and the
+  // sequencer.
+  int voices_rendered() const { return voices_rendered_; }
+  int midi_bytes() const { return midi_bytes_; }
+
+#ifdef SYNTH_PROFILE
+  // Times each stage of GetSamples (see Profiler).
+  Profiler *profiler() { return &profiler_; }
+#endif
  private:
-  void TransferInput();
+  // filter_control_[0] with the cutoff all the way up.
+  static const int32_t kFilterOpen = 258847126;
+
+  // Audio thread: switch to a bank published by LoadBank, if any.
+  void SwapBank();
+
+  // Loader thread: free the bank retired by SwapBank, if any.
+  void CollectBank();
+
+  // Renders a span of audio with no MIDI input inside it.
+  void Render(int n_samples, int16_t *buffer, Quality quality);
+
+  // Parses and applies the MIDI messages in a record, given as the two
+  // regions returned by MidiQueue::Peek. Returns the number of bytes
+  // consumed; an incomplete message at the end is not applied.
+  int ProcessInput(const uint8_t *buf1, int size1,
+      const uint8_t *buf2, int size2);
+
+  // Processes as many complete messages as possible from a contiguous
+  // buffer, returning the number of bytes consumed.
+  int ProcessContiguous(const uint8_t *buf, int buf_size);
 
-  void ConsumeInput(int n_input_bytes);
+  // Replaces the current bank with a bulk dump received in the MIDI stream,
+  // which may be split in two at the queue's wrap point. While stage_banks_
+  // is set, the dump is only copied, for CompileReceivedBank.
+  void ReceiveBank(const uint8_t *buf1, int size1,
+      const uint8_t *buf2, int size2);
+
+  // Compiles the patches of a received bank as far as the bulk budget
+  // allows, and switches to it once it's complete.
+  void CompileReceivedBank();
 
   // Choose a note for a new key-down, returns note number, or -1 if
   // none available.
   int AllocateNote();
 
+  // Start and release the voice for an active note.
+  void NoteOn(int note, int midinote, int velocity);
+  void NoteOff(int note);
+  int Algorithm(int note) const;
+  int32_t Level(int note) const;
+  bool Silent(int note) const;
+  int CountLive() const;
+
   // zero-based
   void ProgramChange(int p);
 
@@ -51,17 +195,33 @@ class SynthUnit {
 
   int ProcessMidiMessage(const uint8_t *buf, int buf_size);
 
-  RingBuffer *ring_buffer_;
+  MidiInput *midi_input_;
+  int bulk_byte_budget_;
+  int bulk_credit_;
+  const RateTables *tables_;
+
   static const int max_active_notes = 16;
   ActiveNote active_note_[max_active_notes];
   int current_note_;
-  uint8_t input_buffer_[8192];
-  size_t input_buffer_index_;
+  // A message straddling the queue's wrap point is reassembled here.
+  // Bank dumps are handled without stitching.
+  uint8_t stitch_buf_[16];
 
-  uint8_t patch_data_[4096];
+  // Owned by the audio thread. All 32 programs are compiled when the bank
+  // is loaded, so a program change only needs to repoint patch_.
+  PatchBank *bank_;
   int current_patch_;
+  const Dx7Patch *patch_;
+
+  // A bank dump from the bulk lane, and how many of its patches have been
+  // compiled, or -1 if none is in progress.
+  PatchBank *received_bank_;
+  int received_patches_;
+  bool stage_banks_;
 
-  char unpacked_patch_[156];
+  // Handoff slots between LoadBank and the audio thread.
+  PatchBank *volatile pending_bank_;
+  PatchBank *volatile retired_bank_;
 
   // The original DX7 had one single LFO. Later units had an LFO per note.
   Lfo lfo_;
@@ -70,10 +230,28 @@ class SynthUnit {
   Controllers controllers_;
 
   ResoFilter filter_;
+  // Set once the filter has settled with no voices playing; cleared by the
+  // next note-on. The voices' feedback state is cleared along with the
+  // filter's, so that nothing left from before is heard again.
+  bool filter_at_rest_;
+  // Set within ReplayMidi.
+  bool replaying_;
   int32_t filter_control_[3];
   bool sustain_;
 
-  // Extra buffering for when GetSamples wants a buffer not a multiple of N
-  int16_t extra_buf_[N];
-  int extra_buf_size_;
+  volatile uint32_t pruned_kernels_;
+  volatile Quality quality_;
+
+  LoadGovernor governor_;
+  volatile uint32_t shed_voices_;
+  int voices_rendered_;
+  int midi_bytes_;
+
+#ifdef SYNTH_PROFILE
+  Profiler profiler_;
+#endif
+
+  Sequencer sequencer_;
 };
+
+#endif  // SYNTH_SYNTH_UNIT_H_
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Test for BufferController: glitches step the setting up, stable periods
+// step it back down, and the stable period backs off when a step down
+// fails and recovers when one holds.
+
+#include <math.h>
+#include <iostream>
+
+#include "synth.h"
+#include "buffer_controller.h"
+
+#define kPeriod (64 / 48000.0)
+
+using namespace ::std;
+
+static int n_errors;
+
+static void expect(const char *what, BufferController *c, int size,
+    int count) {
+  if (c->buffer_size() != size || c->buffer_count() != count) {
+    cout << what << ": " << c->buffer_size() << "x" << c->buffer_count() <<
+      ", expected " << size << "x" << count << endl;
+    n_errors++;
+  }
+}
+
+// Feeds clean buffers for the given number of seconds. Returns whether the
+// setting changed.
+static bool run_clean(BufferController *c, double seconds) {
+  bool changed = false;
+  for (double t = 0; t < seconds; t += kPeriod) {
+    changed |= c->Update(kPeriod, false, false);
+  }
+  return changed;
+}
+
+// Feeds clean buffers until the setting changes, and checks that it took
+// the expected number of seconds.
+static void expect_step_down(const char *what, BufferController *c,
+    double seconds) {
+  double t = 0;
+  while (!c->Update(kPeriod, false, false)) {
+    t += kPeriod;
+    if (t > 1000) {
+      break;
+    }
+  }
+  if (fabs(t - seconds) > 2 * kPeriod) {
+    cout << what << ": stepped down after " << t << "s, expected " <<
+      seconds << "s" << endl;
+    n_errors++;
+  }
+}
+
+void test_buffer_controller() {
+  n_errors = 0;
+  BufferController c(64, 256, 2);
+  expect("start", &c, 64, 1);
+
+  // Step up: a late render grows the buffers, a late callback adds one, and
+  // at the most buffers it grows them instead. Glitches while a change
+  // settles are ignored.
+  if (c.Update(kPeriod, true, false)) {
+    cout << "glitch while settling changed the setting" << endl;
+    n_errors++;
+  }
+  run_clean(&c, 0.5);
+  c.Update(kPeriod, true, false);
+  expect("late", &c, 128, 1);
+  c.Update(kPeriod, false, true);
+  expect("underrun while settling", &c, 128, 1);
+  run_clean(&c, 0.5);
+  c.Update(kPeriod, false, true);
+  expect("underrun", &c, 128, 2);
+  run_clean(&c, 0.5);
+  c.Update(kPeriod, false, true);
+  expect("underrun at most buffers", &c, 256, 2);
+  run_clean(&c, 0.5);
+  if (c.Update(kPeriod, false, true)) {
+    cout << "glitch at the highest setting changed it" << endl;
+    n_errors++;
+  }
+
+  // Step down: buffers are removed first, after 10s without a glitch.
+  expect_step_down("first step down", &c, 10);
+  expect("step down", &c, 256, 1);
+
+  // Backoff: a glitch soon after a step down doubles the stable period.
+  run_clean(&c, 1);
+  c.Update(kPeriod, false, true);
+  expect("underrun after step down", &c, 256, 2);
+  expect_step_down("backoff", &c, 20);
+  run_clean(&c, 1);
+  c.Update(kPeriod, false, true);
+  expect_step_down("second backoff", &c, 40);
+
+  // A step down that holds halves the stable period again, and a later
+  // glitch isn't blamed on it.
+  run_clean(&c, 3);
+  c.Update(kPeriod, false, true);
+  expect("underrun after step down held", &c, 256, 2);
+  expect_step_down("recovery", &c, 20);
+  expect_step_down("step down buffer size", &c, 10);
+  expect("step down buffer size", &c, 128, 1);
+  expect_step_down("step down to lowest", &c, 10);
+  expect("lowest", &c, 64, 1);
+  if (run_clean(&c, 30)) {
+    cout << "stepped down below the lowest setting" << endl;
+    n_errors++;
+  }
+
+  // A long stable run at the lowest setting earns back a backoff too.
+  double stable = 10;
+  for (int i = 0; i < 4; ++i) {
+    c.Update(kPeriod, true, false);
+    expect_step_down("backoff at lowest", &c, stable);
+    run_clean(&c, 1);
+    stable *= 2;
+  }
+  // The step down to the lowest holds, which takes the stable period from
+  // 80s to 40s, and 40s later at the lowest it goes to 20s.
+  run_clean(&c, 44);
+  c.Update(kPeriod, true, false);
+  expect("late after decay", &c, 128, 1);
+  expect_step_down("decay", &c, 20);
+
+  cout << "buffer controller: " << n_errors << " errors" << endl;
+}
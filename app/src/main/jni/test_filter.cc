@@ -23,6 +23,7 @@
 #include <sys/time.h>
 #include <math.h>
 
+#include "synth.h"
 #include "aligned_buf.h"
 #include "fir.h"
 #include "module.h"
@@ -31,7 +32,8 @@
 #include "sin.h"
 #include "fm_op_kernel.h"
 #include "resofilter.h"
-#include "freqlut.h"
+#include "rate_tables.h"
+#include "kernels.h"
 
 // clock_gettime would be a little better, but whatever
 double now() {
@@ -294,6 +296,7 @@ void runbiquad() {
 void runfmbench() {
   condition_governor();
   Sin::init();
+  Kernels::init(false);
   const int nbuf = 64;
   int32_t *out = (int32_t *)malloc_aligned(16, nbuf * sizeof(out[0]));
 
@@ -301,12 +304,57 @@ void runfmbench() {
   double start = now();
   const int niter = 1000000;
   for (int i = 0; i < niter; i++) {
-    FmOpKernel::compute(out, out, 0, freq, 1 << 24, 1 << 24, false);
+    FmOpKernel::compute(out, out, nbuf, 0, freq, 1 << 24, 1 << 24, false);
   }
 
   double elapsed = now() - start;
   double ns_per_sample = 1e9 * elapsed / nbuf / niter;
   printf("fm op kernel: %f ns/sample\n", ns_per_sample);
+
+#ifdef HAVE_X86_INTRINSICS
+  // Kernels for the individual instruction sets; test_fm_kernel checks that
+  // they match the scalar code.
+  if (hasSse41()) {
+    start = now();
+    for (int i = 0; i < niter; i++) {
+      FmOpKernel::compute_sse41(out, out, nbuf, 0, freq, 1 << 24, 1 << 24,
+        false);
+    }
+    elapsed = now() - start;
+    printf("fm op kernel sse4.1: %f ns/sample\n",
+      1e9 * elapsed / nbuf / niter);
+  }
+  if (hasAvx2()) {
+    start = now();
+    for (int i = 0; i < niter; i++) {
+      FmOpKernel::compute_avx2(out, out, nbuf, 0, freq, 1 << 24, 1 << 24,
+        false);
+    }
+    elapsed = now() - start;
+    printf("fm op kernel avx2: %f ns/sample\n",
+      1e9 * elapsed / nbuf / niter);
+  }
+#endif
+
+  // Eight operators side by side, as from eight voices.
+  const int n_lanes = 8;
+  int32_t *lanes = (int32_t *)malloc_aligned(32,
+    n_lanes * nbuf * sizeof(lanes[0]));
+  int32_t phases[n_lanes], freqs[n_lanes], gains[n_lanes];
+  for (int k = 0; k < n_lanes; k++) {
+    phases[k] = k << 20;
+    freqs[k] = freq * (k + 1);
+    gains[k] = 1 << 24;
+  }
+  start = now();
+  for (int i = 0; i < niter / n_lanes; i++) {
+    FmOpKernel::compute_lanes(nbuf, n_lanes, lanes, lanes, phases, freqs, gains,
+      gains, false);
+  }
+  elapsed = now() - start;
+  printf("fm op kernel, %d lanes: %f ns/sample\n", n_lanes,
+    1e9 * elapsed / nbuf / niter);
+  free(lanes);
   free(out);
 }
 
@@ -331,7 +379,7 @@ void runsawbench() {
     double start = now();
     const int niter = 1000000;
     for (int i = 0; i < niter; i++) {
-      s.process((const int32_t **)0, control, control_last, bufs);
+      s.process((const int32_t **)0, control, control_last, bufs, nbuf);
     }
 
     double elapsed = now() - start;
@@ -346,12 +394,10 @@ void runladderbench() {
   test_matrix();
   condition_governor();
   double sample_rate = 44100.0;
-  Freqlut::init(sample_rate);
-  ResoFilter::init(sample_rate);
   const int nbuf = 64;
   int32_t *in = (int32_t *)malloc_aligned(16, nbuf * sizeof(in[0]));
   int32_t *out = (int32_t *)malloc_aligned(16, nbuf * sizeof(out[0]));
-  ResoFilter r;
+  ResoFilter r(RateTables::get(sample_rate));
   int32_t control_last[3];
   int32_t control[3];
   int32_t *inbufs[1];
@@ -369,7 +415,8 @@ void runladderbench() {
     double start = now();
     const int niter = 1000000;
     for (int i = 0; i < niter; i++) {
-      r.process((const int32_t **)inbufs, control, control_last, outbufs);
+      r.process((const int32_t **)inbufs, control, control_last, outbufs,
+        nbuf);
     }
 
     double elapsed = now() - start;
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Checks that the SIMD FM operator kernels are bit-exact with the scalar
+// reference, over random block sizes, phases, frequencies, gains and
+// modulation inputs.
+
+#include <stdlib.h>
+#include <iostream>
+
+#include "synth.h"
+#include "sin.h"
+#include "fm_op_kernel.h"
+
+#define kNumIter 20000
+#define kMaxLanes 16
+
+using namespace ::std;
+
+// This is the scalar loop from FmOpKernel::compute.
+static void reference_kernel(int32_t *output, const int32_t *input,
+                             int stride, int n, int32_t phase0, int32_t freq,
+                             int32_t gain1, int32_t gain2, bool add) {
+  int32_t dgain = FmOpKernel::gain_step(gain1, gain2, n);
+  int32_t gain = gain1;
+  int32_t phase = phase0;
+  for (int i = 0; i < n; i++) {
+    gain += dgain;
+    int32_t y = Sin::lookup(input ? phase + input[i * stride] : phase);
+    y = ((int64_t)y * (int64_t)gain) >> 24;
+    output[i * stride] = add ? output[i * stride] + y : y;
+    phase += freq;
+  }
+}
+
+static int32_t random_int32() {
+  return (int32_t)(((uint32_t)rand() << 16) ^ (uint32_t)rand());
+}
+
+// Gains as produced by Exp2::lookup of an operator level, up to about 2^26.
+static int32_t random_gain() {
+  return random_int32() & ((1 << (20 + rand() % 7)) - 1);
+}
+
+static void random_buf(int32_t *buf, int n) {
+  int bits = 16 + rand() % 12;
+  for (int i = 0; i < n; i++) {
+    buf[i] = random_int32() >> (32 - bits);
+  }
+}
+
+static int compare(const char *name, const int32_t *a, const int32_t *b,
+                   int n) {
+  for (int i = 0; i < n; i++) {
+    if (a[i] != b[i]) {
+      cout << name << ": mismatch at " << i << ": " << a[i] << " != " <<
+        b[i] << endl;
+      return 1;
+    }
+  }
+  return 0;
+}
+
+#ifdef HAVE_X86_INTRINSICS
+typedef void (*KernelFn)(int32_t *output, const int32_t *input, int n,
+                         int32_t phase0, int32_t freq,
+                         int32_t gain1, int32_t gain2, bool add);
+
+typedef void (*LanesFn)(int n, int n_lanes, int32_t *output,
+                        const int32_t *input, const int32_t *phase0,
+                        const int32_t *freq, const int32_t *gain1,
+                        const int32_t *gain2, bool add);
+
+// Mostly the full range, with sizes that aren't a multiple of the vector
+// width well represented.
+static int random_block_size() {
+  return 1 + rand() % (rand() & 1 ? MAX_N : 20);
+}
+
+static int test_kernel(const char *name, KernelFn fn) {
+  int32_t input[MAX_N];
+  int32_t expected[MAX_N];
+  int32_t actual[MAX_N];
+  int n_errors = 0;
+  for (int iter = 0; iter < kNumIter; iter++) {
+    int n = random_block_size();
+    bool pure = iter & 1;
+    bool add = iter & 2;
+    int32_t phase0 = random_int32();
+    int32_t freq = random_int32() >> (rand() % 12);
+    int32_t gain1 = random_gain();
+    int32_t gain2 = random_gain();
+    random_buf(input, n);
+    random_buf(expected, n);
+    for (int i = 0; i < n; i++) {
+      actual[i] = expected[i];
+    }
+    reference_kernel(expected, pure ? NULL : input, 1, n, phase0, freq,
+      gain1, gain2, add);
+    fn(actual, pure ? NULL : input, n, phase0, freq, gain1, gain2, add);
+    n_errors += compare(name, expected, actual, n);
+  }
+  return n_errors;
+}
+
+static int test_lanes(const char *name, LanesFn fn, int n_lanes) {
+  int32_t input[MAX_N * kMaxLanes];
+  int32_t expected[MAX_N * kMaxLanes];
+  int32_t actual[MAX_N * kMaxLanes];
+  int32_t phase0[kMaxLanes], freq[kMaxLanes];
+  int32_t gain1[kMaxLanes], gain2[kMaxLanes];
+  int n_errors = 0;
+  for (int iter = 0; iter < kNumIter / n_lanes; iter++) {
+    int n = random_block_size();
+    bool pure = iter & 1;
+    bool add = iter & 2;
+    for (int k = 0; k < n_lanes; k++) {
+      phase0[k] = random_int32();
+      freq[k] = random_int32() >> (rand() % 12);
+      gain1[k] = random_gain();
+      gain2[k] = random_gain();
+    }
+    random_buf(input, n * n_lanes);
+    random_buf(expected, n * n_lanes);
+    for (int i = 0; i < n * n_lanes; i++) {
+      actual[i] = expected[i];
+    }
+    for (int k = 0; k < n_lanes; k++) {
+      reference_kernel(expected + k, pure ? NULL : input + k, n_lanes, n,
+        phase0[k], freq[k], gain1[k], gain2[k], add);
+    }
+    fn(n, n_lanes, actual, pure ? NULL : input, phase0, freq, gain1, gain2,
+      add);
+    n_errors += compare(name, expected, actual, n * n_lanes);
+  }
+  return n_errors;
+}
+#endif
+
+void test_fm_kernel() {
+  Sin::init();
+  int n_errors = 0;
+  int n_tested = 0;
+#ifdef HAVE_X86_INTRINSICS
+  if (hasSse41()) {
+    n_errors += test_kernel("sse41", FmOpKernel::compute_sse41);
+    n_errors += test_lanes("sse41 x4", FmOpKernel::compute_lanes_sse41, 4);
+    n_errors += test_lanes("sse41 x16", FmOpKernel::compute_lanes_sse41, 16);
+    n_tested += 3;
+  }
+  if (hasAvx2()) {
+    n_errors += test_kernel("avx2", FmOpKernel::compute_avx2);
+    n_errors += test_lanes("avx2 x8", FmOpKernel::compute_lanes_avx2, 8);
+    n_errors += test_lanes("avx2 x16", FmOpKernel::compute_lanes_avx2, 16);
+    n_tested += 3;
+  }
+#endif
+  cout << "fm kernel: " << n_tested << " simd kernels tested, " << n_errors <<
+    " errors" << endl;
+}
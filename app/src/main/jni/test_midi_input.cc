@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Test for bank dumps sent through a MidiInput: the dump must load
+// wherever the bulk lane's wrap point splits it, including inside its
+// header.
+
+#include <string.h>
+#include <iostream>
+
+#include "synth.h"
+#include "patch.h"
+#include "synth_unit.h"
+
+#define kSampleRate 44100
+#define kNumSamples 1024
+#define kQueueSize 65536
+
+using namespace ::std;
+
+// The engine's default patch, in synth_unit.cc.
+extern char epiano[];
+
+// A bank of the default patch with every operator a carrier (algorithm
+// 32), so that it's easy to tell whether it was loaded.
+static void build_bank(uint8_t *sysex) {
+  static const uint8_t header[] = { 0xf0, 0x43, 0x00, 0x09, 0x20, 0x00 };
+  memcpy(sysex, header, 6);
+  uint8_t *data = sysex + 6;
+  for (int i = 0; i < 32; i++) {
+    memcpy(data + 128 * i, epiano, 128);
+    data[128 * i + 110] = 31;
+  }
+  int sum = 0;
+  for (int i = 0; i < 4096; i++) {
+    sum += data[i];
+  }
+  sysex[6 + 4096] = -sum & 0x7f;
+  sysex[6 + 4097] = 0xf7;
+}
+
+// Writes filler records to the bulk lane, which the unit skips as unknown
+// messages, until the next record starts at position.
+static void fill_to(MidiInput *input, SynthUnit *unit, uint32_t position) {
+  static const uint8_t filler[] = { 0xf8, 0xf8, 0xf8, 0xf8, 0xf8 };
+  MidiQueue *lane = input->lane(kBulkLane);
+  int16_t buf[64];
+  for (int i = 1; lane->write_position() != position; i++) {
+    // Takes 8 bytes of queue, or 12 to get onto a multiple of 8.
+    uint32_t left = position - lane->write_position();
+    input->Write(filler, left % 8 == 4 ? 5 : 4);
+    if (i % 1024 == 0) {
+      unit->GetSamples(64, buf);
+    }
+  }
+  unit->GetSamples(64, buf);
+}
+
+// Gets the bulk lane to position, loads the bank (if any) through the lane
+// or with LoadBank, then plays a note and returns the first samples of it.
+// The filler and the bank take the same buffers either way, so the outputs
+// only differ if the bank didn't load.
+static void run(uint32_t position, const uint8_t *sysex, bool in_stream,
+    int16_t *out) {
+  MidiInput input;
+  SynthUnit unit(&input, kSampleRate);
+  unit.SetBulkByteBudget(1 << 20);
+  fill_to(&input, &unit, position);
+  if (sysex != NULL) {
+    if (in_stream) {
+      input.Write(sysex, kBankSysexSize);
+    } else {
+      unit.LoadBank(sysex, kBankSysexSize);
+    }
+  }
+  unit.GetSamples(64, out);
+  static const uint8_t note_on[] = { 0x90, 60, 100 };
+  input.Write(note_on, 3);
+  for (int i = 0; i < kNumSamples; i += 64) {
+    unit.GetSamples(64, out + i);
+  }
+}
+
+void test_midi_input() {
+  SynthUnit::Init();
+  uint8_t sysex[kBankSysexSize];
+  build_bank(sysex);
+  int n_errors = 0;
+
+  // The bytes of the dump before the wrap point; 4 leaves only part of the
+  // header there.
+  int tails[] = { 0, 4, 8, 12, 2052, 4100 };
+  for (int t = 0; t < 6; t++) {
+    // The record's 4 byte header goes before the wrap point too.
+    uint32_t position = (kQueueSize - 4 - tails[t]) % kQueueSize;
+    int16_t before[kNumSamples];
+    int16_t expected[kNumSamples];
+    int16_t got[kNumSamples];
+    run(position, NULL, false, before);
+    run(position, sysex, false, expected);
+    run(position, sysex, true, got);
+    if (memcmp(before, expected, sizeof(expected)) == 0) {
+      cout << "midi input: the test bank sounds like the default one" << endl;
+      n_errors++;
+    } else if (memcmp(got, expected, sizeof(got)) != 0) {
+      cout << "midi input: bank split " << tails[t] << " bytes in not loaded" <<
+        endl;
+      n_errors++;
+    }
+  }
+
+  cout << "midi input: " << n_errors << " errors" << endl;
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Stress test for MidiQueue: several producers write records concurrently
+// while one consumer checks that every record arrives intact and in order
+// per producer.
+
+#include <time.h>
+#include <pthread.h>
+#include <iostream>
+
+#include "synth.h"
+#include "midi_queue.h"
+
+#define kNumProducers 4
+#define kNumRecords 200000
+
+using namespace ::std;
+
+struct ProducerArgs {
+  MidiQueue *queue;
+  int id;
+};
+
+static int record_size(int seq) {
+  // Mostly short messages, with an occasional bank-sized one.
+  return seq % 5000 == 4999 ? 4104 : 3 + (seq * 7) % 29;
+}
+
+static uint8_t record_byte(int id, int seq, int j) {
+  return (uint8_t)(id * 31 + seq * 17 + j);
+}
+
+void *producer_thread(void *arg) {
+  ProducerArgs *args = (ProducerArgs *)arg;
+  uint8_t buf[4104];
+  for (int seq = 0; seq < kNumRecords; ++seq) {
+    int size = record_size(seq);
+    buf[0] = args->id;
+    buf[1] = seq & 0xff;
+    buf[2] = (seq >> 8) & 0xff;
+    for (int j = 3; j < size; ++j) {
+      buf[j] = record_byte(args->id, seq, j);
+    }
+    args->queue->Write(buf, size);
+  }
+  return NULL;
+}
+
+void test_midi_queue() {
+  MidiQueue *queue = new MidiQueue;
+  pthread_t threads[kNumProducers];
+  ProducerArgs args[kNumProducers];
+  for (int i = 0; i < kNumProducers; ++i) {
+    args[i].queue = queue;
+    args[i].id = i;
+    pthread_create(&threads[i], NULL, producer_thread, (void *)&args[i]);
+  }
+
+  int next_seq[kNumProducers] = {0};
+  int n_received = 0;
+  int n_errors = 0;
+  uint8_t buf[4104];
+  while (n_received < kNumProducers * kNumRecords) {
+    const uint8_t *buf1, *buf2;
+    int size1, size2;
+    int size = queue->Peek(&buf1, &size1, &buf2, &size2);
+    if (size == 0) {
+      struct timespec sleepTime;
+      sleepTime.tv_sec = 0;
+      sleepTime.tv_nsec = 100000;
+      nanosleep(&sleepTime, NULL);
+      continue;
+    }
+    for (int j = 0; j < size; ++j) {
+      buf[j] = j < size1 ? buf1[j] : buf2[j - size1];
+    }
+    queue->Consume();
+    n_received++;
+
+    int id = buf[0];
+    if (id >= kNumProducers || size < 3) {
+      cout << "bad record header, size " << size << endl;
+      n_errors++;
+      continue;
+    }
+    int seq = buf[1] | (buf[2] << 8);
+    int expected_seq = next_seq[id] & 0xffff;
+    if (seq != expected_seq || size != record_size(next_seq[id])) {
+      cout << "producer " << id << ": expected seq " << expected_seq <<
+        " got " << seq << ", size " << size << endl;
+      n_errors++;
+    } else {
+      for (int j = 3; j < size; ++j) {
+        if (buf[j] != record_byte(id, next_seq[id], j)) {
+          cout << "producer " << id << ": corrupt byte " << j <<
+            " in record " << next_seq[id] << endl;
+          n_errors++;
+          break;
+        }
+      }
+    }
+    next_seq[id]++;
+  }
+  for (int i = 0; i < kNumProducers; ++i) {
+    pthread_join(threads[i], NULL);
+  }
+  cout << "midi queue: " << n_received << " records, " << n_errors <<
+    " errors" << endl;
+  delete queue;
+}
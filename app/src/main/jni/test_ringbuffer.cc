@@ -16,6 +16,7 @@
 
 #include <time.h>
 #include <pthread.h>
+#include <string.h>
 #include <iostream>
 
 #include "ringbuffer.h"
@@ -39,7 +40,18 @@ void *consumer_thread(void *arg) {
       bytes_available = rb->BytesAvailable();
     }
     // cout << "reading..." << endl;
-    rb->Read(kBufSize, buf);
+    if (i & 1) {
+      rb->Read(kBufSize, buf);
+    } else {
+      // exercise the zero-copy path, including wrap-around
+      const uint8_t *buf1, *buf2;
+      int size1, size2;
+      rb->Peek(&buf1, &size1, &buf2, &size2);
+      int n1 = size1 < kBufSize ? size1 : kBufSize;
+      memcpy(buf, buf1, n1);
+      memcpy(buf + n1, buf2, kBufSize - n1);
+      rb->Consume(kBufSize);
+    }
     for (int j = 0; j < kBufSize; ++j) {
       int expected = (i + j) & 0xff;
       if (buf[j] != expected) {
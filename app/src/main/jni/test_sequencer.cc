@@ -0,0 +1,225 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Test for Sequencer: events must come out at their exact sample
+// positions whatever the buffer size, including on buffer boundaries and
+// across a tempo change, with the transport driven from another thread.
+
+#include <time.h>
+#include <string.h>
+#include <pthread.h>
+#include <vector>
+#include <iostream>
+
+#include "synth.h"
+#include "sequencer.h"
+
+// At 120 bpm and 480 ticks per beat, a tick is 50 samples; after the
+// tempo change at tick 40 it's 100.
+#define kSampleRate 48000
+#define kTempoTick 40
+
+using namespace ::std;
+
+struct SeqEvent {
+  int64_t position;
+  uint8_t message[3];
+};
+
+static const SeqEvent kExpected[] = {
+  { 0, { 0x90, 60, 100 } },
+  { 50, { 0xb0, 1, 10 } },
+  { 1000, { 0x80, 60, 0 } },
+  { 1600, { 0x90, 62, 90 } },  // on a boundary of 64-sample buffers
+  { 3000, { 0x80, 62, 0 } },
+  { 3000, { 0xe0, 0, 64 } }
+};
+static const int kTicks[] = { 0, 1, 20, 32, 50, 50 };
+static const int kNumEvents = sizeof(kTicks) / sizeof(kTicks[0]);
+
+static vector<int32_t> build_sequence() {
+  vector<int32_t> words;
+  words.push_back(480);
+  words.push_back(1);
+  words.push_back(kNumEvents);
+  words.push_back(kTempoTick);
+  words.push_back(1000000);
+  for (int i = 0; i < kNumEvents; ++i) {
+    const uint8_t *m = kExpected[i].message;
+    uint8_t word[4] = { 3, m[0], m[1], m[2] };
+    int32_t w;
+    memcpy(&w, word, 4);
+    words.push_back(kTicks[i]);
+    words.push_back(w);
+  }
+  return words;
+}
+
+// Runs the sequencer as SynthUnit::GetSamples does, for n_samples in
+// buffers of buffer_size, appending the messages it sends to out with
+// their sample positions.
+static void run(Sequencer *seq, int64_t *now, int n_samples,
+    int buffer_size, vector<SeqEvent> *out) {
+  int64_t end = *now + n_samples;
+  while (*now < end) {
+    int n = end - *now < buffer_size ? (int)(end - *now) : buffer_size;
+    seq->ProcessCommands();
+    int i = 0;
+    while (i < n) {
+      const uint8_t *message;
+      int size;
+      while (seq->NextMessage(&message, &size)) {
+        SeqEvent event;
+        event.position = *now + i;
+        memset(event.message, 0, 3);
+        memcpy(event.message, message, size);
+        out->push_back(event);
+      }
+      int k = seq->SamplesToNext(n - i);
+      seq->Advance(k);
+      i += k;
+    }
+    *now += n;
+  }
+}
+
+static int check(const char *name, const vector<SeqEvent> &got,
+    const SeqEvent *expected, int n_expected, int64_t offset) {
+  int n_errors = 0;
+  if ((int)got.size() != n_expected) {
+    cout << name << ": expected " << n_expected << " events, got " <<
+      got.size() << endl;
+    return 1;
+  }
+  for (int i = 0; i < n_expected; ++i) {
+    if (got[i].position - offset != expected[i].position ||
+        memcmp(got[i].message, expected[i].message, 3) != 0) {
+      cout << name << ": event " << i << " at " << got[i].position - offset <<
+        ", expected at " << expected[i].position << endl;
+      n_errors++;
+    }
+  }
+  return n_errors;
+}
+
+struct AudioArgs {
+  Sequencer *seq;
+  vector<SeqEvent> events;
+  volatile bool done;
+};
+
+static void *audio_thread(void *arg) {
+  AudioArgs *args = (AudioArgs *)arg;
+  int64_t now = 0;
+  int sizes[] = { 64, 37, 256, 1, 100 };
+  for (int i = 0; !args->done; ++i) {
+    run(args->seq, &now, sizes[i % 5], sizes[i % 5], &args->events);
+    struct timespec sleepTime;
+    sleepTime.tv_sec = 0;
+    sleepTime.tv_nsec = 100000;
+    nanosleep(&sleepTime, NULL);
+  }
+  return NULL;
+}
+
+void test_sequencer() {
+  vector<int32_t> words = build_sequence();
+  const uint8_t *data = (const uint8_t *)&words[0];
+  int size = words.size() * 4;
+  int n_errors = 0;
+
+  // Buffer size must make no difference.
+  int buffer_sizes[] = { 64, 1, 100, 777, 4096 };
+  for (int b = 0; b < 5; ++b) {
+    Sequencer seq(kSampleRate);
+    seq.Load(data, size);
+    seq.Play();
+    int64_t now = 0;
+    vector<SeqEvent> got;
+    run(&seq, &now, 5000, buffer_sizes[b], &got);
+    n_errors += check("placement", got, kExpected, kNumEvents, 0);
+  }
+
+  // Looping over the first 20 ticks releases the held note at the loop
+  // point and starts again.
+  {
+    static const SeqEvent expected[] = {
+      { 0, { 0x90, 60, 100 } },
+      { 50, { 0xb0, 1, 10 } },
+      { 1000, { 0x80, 60, 0 } },
+      { 1000, { 0x90, 60, 100 } },
+      { 1050, { 0xb0, 1, 10 } },
+      { 2000, { 0x80, 60, 0 } },
+      { 2000, { 0x90, 60, 100 } },
+      { 2050, { 0xb0, 1, 10 } }
+    };
+    Sequencer seq(kSampleRate);
+    seq.Load(data, size);
+    seq.SetLoop(0, 20);
+    seq.Play();
+    int64_t now = 0;
+    vector<SeqEvent> got;
+    run(&seq, &now, 2500, 64, &got);
+    n_errors += check("loop", got, expected, 8, 0);
+  }
+
+  // Stopping releases the held note at the start of the next buffer.
+  {
+    static const SeqEvent expected[] = {
+      { 0, { 0x90, 60, 100 } },
+      { 50, { 0xb0, 1, 10 } },
+      { 256, { 0x80, 60, 0 } }
+    };
+    Sequencer seq(kSampleRate);
+    seq.Load(data, size);
+    seq.Play();
+    int64_t now = 0;
+    vector<SeqEvent> got;
+    run(&seq, &now, 256, 64, &got);
+    seq.Stop();
+    run(&seq, &now, 2000, 64, &got);
+    n_errors += check("stop", got, expected, 3, 0);
+  }
+
+  // The same, with the sequence loaded and started from another thread
+  // while the audio thread runs. Positions count from the first event.
+  {
+    Sequencer seq(kSampleRate);
+    AudioArgs args;
+    args.seq = &seq;
+    args.done = false;
+    pthread_t thread;
+    pthread_create(&thread, NULL, audio_thread, (void *)&args);
+    seq.Load(data, size);
+    seq.Play();
+    struct timespec sleepTime;
+    sleepTime.tv_sec = 0;
+    sleepTime.tv_nsec = 1000000;
+    while (seq.tick() < kTicks[kNumEvents - 1]) {
+      nanosleep(&sleepTime, NULL);
+    }
+    // Give the audio thread time to send the last events.
+    sleepTime.tv_nsec = 20000000;
+    nanosleep(&sleepTime, NULL);
+    args.done = true;
+    pthread_join(thread, NULL);
+    int64_t offset = args.events.empty() ? 0 : args.events[0].position;
+    n_errors += check("threaded", args.events, kExpected, kNumEvents,
+      offset);
+  }
+
+  cout << "sequencer: " << n_errors << " errors" << endl;
+}
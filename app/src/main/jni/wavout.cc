@@ -55,21 +55,69 @@ WavOut::WavOut(const char *filename, double sample_rate, int n_samples) {
   w4cc(header, 36, "data");
   w32le(header, 40, 2 * n_samples);
   fs->write(header, 44);
+  sample_buf = new char[kBufSamples * 2];
+  buf_samples = 0;
+  n_samples_declared = n_samples;
+  n_samples_written = 0;
+  failed = false;
+}
+
+WavOut::~WavOut() {
+  close();
+  delete[] sample_buf;
 }
 
 void WavOut::write_data(const int32_t *buf, int n) {
   int32_t delta = 0x100;
   for (int i = 0; i < n; i++) {
+    if (buf_samples == kBufSamples) {
+      flush();
+    }
     int32_t val = buf[i];
     int clip_val = val < -(1 << 24) ? 0x8000 : (val >= (1 << 24) ? 0x7fff :
                                                 (val + delta) >> 9);
     delta = (delta + val) & 0x1ff;
-    sample_buf[i * 2] = clip_val & 0xff;
-    sample_buf[i * 2 + 1] = (clip_val >> 8) & 0xff;
+    w16le(sample_buf, buf_samples * 2, clip_val);
+    buf_samples++;
+  }
+}
+
+void WavOut::write_samples(const int16_t *buf, int n) {
+  for (int i = 0; i < n; i++) {
+    if (buf_samples == kBufSamples) {
+      flush();
+    }
+    w16le(sample_buf, buf_samples * 2, buf[i]);
+    buf_samples++;
   }
-  fs->write(sample_buf, n * 2);
+}
+
+void WavOut::flush() {
+  fs->write(sample_buf, buf_samples * 2);
+  n_samples_written += buf_samples;
+  buf_samples = 0;
+}
+
+bool WavOut::ok() const {
+  return fs != NULL ? !fs->fail() : !failed;
 }
 
 void WavOut::close() {
+  if (fs == NULL) {
+    return;
+  }
+  flush();
+  if (n_samples_declared == 0 && n_samples_written > 0) {
+    char size[4];
+    w32le(size, 0, (int32_t)(36 + 2 * n_samples_written));
+    fs->seekp(4);
+    fs->write(size, 4);
+    w32le(size, 0, (int32_t)(2 * n_samples_written));
+    fs->seekp(40);
+    fs->write(size, 4);
+  }
   fs->close();
+  failed = fs->fail();
+  delete fs;
+  fs = NULL;
 }
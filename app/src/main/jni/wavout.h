@@ -14,16 +14,37 @@
  * limitations under the License.
  */
 
+#include <stdint.h>
+
 #include <fstream>
 
 class WavOut {
  public:
+  // If n_samples isn't known up front, pass 0; close fills in the sizes.
   WavOut(const char *filename, double sample_rate, int n_samples);
+  ~WavOut();
 
+  // Writes n samples in the engine's internal format (see FmCore).
   void write_data(const int32_t *buf, int n);
 
+  // Writes n samples of 16-bit audio, as output by SynthUnit::GetSamples.
+  void write_samples(const int16_t *buf, int n);
+
+  // Whether everything so far, including close, has been written.
+  bool ok() const;
+
   void close();
  private:
-  char sample_buf[128];
+  // Samples are collected and written out in big chunks.
+  static const int kBufSamples = 65536;
+
+  void flush();
+
+  char *sample_buf;
+  int buf_samples;
+  int n_samples_declared;
+  int64_t n_samples_written;
   std::fstream *fs;
+  // Set by close if the stream had failed.
+  bool failed;
 };